@@ -3,12 +3,17 @@ package com.crossclient;
 import java.io.*;
 import java.lang.reflect.Type;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.SortedMap;
@@ -20,11 +25,25 @@ public class CrossClientMain {
 
     private static final String CONFIG_FILE = "client.properties"; // Configuration file
 
+    // Binary protocol of the server: see BinaryProtocol in the server
+    private static final byte[] HELLO = { (byte) 0xCB, 'X', 'B', 1 }; // first bytes of a binary connection
+    private static final int HEADER_SIZE = Byte.BYTES + Long.BYTES; // opcode and request ID of a payload
+    private static final byte OP_JSON = 0;
+    private static final byte OP_LIMIT = 1;
+    private static final byte OP_MARKET = 2;
+    private static final byte OP_STOP = 3;
+    private static final byte OP_CANCEL = 4;
+    private static final byte OP_MODIFY = 5;
+    private static final byte OP_ORDER_RESULT = 6;
+
     private String serverHost; // Server host
     private int serverPort; // Server port
     private Socket socket; // Socket for the TCP connection with server
     private BufferedReader input; // Input stream of the socket
     private PrintWriter output; // Output stream of the socket
+    private boolean binaryProtocol; // Whether the binary protocol is requested and then accepted by the server
+    private DataInputStream frameInput; // Input stream of the socket for the binary protocol
+    private DataOutputStream frameOutput; // Output stream of the socket for the binary protocol
     private DatagramSocket datagramSocket; // Datagram socket for order notifications
 
     // Maximum login time: it is sent by the server to the client when the user logs
@@ -32,6 +51,8 @@ public class CrossClientMain {
     private volatile long maxLoginTime;
     private volatile long userSessionTimestamp; // User session timestamp: used to check the user session
     private volatile String usernameLoggedIn; // Username of the user logged in
+    private long nextRequestId; // ID of the next request that carries one, used to match its response
+    private volatile long nextNotificationSequence; // Sequence number of the next notification, 0 if unknown
 
     private final Gson gson; // Gson object for JSON parsing
 
@@ -71,6 +92,7 @@ public class CrossClientMain {
             config.load(configFileStream);
             serverHost = config.getProperty("server");
             serverPort = Integer.parseInt(config.getProperty("port"));
+            binaryProtocol = "binary".equalsIgnoreCase(config.getProperty("protocol", "json").trim());
 
         } catch (NullPointerException e) {
             System.err.println("Configuration file has not been found :" + CONFIG_FILE);
@@ -98,8 +120,12 @@ public class CrossClientMain {
             udpNotificationListener();
 
             // Create the input and output streams
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
+            if (binaryProtocol)
+                binaryProtocol = negotiateBinaryProtocol();
+            if (!binaryProtocol) {
+                input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                output = new PrintWriter(socket.getOutputStream(), true);
+            }
 
             System.out.println("Connection successful to server:" + serverHost + ":" + serverPort);
         } catch (IOException e) {
@@ -107,6 +133,162 @@ public class CrossClientMain {
         }
     }
 
+    /*
+     * Send the hello of the binary protocol and wait for the server to answer with the
+     * same bytes. Return false, after reconnecting, if the server does not accept it
+     */
+    private boolean negotiateBinaryProtocol() throws IOException {
+        frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frameOutput.write(HELLO);
+        frameOutput.flush();
+        byte[] hello = new byte[HELLO.length];
+        try {
+            frameInput.readFully(hello);
+            if (Arrays.equals(hello, HELLO))
+                return true;
+        } catch (EOFException e) {
+            // the server closed the connection
+        }
+        System.out.println("[!] The server does not support the binary protocol, using JSON.");
+        socket.close();
+        socket = new Socket(serverHost, serverPort);
+        return false;
+    }
+
+    /*
+     * Send a JSON request to the server: a line, or a JSON frame with the binary protocol
+     */
+    private void sendRequest(String request) throws IOException {
+        if (!binaryProtocol) {
+            output.println(request);
+            return;
+        }
+        byte[] body = request.getBytes(StandardCharsets.UTF_8);
+        frameOutput.writeInt(HEADER_SIZE + body.length);
+        frameOutput.writeByte(OP_JSON);
+        frameOutput.writeLong(0);
+        frameOutput.write(body);
+        frameOutput.flush();
+    }
+
+    /*
+     * Return the next JSON response of the server, null if the server closed the connection
+     */
+    private String receiveResponse() throws IOException {
+        if (!binaryProtocol)
+            return input.readLine();
+        ByteBuffer payload = receiveFrame();
+        if (payload == null)
+            return null;
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
+
+    /*
+     * Send a JSON request and return its response. The connection is used by one request
+     * at a time, as the notification listener sends requests too
+     */
+    private synchronized String exchange(String request) throws IOException {
+        sendRequest(request);
+        return receiveResponse();
+    }
+
+    /*
+     * Return the body of the next frame of the server, after its opcode and request ID,
+     * null if the server closed the connection
+     */
+    private ByteBuffer receiveFrame() throws IOException {
+        int length;
+        try {
+            length = frameInput.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        frameInput.readFully(payload);
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(HEADER_SIZE);
+        return buffer;
+    }
+
+    /*
+     * Send an order in its binary layout and return its result in the shape of the JSON
+     * responses: { "response": INT, "errorMessage": STRING, "orderId": LONG,
+     * "newUserSession": LONG, "fills": [ { "price": LONG, "size": LONG }, ... ] }, where the
+     * order ID is the error code of the book if the order has been refused
+     */
+    private synchronized JsonObject sendOrder(byte opcode, ByteBuffer body) throws IOException {
+        frameOutput.writeInt(HEADER_SIZE + body.position());
+        frameOutput.writeByte(opcode);
+        frameOutput.writeLong(0);
+        frameOutput.write(body.array(), 0, body.position());
+        frameOutput.flush();
+
+        ByteBuffer result = receiveFrame();
+        if (result == null)
+            throw new EOFException("[!] Connection closed by the server");
+        JsonObject jsonResponse = new JsonObject();
+        if (result.get(0) != OP_ORDER_RESULT) { // the server answered with an error in JSON
+            jsonResponse.addProperty("response", -1);
+            jsonResponse.addProperty("errorMessage", "Unexpected response");
+            jsonResponse.addProperty("orderId", -1);
+            return jsonResponse;
+        }
+        int responseCode = result.getInt();
+        long orderId = result.getLong();
+        long userSession = result.getLong();
+        jsonResponse.addProperty("response", responseCode);
+        jsonResponse.addProperty("errorMessage", orderErrorMessage(responseCode, orderId));
+        jsonResponse.addProperty("orderId", responseCode == 100 ? orderId : -1);
+        if (userSession > 0)
+            jsonResponse.addProperty("newUserSession", userSession);
+        int fillCount = result.getInt();
+        if (fillCount > 0) {
+            JsonArray fills = new JsonArray();
+            for (int i = 0; i < fillCount; i++) {
+                JsonObject fill = new JsonObject();
+                fill.addProperty("price", result.getLong());
+                fill.addProperty("size", result.getLong());
+                fills.add(fill);
+            }
+            jsonResponse.add("fills", fills);
+        }
+        return jsonResponse;
+    }
+
+    // Return the message of the result of an order sent with the binary protocol
+    private static String orderErrorMessage(int responseCode, long orderId) {
+        if (responseCode == 100)
+            return "OK";
+        if (responseCode == 103)
+            return "Invalid request";
+        if (responseCode != 101)
+            return "Internal error";
+        switch ((int) orderId) {
+        case -1:
+            return "Order does not exist";
+        case -2:
+            return "Order belongs to different user";
+        case -3:
+            return "Order has been executed";
+        case -4:
+            return "Only limit orders can be modified";
+        case -5:
+            return "Price out of the range of the book";
+        default:
+            return "Order refused";
+        }
+    }
+
+    /*
+     * Return the binary layout shared by the insertions: side (1 bid, 2 ask), size, price
+     * (limit price, maximum slippage or stop price) and UDP port
+     */
+    private static ByteBuffer insertionBody(String type, long size, long price, int udpPort) {
+        return ByteBuffer.allocate(Byte.BYTES + 2 * Long.BYTES + Integer.BYTES)
+                .put((byte) (type.equals("bid") ? 1 : 2)).putLong(size).putLong(price).putInt(udpPort);
+    }
+
     /*
      * Disconnect the client from the server
      */
@@ -124,7 +306,7 @@ public class CrossClientMain {
      * the notifications to the terminal showing the order details
      * 
      * The server JSON format of the notification sent to the client is the following: {
-     * "notification": STRING, "trades": [ { "orderId": STRING, "type": STRING(ask/bid),
+     * "notification": STRING, "sequence": NUMBER, "trades": [ { "orderId": STRING, "type": STRING(ask/bid),
      * "orderType": STRING(limit, market,stop), "size": NUMBER, "price": NUMBER, "timestamp":
      * NUMBER } ] }
      */
@@ -133,8 +315,9 @@ public class CrossClientMain {
         // Start the UDP notification listener in the single thread executor
         udpNotificationExecutor.execute(() -> {
             try {
-                // Create the buffer and the packet for receiving the notifications
-                byte[] buffer = new byte[1024];
+                // Create the buffer and the packet for receiving the notifications: the server
+                // coalesces the trades of a user in messages of up to 8 KiB
+                byte[] buffer = new byte[8 * 1024];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 while (true) {
                     // The client thread is blocked until a notification is received
@@ -143,26 +326,7 @@ public class CrossClientMain {
                     // Parse the Json udp notification and print to terminal
                     JsonObject udpNotification = JsonParser.parseString(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8))
                             .getAsJsonObject();
-                    synchronized (System.out) {
-                        System.out.println("========================");
-                        if (udpNotification.has("notification") && udpNotification.has("trades")) {
-                            String notification = udpNotification.get("notification").getAsString();
-                            System.out.println("[!] New Notification: " + notification);
-                            JsonArray trades = udpNotification.get("trades").getAsJsonArray();
-                            for (JsonElement trade : trades) {
-                                JsonObject tradeObj = trade.getAsJsonObject();
-                                System.out.println("-------------");
-                                System.out.println("Order ID: " + tradeObj.get("orderId").getAsString());
-                                System.out.println("Type: " + tradeObj.get("type").getAsString());
-                                System.out.println("Type of order: " + tradeObj.get("orderType").getAsString());
-                                System.out.println("Size: " + tradeObj.get("size").getAsString());
-                                System.out.println("Price: " + tradeObj.get("price").getAsString());
-                                System.out.println("Timestamp: " + tradeObj.get("timestamp").getAsString());
-                            }
-                            System.out.println("=== End of notification ===");
-
-                        }
-                    }
+                    handleNotification(udpNotification);
                 }
             } catch (JsonSyntaxException e) {
                 System.err.println("Error while parsing the notification: " + e.getMessage());
@@ -172,6 +336,87 @@ public class CrossClientMain {
         });
     }
 
+    /*
+     * Print a notification received by datagram unless it has already been printed. If its
+     * sequence number is ahead of the expected one some datagrams have been lost: the missing
+     * notifications are asked to the server and printed first
+     */
+    private void handleNotification(JsonObject notification) throws IOException {
+        if (!notification.has("sequence")) {
+            printNotification(notification);
+            return;
+        }
+        long sequence = notification.get("sequence").getAsLong();
+        long expected = nextNotificationSequence;
+        if (expected > 0 && sequence > expected && amIlogged())
+            replayNotifications(expected);
+        if (nextNotificationSequence == 0 || sequence >= nextNotificationSequence) {
+            printNotification(notification);
+            nextNotificationSequence = sequence + 1;
+        }
+        // otherwise it is a duplicate of a notification already replayed
+    }
+
+    /*
+     * Ask the server for the notifications from the sequence number on and print them
+     * 
+     * The client JSON format of the request sent to the server is the following: {
+     * "operation": "replayNotifications", "values": { "fromSequence": NUMBER } }
+     * 
+     * The server JSON format of the response returned to the client is the following: {
+     * "response": INT, "errorMessage": STRING, "firstSequence": NUMBER, "notifications": [
+     * notification, ... ], "nextSequence": NUMBER }
+     */
+    private void replayNotifications(long fromSequence) throws IOException {
+        String request = gson.toJson(
+                Map.of("operation", "replayNotifications", "values", Map.of("fromSequence", fromSequence)));
+        // Send the request and parse the response
+        String response = exchange(request);
+        if (response == null)
+            return;
+        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        if (!jsonResponse.has("notifications"))
+            return;
+        if (jsonResponse.has("newUserSession"))
+            userSessionTimestamp = jsonResponse.get("newUserSession").getAsLong(); // Update the user session
+                                                                                   // timestamp
+        long firstSequence = jsonResponse.get("firstSequence").getAsLong();
+        if (firstSequence > fromSequence) {
+            synchronized (System.out) {
+                System.out.println("[!] " + (firstSequence - fromSequence)
+                        + " notifications have been lost and are no longer kept by the server");
+            }
+        }
+        for (JsonElement notification : jsonResponse.get("notifications").getAsJsonArray()) {
+            printNotification(notification.getAsJsonObject());
+        }
+        nextNotificationSequence = jsonResponse.get("nextSequence").getAsLong();
+    }
+
+    // Print the trades of a notification
+    private void printNotification(JsonObject udpNotification) {
+        synchronized (System.out) {
+            System.out.println("========================");
+            if (udpNotification.has("notification") && udpNotification.has("trades")) {
+                String notification = udpNotification.get("notification").getAsString();
+                System.out.println("[!] New Notification: " + notification);
+                JsonArray trades = udpNotification.get("trades").getAsJsonArray();
+                for (JsonElement trade : trades) {
+                    JsonObject tradeObj = trade.getAsJsonObject();
+                    System.out.println("-------------");
+                    System.out.println("Order ID: " + tradeObj.get("orderId").getAsString());
+                    System.out.println("Type: " + tradeObj.get("type").getAsString());
+                    System.out.println("Type of order: " + tradeObj.get("orderType").getAsString());
+                    System.out.println("Size: " + tradeObj.get("size").getAsString());
+                    System.out.println("Price: " + tradeObj.get("price").getAsString());
+                    System.out.println("Timestamp: " + tradeObj.get("timestamp").getAsString());
+                }
+                System.out.println("=== End of notification ===");
+
+            }
+        }
+    }
+
     /*
      * Register a new user given the username and the password linked to the profile and print
      * the server response on the terminal
@@ -208,10 +453,8 @@ public class CrossClientMain {
 
         // Create the JSON request to send to the server
         String request = gson.toJson(Map.of("operation", "register", "values", Map.of("username", username, "password", password)));
-        output.println(request);
-
-        // Response parsing
-        String response = input.readLine();
+        // Send the request and parse the response
+        String response = exchange(request);
         JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
         if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
             int responseCode = jsonResponse.get("response").getAsInt();
@@ -257,10 +500,8 @@ public class CrossClientMain {
             // Create the JSON request to send to the server
             String request = gson.toJson(Map.of("operation", "updateCredentials", "values",
                     Map.of("username", username, "old_password", currentPassword, "new-password", newPassword)));
-            output.println(request);
-
-            // Response parsing
-            String response = input.readLine();
+            // Send the request and parse the response
+            String response = exchange(request);
             JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
             if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
                 int responseCode = jsonResponse.get("response").getAsInt();
@@ -310,10 +551,8 @@ public class CrossClientMain {
             } while (flag);
 
             String request = gson.toJson(Map.of("operation", "login", "values", Map.of("username", username, "password", password)));
-            output.println(request);
-
-            // Response parsing
-            String response = input.readLine();
+            // Send the request and parse the response
+            String response = exchange(request);
             JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
             if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
 
@@ -326,6 +565,7 @@ public class CrossClientMain {
                     userSessionTimestamp = System.currentTimeMillis(); // Save the timestamp of the beginning of user
                                                                        // session
                     usernameLoggedIn = username; // Save the username of the user logged in
+                    nextNotificationSequence = 0; // The notifications of the user have their own sequence
                 }
 
                 System.out.println("[!] Client response code: " + responseCode + " - " + errorMessage);
@@ -365,10 +605,8 @@ public class CrossClientMain {
             return;
         }
 
-        output.println(Map.of("operation", "logout", "values", Map.of("username", usernameLoggedIn)));
-
-        // Response parsing
-        String response = input.readLine();
+        // Send the request and parse the response
+        String response = exchange(gson.toJson(Map.of("operation", "logout", "values", Map.of("username", usernameLoggedIn))));
         JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
         if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
             int responseCode = jsonResponse.get("response").getAsInt();
@@ -392,7 +630,8 @@ public class CrossClientMain {
      * LONG, "userId": STRING, "udpPort": INT } }
      * 
      * The server JSON format of the response returned to the client is the following: {
-     * "orderId": INT, "newUserSession": LONG } or { "orderId": INT}
+     * "orderId": INT, "newUserSession": LONG, "fills": [ { "price": LONG, "size": LONG }, ... ] }
+     * when the order crosses the book, { "orderId": INT, "newUserSession": LONG } or { "orderId": INT}
      * 
      */
     private void insertLimitOrder(BufferedReader console) throws IOException {
@@ -451,14 +690,17 @@ public class CrossClientMain {
         // notifications
         int udpPort = datagramSocket.getLocalPort();
 
-        // Create the JSON request to send to the server
-        String request = gson.toJson(Map.of("operation", "insertLimitOrder", "values",
-                Map.of("type", type, "size", size, "price", price, "userId", usernameLoggedIn, "udpPort", udpPort)));
-        output.println(request);
-
-        // Response parsing
-        String response = input.readLine();
-        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        JsonObject jsonResponse;
+        if (binaryProtocol) {
+            jsonResponse = sendOrder(OP_LIMIT, insertionBody(type, size, price, udpPort));
+        } else {
+            // Create the JSON request to send to the server
+            String request = gson.toJson(Map.of("operation", "insertLimitOrder", "values",
+                    Map.of("type", type, "size", size, "price", price, "userId", usernameLoggedIn, "udpPort", udpPort)));
+            // Send the request and parse the response
+            String response = exchange(request);
+            jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        }
         if (jsonResponse.has("orderId")) {
             int orderId = jsonResponse.get("orderId").getAsInt();
             if (jsonResponse.has("newUserSession")) {
@@ -466,6 +708,7 @@ public class CrossClientMain {
                 userSessionTimestamp = jsonResponse.get("newUserSession").getAsLong();
             }
             System.out.println("[!] orderId: " + orderId);
+            printFills(jsonResponse);
         }
     }
 
@@ -475,10 +718,11 @@ public class CrossClientMain {
      * 
      * The client JSON format of the request sent to the server is the following: {
      * "operation": "insertMarketOrder", "values": { "userId": STRING, "udpPort": INT, "type":
-     * STRING, "size": LONG } }
+     * STRING, "size": LONG, "maxSlippage": LONG (optional) } }
      * 
      * The server JSON format of the response returned to the client is the following: {
-     * "orderId": INT, "newUserSession": LONG } or { "orderId": INT}
+     * "orderId": INT, "newUserSession": LONG, "fills": [ { "price": LONG, "size": LONG }, ... ] }
+     * or { "orderId": INT, "newUserSession": LONG } or { "orderId": INT}
      */
     private void insertMarketOrder(BufferedReader console) throws IOException {
 
@@ -518,17 +762,39 @@ public class CrossClientMain {
                 System.out.println("Invalid input. Please enter a valid number.");
             }
         } while (size <= 0);
+        // Request the maximum slippage from the best price, an empty value means no limit
+        long maxSlippage = -1;
+        do {
+            System.out.print("Maximum slippage from the best price (empty for no limit): ");
+            String line = console.readLine();
+            if (line.isEmpty())
+                break;
+            try {
+                maxSlippage = Long.parseLong(line);
+                if (maxSlippage < 0) {
+                    System.out.println("Slippage must be zero or a positive number.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid number.");
+            }
+        } while (maxSlippage < 0);
         // Get the UDP port of the client so as to inform the server where will send the
         // notifications
         int numPort = datagramSocket.getLocalPort();
 
-        String request = gson.toJson(Map.of("operation", "insertMarketOrder", "values",
-                Map.of("userId", usernameLoggedIn, "udpPort", numPort, "type", type, "size", size)));
-        output.println(request);
-
-        // Response parsing
-        String response = input.readLine();
-        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        JsonObject jsonResponse;
+        if (binaryProtocol) {
+            jsonResponse = sendOrder(OP_MARKET, insertionBody(type, size, maxSlippage, numPort));
+        } else {
+            Map<String, Object> values = new HashMap<>(
+                    Map.of("userId", usernameLoggedIn, "udpPort", numPort, "type", type, "size", size));
+            if (maxSlippage >= 0)
+                values.put("maxSlippage", maxSlippage);
+            String request = gson.toJson(Map.of("operation", "insertMarketOrder", "values", values));
+            // Send the request and parse the response
+            String response = exchange(request);
+            jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        }
         if (jsonResponse.has("orderId")) {
             int orderId = jsonResponse.get("orderId").getAsInt();
             if (jsonResponse.has("newUserSession")) {
@@ -536,6 +802,18 @@ public class CrossClientMain {
                                                                                        // timestamp
             }
             System.out.println("[!] orderId: " + orderId);
+            printFills(jsonResponse);
+        }
+    }
+
+    // Print the fills of the order across the price levels of the book, if any
+    private void printFills(JsonObject jsonResponse) {
+        if (jsonResponse.has("fills")) {
+            for (JsonElement fill : jsonResponse.get("fills").getAsJsonArray()) {
+                JsonObject fillObj = fill.getAsJsonObject();
+                System.out.println("\tFilled " + fillObj.get("size").getAsString() + " at price "
+                        + fillObj.get("price").getAsString());
+            }
         }
     }
 
@@ -605,13 +883,16 @@ public class CrossClientMain {
         // notifications
         int numPort = datagramSocket.getLocalPort();
 
-        String request = gson.toJson(Map.of("operation", "insertStopOrder", "values",
-                Map.of("userId", usernameLoggedIn, "udpPort", numPort, "type", type, "size", size, "price", price)));
-        output.println(request);
-
-        // Response parsing
-        String response = input.readLine();
-        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        JsonObject jsonResponse;
+        if (binaryProtocol) {
+            jsonResponse = sendOrder(OP_STOP, insertionBody(type, size, price, numPort));
+        } else {
+            String request = gson.toJson(Map.of("operation", "insertStopOrder", "values",
+                    Map.of("userId", usernameLoggedIn, "udpPort", numPort, "type", type, "size", size, "price", price)));
+            // Send the request and parse the response
+            String response = exchange(request);
+            jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        }
         if (jsonResponse.has("orderId")) {
             int orderId = jsonResponse.get("orderId").getAsInt();
             if (jsonResponse.has("newUserSession")) {
@@ -652,12 +933,15 @@ public class CrossClientMain {
             }
         } while (orderId <= 0);
 
-        String request = gson.toJson(Map.of("operation", "cancelOrder", "values", Map.of("userId", usernameLoggedIn, "orderId", orderId)));
-        output.println(request);
-
-        // Response parsing
-        String response = input.readLine();
-        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        JsonObject jsonResponse;
+        if (binaryProtocol) {
+            jsonResponse = sendOrder(OP_CANCEL, ByteBuffer.allocate(Long.BYTES).putLong(orderId));
+        } else {
+            String request = gson.toJson(Map.of("operation", "cancelOrder", "values", Map.of("userId", usernameLoggedIn, "orderId", orderId)));
+            // Send the request and parse the response
+            String response = exchange(request);
+            jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        }
         if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
             int responseCode = jsonResponse.get("response").getAsInt();
             String errorMessage = jsonResponse.get("errorMessage").getAsString();
@@ -671,20 +955,196 @@ public class CrossClientMain {
         }
     }
 
+    /*
+     * Change the size and the price of a limit order given its ID in a single request and
+     * print the server response on the terminal: a smaller size at the same price keeps the
+     * place of the order in the queue of its price, a new price may execute the order
+     * 
+     * The client JSON format of the request sent to the server is the following: {
+     * "operation": "modifyOrder", "values": { "userId": STRING, "orderId": INT, "size": LONG,
+     * "price": LONG } }
+     * 
+     * The server JSON format of the response returned to the client is the following: {
+     * "response": INT, "errorMessage": STRING, "orderId": INT, "newUserSession": LONG,
+     * "fills": [ { "price": LONG, "size": LONG }, ... ] } or { "response": INT,
+     * "errorMessage": STRING }
+     */
+    private void modifyOrder(BufferedReader console) throws IOException {
+        if (!amIlogged()) {
+            System.out.println("[!] orderId: -1"); // the user is not logged in
+            return;
+        }
+
+        long orderId = 0;
+        long size = 0;
+        long price = 0;
+        // Request the order ID, the new size and the new price and check if they are valid
+        do {
+            System.out.print("Order ID: ");
+            try {
+                orderId = Long.parseLong(console.readLine());
+                if (orderId < 0)
+                    System.out.println("Error: order ID must be a positive number.");
+            } catch (NumberFormatException e) {
+                orderId = -1;
+                System.out.println("Invalid input. Please enter a valid number.");
+            }
+        } while (orderId < 0);
+        do {
+            System.out.print("New size: ");
+            try {
+                size = Long.parseLong(console.readLine());
+                if (size <= 0) {
+                    System.out.println("Size must be a positive number.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid number.");
+            }
+        } while (size <= 0);
+        do {
+            System.out.print("New price: ");
+            try {
+                price = Long.parseLong(console.readLine());
+                if (price <= 0) {
+                    System.out.println("Price must be a positive number.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter a valid number.");
+            }
+        } while (price <= 0);
+
+        JsonObject jsonResponse;
+        if (binaryProtocol) {
+            jsonResponse = sendOrder(OP_MODIFY,
+                    ByteBuffer.allocate(3 * Long.BYTES).putLong(orderId).putLong(size).putLong(price));
+        } else {
+            String request = gson.toJson(Map.of("operation", "modifyOrder", "values",
+                    Map.of("userId", usernameLoggedIn, "orderId", orderId, "size", size, "price", price)));
+            // Send the request and parse the response
+            String response = exchange(request);
+            jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        }
+        if (jsonResponse.has("response") && jsonResponse.has("errorMessage")) {
+            if (jsonResponse.has("newUserSession")) {
+                userSessionTimestamp = jsonResponse.get("newUserSession").getAsLong(); // Update the user session
+                                                                                       // timestamp
+            }
+            System.out.println("[!] Client response code: " + jsonResponse.get("response").getAsInt() + " - "
+                    + jsonResponse.get("errorMessage").getAsString());
+            printFills(jsonResponse);
+        }
+    }
+
+    /*
+     * Send several limit orders, cancellations and modifications in a single request, which
+     * the server applies as one unit, and print the result of every item. The user types an
+     * item per line: "bid SIZE PRICE", "ask SIZE PRICE", "cancel ORDERID" or "modify ORDERID
+     * SIZE PRICE", an empty line sends the batch. The request carries a request ID that the
+     * server returns in the response
+     * 
+     * The client JSON format of the request sent to the server is the following: {
+     * "operation": "batch", "requestId": LONG, "values": { "userId": STRING, "udpPort": INT,
+     * "orders": [ { "operation": "insertLimitOrder", "values": { "type": STRING, "size":
+     * LONG, "price": LONG } } or { "operation": "cancelOrder", "values": { "orderId": LONG }
+     * } or { "operation": "modifyOrder", "values": { "orderId": LONG, "size": LONG, "price":
+     * LONG } }, ... ] } }
+     * 
+     * The server JSON format of the response returned to the client is the following: {
+     * "requestId": LONG, "response": INT, "errorMessage": STRING, "newUserSession": LONG,
+     * "results": [ { "orderId": INT, "fills": [ ... ] } or { "response": INT, "errorMessage":
+     * STRING }, ... ] } or { "requestId": LONG, "response": INT, "errorMessage": STRING }
+     */
+    private void sendBatch(BufferedReader console) throws IOException {
+        if (!amIlogged()) {
+            System.out.println("[!] Error: any user is not logged in");
+            return;
+        }
+
+        List<Map<String, Object>> orders = new ArrayList<>();
+        System.out.println("Insert an order per line: \"bid SIZE PRICE\", \"ask SIZE PRICE\", \"cancel ORDERID\" or "
+                + "\"modify ORDERID SIZE PRICE\".");
+        System.out.println("Insert an empty line to send the batch.");
+        String line;
+        while (!(line = console.readLine().trim()).isEmpty()) {
+            String[] fields = line.split("\\s+");
+            try {
+                if ((fields[0].equals("bid") || fields[0].equals("ask")) && fields.length == 3) {
+                    long size = Long.parseLong(fields[1]);
+                    long price = Long.parseLong(fields[2]);
+                    if (size <= 0 || price <= 0) {
+                        System.out.println("Size and price must be positive numbers.");
+                        continue;
+                    }
+                    orders.add(Map.of("operation", "insertLimitOrder", "values",
+                            Map.of("type", fields[0], "size", size, "price", price)));
+                } else if (fields[0].equals("cancel") && fields.length == 2) {
+                    orders.add(Map.of("operation", "cancelOrder", "values",
+                            Map.of("orderId", Long.parseLong(fields[1]))));
+                } else if (fields[0].equals("modify") && fields.length == 4) {
+                    orders.add(Map.of("operation", "modifyOrder", "values", Map.of("orderId",
+                            Long.parseLong(fields[1]), "size", Long.parseLong(fields[2]), "price",
+                            Long.parseLong(fields[3]))));
+                } else {
+                    System.out.println("Command not recognized. Please insert a valid order.");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid input. Please enter valid numbers.");
+            }
+        }
+        if (orders.isEmpty())
+            return;
+
+        long requestId = nextRequestId++;
+        String request = gson.toJson(Map.of("operation", "batch", "requestId", requestId, "values",
+                Map.of("userId", usernameLoggedIn, "udpPort", datagramSocket.getLocalPort(), "orders", orders)));
+        JsonObject jsonResponse;
+        synchronized (this) {
+            sendRequest(request);
+
+            // Response parsing: the response of the batch is the one with its request ID
+            do {
+                jsonResponse = JsonParser.parseString(receiveResponse()).getAsJsonObject();
+            } while (!jsonResponse.has("requestId") || jsonResponse.get("requestId").getAsLong() != requestId);
+        }
+
+        if (jsonResponse.has("newUserSession"))
+            userSessionTimestamp = jsonResponse.get("newUserSession").getAsLong(); // Update the user session
+                                                                                   // timestamp
+        System.out.println("[!] Server response code: " + jsonResponse.get("response").getAsString() + " - "
+                + jsonResponse.get("errorMessage").getAsString());
+        if (!jsonResponse.has("results"))
+            return;
+        JsonArray results = jsonResponse.get("results").getAsJsonArray();
+        for (int i = 0; i < results.size(); i++) {
+            JsonObject result = results.get(i).getAsJsonObject();
+            System.out.print("[" + (i + 1) + "] ");
+            if (result.has("orderId") && !result.has("response")) {
+                System.out.println("orderId: " + result.get("orderId").getAsString());
+                printFills(result);
+            } else {
+                System.out.println("response code: " + result.get("response").getAsString() + " - "
+                        + result.get("errorMessage").getAsString());
+                printFills(result);
+            }
+        }
+    }
+
     /*
      * Get the list of fulfilled orders given the month and the year Print the price history
      * of the month and print for each day the opening price, closing price, highest price,
-     * lowest price and the list of fulfilled orders in the day
+     * lowest price and the list of fulfilled orders in the day. With the summary option the
+     * fulfilled orders are not requested; a day with more orders than the server sends in a
+     * response tells the cursor from which the remaining ones are read with the trades of a day
      * 
      * The client JSON format of the request sent to the server is the following: {
-     * "operation": "getPriceHistory", "values": { "month": STRING(MMYYYY), "userId": STRING }
-     * }
+     * "operation": "getPriceHistory", "values": { "month": STRING(MMYYYY), "userId": STRING,
+     * "summary": BOOLEAN } }
      * 
      * The server JSON format of the response returned to the client is the following: {
      * "month": STRING, "tradeHistory": [ { "numberOfDay": STRING, "openingPrice": NUMBER,
-     * "closingPrice": NUMBER, "highestPrice": NUMBER, "lowestPrice": NUMBER,
-     * "fulfilledOrders": [ { "orderId": STRING, "type": STRING, "size": NUMBER, "price":
-     * NUMBER, "timestamp": NUMBER }, ... ] } ], "newUserSession": NUMBER } ,
+     * "closingPrice": NUMBER, "highestPrice": NUMBER, "lowestPrice": NUMBER, "volume": NUMBER,
+     * "numberOfTrades": NUMBER, "fulfilledOrders": [ { "orderId": STRING, "type": STRING, "size":
+     * NUMBER, "price": NUMBER, "timestamp": NUMBER }, ... ], "nextCursor": NUMBER } ],
      * "newUserSession": NUMBER } or { "response": INT, "errorMessage": STRING,
      * "newUserSession": LONG }
      */
@@ -727,12 +1187,14 @@ public class CrossClientMain {
             }
         } while (!validInput);
 
-        String request = gson.toJson(Map.of("operation", "getPriceHistory", "values", Map.of("month", line, "userId", usernameLoggedIn)));
+        System.out.print("Only the daily summary, without the fulfilled orders? (y/n): ");
+        boolean summary = console.readLine().trim().equalsIgnoreCase("y");
 
-        output.println(request);
+        String request = gson.toJson(Map.of("operation", "getPriceHistory", "values",
+                Map.of("month", line, "userId", usernameLoggedIn, "summary", summary)));
 
-        // Response parsing
-        String response = input.readLine();
+        // Send the request and parse the response
+        String response = exchange(request);
         JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
         if (jsonResponse.has("response") && jsonResponse.has("errorMessage") && jsonResponse.has("newUserSession")) {
             int responseCode = jsonResponse.get("response").getAsInt();
@@ -760,22 +1222,147 @@ public class CrossClientMain {
                 System.out.println("Closing price: " + tradeObj.get("closingPrice").getAsString());
                 System.out.println("Highest price: " + tradeObj.get("highestPrice").getAsString());
                 System.out.println("Lowest price: " + tradeObj.get("lowestPrice").getAsString());
+                if (tradeObj.has("volume"))
+                    System.out.println("Volume: " + tradeObj.get("volume").getAsString());
+                if (tradeObj.has("numberOfTrades"))
+                    System.out.println("Fulfilled orders count: " + tradeObj.get("numberOfTrades").getAsString());
+                if (!tradeObj.has("fulfilledOrders"))
+                    continue;
                 System.out.println("Fulfilled orders: ");
-                JsonArray fulfilledOrders = tradeObj.get("fulfilledOrders").getAsJsonArray();
-                for (JsonElement order : fulfilledOrders) {
-                    JsonObject orderObj = order.getAsJsonObject();
-                    System.out.println("-------------");
-                    System.out.println("\tOrder ID: " + orderObj.get("orderId").getAsString());
-                    System.out.println("\tType: " + orderObj.get("type").getAsString());
-                    System.out.println("\tSize: " + orderObj.get("size").getAsString());
-                    System.out.println("\tPrice: " + orderObj.get("price").getAsString());
-                    System.out.println("\tTimestamp: " + orderObj.get("timestamp").getAsString());
-                }
+                printFulfilledOrders(tradeObj.get("fulfilledOrders").getAsJsonArray());
+                if (tradeObj.has("nextCursor"))
+                    System.out.println("[!] More orders in the day: read them with the trades of the day from "
+                            + tradeObj.get("nextCursor").getAsString());
+            }
+
+        }
+    }
+
+    // Print the fulfilled orders of a trade history
+    private void printFulfilledOrders(JsonArray fulfilledOrders) {
+        for (JsonElement order : fulfilledOrders) {
+            JsonObject orderObj = order.getAsJsonObject();
+            System.out.println("-------------");
+            System.out.println("\tOrder ID: " + orderObj.get("orderId").getAsString());
+            System.out.println("\tType: " + orderObj.get("type").getAsString());
+            System.out.println("\tSize: " + orderObj.get("size").getAsString());
+            System.out.println("\tPrice: " + orderObj.get("price").getAsString());
+            System.out.println("\tTimestamp: " + orderObj.get("timestamp").getAsString());
+        }
+    }
+
+    /*
+     * Get the fulfilled orders of a day page by page: every response holds a bounded
+     * number of orders and the cursor of the next page, which is requested until the
+     * last page or until the user stops
+     * 
+     * The client JSON format of the request sent to the server is the following: {
+     * "operation": "getDayTrades", "values": { "day": STRING(DDMMYYYY), "cursor": NUMBER,
+     * "userId": STRING } }
+     * 
+     * The server JSON format of the response returned to the client is the following: {
+     * "day": STRING, "tradeHistory": { "numberOfDay": NUMBER, "openingPrice": NUMBER, ...,
+     * "fulfilledOrders": [ ... ], "nextCursor": NUMBER }, "newUserSession": NUMBER } or {
+     * "response": INT, "errorMessage": STRING, "newUserSession": LONG }
+     */
+    private void getDayTrades(BufferedReader console) throws IOException {
+        if (!amIlogged()) {
+            System.out.println("[!] Error: any user is not logged in");
+            return;
+        }
+
+        String day;
+        do {
+            System.out.print("Select the day in the format (DDMMYYYY): ");
+            day = console.readLine().trim();
+            if (!day.matches("\\d{8}"))
+                System.out.println("Invalid input. Please enter a valid day in the format DDMMYYYY.");
+        } while (!day.matches("\\d{8}"));
+
+        long cursor = 0;
+        while (true) {
+            String request = gson.toJson(Map.of("operation", "getDayTrades", "values",
+                    Map.of("day", day, "cursor", cursor, "userId", usernameLoggedIn)));
+            // Send the request and parse the response
+            String response = exchange(request);
+            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+            if (jsonResponse.has("newUserSession"))
+                userSessionTimestamp = jsonResponse.get("newUserSession").getAsLong(); // Update the user session
+                                                                                       // timestamp
+            if (!jsonResponse.has("tradeHistory")) {
+                System.out.println("[!] Server response code: " + jsonResponse.get("response").getAsString() + " - "
+                        + jsonResponse.get("errorMessage").getAsString());
+                return;
+            }
+
+            JsonObject tradeObj = jsonResponse.get("tradeHistory").getAsJsonObject();
+            if (cursor == 0)
+                System.out.println("==========\n Fulfilled orders of the day " + day + " ("
+                        + tradeObj.get("numberOfTrades").getAsString() + "):");
+            printFulfilledOrders(tradeObj.get("fulfilledOrders").getAsJsonArray());
+
+            if (!tradeObj.has("nextCursor"))
+                return;
+            System.out.print("Press enter for the next page or \"q\" to stop: ");
+            if (console.readLine().trim().equalsIgnoreCase("q"))
+                return;
+            cursor = tradeObj.get("nextCursor").getAsLong();
+        }
+    }
+
+    /*
+     * Get the best price levels of both sides of the order book up to the depth given and
+     * print for every level the price, the total size and the number of orders
+     * 
+     * The client JSON format of the request sent to the server is the following: {
+     * "operation": "getOrderBook", "values": { "depth": NUMBER } }
+     * 
+     * The server JSON format of the response returned to the client is the following: {
+     * "response": INT, "errorMessage": STRING, "sequence": NUMBER, "bids": [ { "price":
+     * NUMBER, "size": NUMBER, "orders": NUMBER }, ... ], "asks": [ ... ] }
+     */
+    private void getOrderBook(BufferedReader console) throws IOException {
+        int depth = 0;
+        while (depth <= 0) {
+            System.out.print("Number of price levels: ");
+            try {
+                depth = Integer.parseInt(console.readLine().trim());
+            } catch (NumberFormatException e) {
+                depth = 0;
             }
+            if (depth <= 0)
+                System.out.println("Invalid input. Please enter a positive number.");
+        }
 
+        String request = gson.toJson(Map.of("operation", "getOrderBook", "values", Map.of("depth", depth)));
+        // Send the request and parse the response
+        String response = exchange(request);
+        JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+        if (!jsonResponse.has("bids")) {
+            System.out.println("[!] Server response code: " + jsonResponse.get("response").getAsString() + " - "
+                    + jsonResponse.get("errorMessage").getAsString());
+            return;
+        }
+        synchronized (System.out) {
+            System.out.println("==========\n Asks (price, size, orders):");
+            JsonArray asks = jsonResponse.get("asks").getAsJsonArray();
+            // the asks are printed from the worst price, so the best prices of both sides meet in the middle
+            for (int i = asks.size() - 1; i >= 0; i--) {
+                printLevel(asks.get(i).getAsJsonObject());
+            }
+            System.out.println("----------\n Bids (price, size, orders):");
+            for (JsonElement level : jsonResponse.get("bids").getAsJsonArray()) {
+                printLevel(level.getAsJsonObject());
+            }
+            System.out.println("==========");
         }
     }
 
+    private void printLevel(JsonObject level) {
+        System.out.println("  " + level.get("price").getAsString() + "  " + level.get("size").getAsString() + "  "
+                + level.get("orders").getAsString());
+    }
+
     /*
      * Menu for the user not logged in with the operations: register, login, change user
      * profile password and close the application
@@ -817,8 +1404,8 @@ public class CrossClientMain {
 
     /*
      * Start the client and manage the operations: insert limit order, insert market order,
-     * insert stop order, cancel order, price history and change user/logout if the user is
-     * logged in
+     * insert stop order, cancel order, modify order, price history, trades of a day, batch of
+     * orders, order book and change user/logout if the user is logged in
      */
     public void start() {
         try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
@@ -840,14 +1427,18 @@ public class CrossClientMain {
                     System.out.println("2. Insert market order");
                     System.out.println("3. Insert stop order");
                     System.out.println("4. Cancel order");
-                    System.out.println("5. Price history");
-                    System.out.println("6. Change user/logout");
-                    System.out.println("7. Close the application");
+                    System.out.println("5. Modify order");
+                    System.out.println("6. Price history");
+                    System.out.println("7. Trades of a day");
+                    System.out.println("8. Batch of orders");
+                    System.out.println("9. Order book");
+                    System.out.println("10. Change user/logout");
+                    System.out.println("11. Close the application");
                     System.out.println("--------------------");
                     command = console.readLine();
                 }
 
-                if (command.equals("7")) {
+                if (command.equals("11")) {
                     logout();
                     System.out.println("[!] Client closing...");
                     System.exit(0);
@@ -884,9 +1475,21 @@ public class CrossClientMain {
             cancelOrder(console);
             break;
         case "5":
-            getPriceHistory(console);
+            modifyOrder(console);
             break;
         case "6":
+            getPriceHistory(console);
+            break;
+        case "7":
+            getDayTrades(console);
+            break;
+        case "8":
+            sendBatch(console);
+            break;
+        case "9":
+            getOrderBook(console);
+            break;
+        case "10":
             logout();
             break;
         default:
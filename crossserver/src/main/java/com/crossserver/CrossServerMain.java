@@ -3,6 +3,7 @@ package com.crossserver;
 import java.io.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -11,25 +12,51 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.Type;
 import com.crossserver.models.*;
+import com.crossserver.models.Network.NioServer;
+import com.crossserver.models.Network.ResponseWriter;
+import com.crossserver.models.Notification.DepthView;
+import com.crossserver.models.Notification.MarketDataPublisher;
+import com.crossserver.models.Notification.NotificationLog;
 import com.crossserver.models.Notification.UDPNotifier;
+import com.crossserver.models.Orders.ArrayLimitBook;
+import com.crossserver.models.Orders.BookSnapshot;
+import com.crossserver.models.Orders.CommandJournal;
+import com.crossserver.models.Orders.EngineCommand;
+import com.crossserver.models.Orders.ExecutionReport;
+import com.crossserver.models.Orders.LimitBook;
 import com.crossserver.models.Orders.LimitOrder;
 import com.crossserver.models.Orders.MarketOrder;
+import com.crossserver.models.Orders.MatchingEngine;
 import com.crossserver.models.Orders.Order;
 import com.crossserver.models.Orders.OrderBook;
+import com.crossserver.models.Orders.PriceLevel;
+import com.crossserver.models.Orders.Side;
+import com.crossserver.models.Orders.SkipListLimitBook;
 import com.crossserver.models.Orders.StopOrder;
 import com.crossserver.models.Orders.TradeHistory;
+import com.crossserver.models.Orders.TradeStore;
+import com.crossserver.models.Session.Session;
 import com.crossserver.models.Session.SessionManager;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
+import java.time.DateTimeException;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -40,9 +67,14 @@ public class CrossServerMain {
 
     private static final String CONFIG_FILE = "server.properties"; // Configuration file
     private static final String USERS_DB = "usersDB.json"; // User database file
-    private static final String ORDER_HISTORY_DB = "orderHistoryDB.json"; // order history database file
-    private static final String LIMIT_ORDER_DB = "limitDB.json"; // not executed limit order database file
-    private static final String STOP_ORDER_DB = "stopDB.json"; // not executed stop order database file
+    private static final String ORDER_BOOK_DB = "orderBookDB.json"; // snapshot of the order book and of its journal
+                                                                     // sequence
+    private static final String ORDER_HISTORY_DB = "orderHistoryDB.json"; // order history database file of an older
+                                                                          // version, read once to migrate it
+    private static final String LIMIT_ORDER_DB = "limitDB.json"; // limit order database file of an older version
+    private static final String STOP_ORDER_DB = "stopDB.json"; // stop order database file of an older version
+    private static final String COMMAND_JOURNAL = "journal.bin"; // journal of the orders applied after the snapshot
+    private static final String TRADE_STORE_DIRECTORY = "trades"; // directory of the day segments of the trades
     private static final String DEFAULT_FILE_PATH = "src/main/java/com/crossserver/data/"; // default file path
     private final ScheduledExecutorService DBpersistenceExecutor; // Database persistence executor: used to save the
                                                                   // databases periodically
@@ -50,11 +82,36 @@ public class CrossServerMain {
     private final ConcurrentHashMap<String, String> usersDB; // User database : username, encrypted password
 
     private OrderBook orderBook;
+    private MatchingEngine matchingEngine; // single writer of the order book
+    private boolean sequencedMatching; // true if the orders are applied by the matching engine thread
+    private int engineRingSize; // capacity of the matching engine inbound ring
+    private boolean journalEnabled; // true if the orders are written to the journal before being applied
+    private CommandJournal journal; // write-ahead journal of the orders, null if disabled
+    private long snapshotSequence; // sequence number of the last journal record included in the databases
+    private boolean arrayLimitBook; // true if the limit books are arrays of price levels indexed by tick
+    private long arrayBookMinPrice; // lowest price held by the array limit books
+    private int arrayBookLevels; // number of ticks held by the array limit books
+    private long arrayBookTickSize; // price distance between two ticks of the array limit books
+    private TradeStore tradeStore; // executed orders stored in day segments
+    private int hotTradeSegments; // number of recent day segments kept mapped
+    private int historyPageSize; // maximum number of orders of a day returned by a price history response
+    private int maxBatchSize; // maximum number of orders of a batch request
+    private int notificationQueueSize; // maximum number of UDP notifications waiting to be sent
+    private int notificationLogSize; // number of notifications of every user kept to be replayed
     private static AtomicLong orderIdCounter; // Order ID counter
     private UDPNotifier notifier; // UDP notifier
-
-    private ServerSocket serverSocket; // Server socket
+    private MarketDataPublisher marketData; // UDP feed of the best prices and of the depth of the book
+    private long marketDataSnapshotInterval; // time between two snapshots of the market data feed in milliseconds
+    private int marketDataDepth; // number of levels of every side of a market data snapshot or order book response
+    private int maxMarketDataSubscribers; // maximum number of subscriptions to the market data feed
+    private InetSocketAddress marketDataGroup; // multicast group of the market data feed, null if none
+
+    private ServerSocket serverSocket; // Server socket, used by the blocking front end
+    private NioServer nioServer; // non-blocking front end, null with the blocking one
+    private InetAddress serverAddress; // Server address
     private int serverPort; // Server port
+    private String serverMode; // network front end: "nio", "blocking" or "virtual"
+    private int ioThreads; // number of I/O threads of the non-blocking front end
     private long maxSessionTime; // Maximum user session time
 
     private final ExecutorService threadPool; // Thread pool for handling user requests
@@ -75,13 +132,24 @@ public class CrossServerMain {
         // Default initialization of the server user database
         usersDB = new ConcurrentHashMap<>();
         // Default initialization of the order book
-        notifier = new UDPNotifier();
-        orderBook = new OrderBook(notifier);
+        notifier = new UDPNotifier(notificationQueueSize, notificationLogSize);
+        try {
+            tradeStore = new TradeStore(new File(DEFAULT_FILE_PATH, TRADE_STORE_DIRECTORY), hotTradeSegments);
+        } catch (IOException e) {
+            System.err.println("[Order history] Error opening the trade store: " + e.getMessage());
+            System.exit(1);
+        }
+        marketData = new MarketDataPublisher(marketDataSnapshotInterval, marketDataDepth, maxMarketDataSubscribers,
+                marketDataGroup);
+        orderBook = new OrderBook(notifier, tradeStore, createLimitBook(false), createLimitBook(true), marketData);
 
         orderIdCounter = new AtomicLong(0);
 
-        // thread pool initialization
-        threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // thread pool initialization: in virtual mode every task runs on its own virtual thread
+        if ("virtual".equals(serverMode))
+            threadPool = Executors.newVirtualThreadPerTaskExecutor();
+        else
+            threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 
         // single scheduled executor for the database persistence
         DBpersistenceExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -89,6 +157,25 @@ public class CrossServerMain {
         // load the server databases
         loadDatabases();
 
+        // open the journal of the orders applied after the snapshot
+        if (journalEnabled) {
+            try {
+                journal = new CommandJournal(new File(DEFAULT_FILE_PATH, COMMAND_JOURNAL));
+            } catch (IOException e) {
+                System.err.println("[Journal] Error opening the journal: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        matchingEngine = new MatchingEngine(orderBook, sequencedMatching, engineRingSize, journal);
+
+        // replay the orders of the journal on top of the snapshot loaded from the databases
+        recoverFromJournal();
+
+        // start the matching engine once the order book has been restored
+        notifier.start();
+        marketData.start(orderBook.getLimitBidOrders(), orderBook.getLimitAskOrders());
+        matchingEngine.start();
+
         // activate the periodic persistence of the databases
         startPeriodicPersistence();
 
@@ -97,13 +184,21 @@ public class CrossServerMain {
 
             // close the server socket
             try {
-                serverSocket.close();
+                if (serverSocket != null)
+                    serverSocket.close();
             } catch (IOException e) {
                 System.err.println("[!] Error while closing the server socket: " + e.getMessage());
             }
+            if (nioServer != null)
+                nioServer.close();
 
-            // close the database persistence executor
-            DBpersistenceExecutor.shutdownNow();
+            // close the database persistence executor, a save in progress is completed first
+            DBpersistenceExecutor.shutdown();
+            try {
+                DBpersistenceExecutor.awaitTermination(maxThreadPoolTerminationTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
             // thread pool shutdown
             threadPool.shutdown();
@@ -115,29 +210,95 @@ public class CrossServerMain {
             } catch (InterruptedException e) {
                 threadPool.shutdownNow();
             }
-            // save the server state before shutting down
-            saveDatabases();
-            System.out.println("Server state saved successfully");
+
+            // apply the pending orders and stop the matching engine
+            matchingEngine.stop(maxThreadPoolTerminationTime);
+            System.out.printf("[Matching engine] %d commands processed, %.0f orders/sec on the engine core%n",
+                    matchingEngine.getProcessedCommands(), matchingEngine.getCommandsPerSecond());
+            if (matchingEngine.getAllocatedBytesPerCommand() >= 0)
+                System.out.printf("[Matching engine] %.1f bytes allocated per command on the engine core%n",
+                        matchingEngine.getAllocatedBytesPerCommand());
+
+            // send the last notifications
+            notifier.stop();
+            System.out.printf("[Notifier] %d notifications sent, %d dropped%n", notifier.getSentMessages(),
+                    notifier.getDroppedMessages());
+            marketData.stop();
+            System.out.printf("[Market data] %d messages sent, %d updates merged%n", marketData.getSentMessages(),
+                    marketData.getMergedUpdates());
+
+            // save the server state before shutting down, the snapshot includes the whole journal, which is
+            // kept if the snapshot has not been saved
+            boolean saved = saveDatabases();
+            if (journal != null) {
+                try {
+                    if (saved)
+                        journal.truncate();
+                    journal.close();
+                } catch (IOException e) {
+                    System.err.println("[Journal] Error closing the journal: " + e.getMessage());
+                }
+            }
+            try {
+                tradeStore.close();
+            } catch (IOException e) {
+                System.err.println("[Order history] Error closing the trade store: " + e.getMessage());
+            }
+            if (saved)
+                System.out.println("Server state saved successfully");
+            else
+                System.err.println("[!] Server state not saved, the journal has been kept to restore it");
         }));
     }
 
     /*
      * Return the session manager
      */
-    public synchronized SessionManager getSessionManager() {
+    public SessionManager getSessionManager() {
         return sessionManager;
     }
 
+    /*
+     * Return the market data feed
+     */
+    public MarketDataPublisher getMarketData() {
+        return marketData;
+    }
+
+    /*
+     * Replay the journal on the order book loaded from the databases. If some orders
+     * have been replayed a new snapshot is saved, so the journal can be emptied
+     */
+    private void recoverFromJournal() {
+        if (journal == null)
+            return;
+        try {
+            long maxOrderId = matchingEngine.recover(snapshotSequence);
+            if (maxOrderId < 0)
+                return;
+            // the orders IDs of the journal must not be assigned again
+            orderIdCounter = new AtomicLong(Math.max(maxOrderId + 1, orderIdCounter.get()));
+            if (saveDatabases())
+                journal.truncate();
+        } catch (IOException e) {
+            System.err.println("[Journal] Error replaying the journal: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     /*
      * Periodically save the server databases according to the time specified in the
-     * configuration file
+     * configuration file. With the journal enabled every save is a new snapshot of
+     * the order book, so the journal only holds the orders applied since the last one
      */
-    public void startPeriodicPersistence() {
+    private void startPeriodicPersistence() {
         DBpersistenceExecutor.scheduleAtFixedRate(() -> {
             try {
                 // save the server databases
-                saveDatabases();
-                System.out.println("[DB] Periodic persistence completed successfully");
+                if (saveDatabases())
+                    System.out.println("[DB] Periodic persistence completed successfully");
+                else
+                    System.err.println("[ERROR] Periodic persistence failed");
             } catch (Exception e) {
                 System.err.println("[ERROR] Periodic persistence failed: " + e.getMessage());
             }
@@ -167,7 +328,42 @@ public class CrossServerMain {
             maxThreadPoolTerminationTime = Long.parseLong(config.getProperty("threadPoolTerminationTime"));
             periodicallySaveDB = Long.parseLong(config.getProperty("intervalSaveDB"));
 
-            serverSocket = new ServerSocket(serverPort, 0, InetAddress.getByName(serverAddress)); //
+            // extract the matching mode (sequenced or direct) and the engine ring capacity
+            sequencedMatching = config.getProperty("matchingMode", "sequenced").trim().equals("sequenced");
+            engineRingSize = Integer.parseInt(config.getProperty("engineRingSize", "1024").trim());
+
+            // extract whether the orders are written to the journal
+            journalEnabled = Boolean.parseBoolean(config.getProperty("journal", "true").trim());
+
+            // extract the structure of the limit books (skiplist or array) and the price range of the array books
+            arrayLimitBook = config.getProperty("bookType", "skiplist").trim().equals("array");
+            arrayBookMinPrice = Long.parseLong(config.getProperty("arrayBookMinPrice", "1").trim());
+            arrayBookLevels = Integer.parseInt(config.getProperty("arrayBookLevels", "1000000").trim());
+            arrayBookTickSize = Long.parseLong(config.getProperty("arrayBookTickSize", "1").trim());
+            hotTradeSegments = Integer.parseInt(config.getProperty("hotTradeSegments", "7").trim());
+            historyPageSize = Integer.parseInt(config.getProperty("historyPageSize", "500").trim());
+            maxBatchSize = Integer.parseInt(config.getProperty("maxBatchSize", "100").trim());
+            notificationQueueSize = Integer.parseInt(config.getProperty("notificationQueueSize", "4096").trim());
+            notificationLogSize = Integer.parseInt(config.getProperty("notificationLogSize", "256").trim());
+
+            // extract the market data feed settings, the multicast group is "address:port" or empty
+            marketDataSnapshotInterval = Long
+                    .parseLong(config.getProperty("marketDataSnapshotInterval", "1000").trim());
+            marketDataDepth = Integer.parseInt(config.getProperty("marketDataDepth", "50").trim());
+            maxMarketDataSubscribers = Integer.parseInt(config.getProperty("maxMarketDataSubscribers", "4096").trim());
+            String group = config.getProperty("marketDataGroup", "").trim();
+            if (!group.isEmpty()) {
+                int separator = group.lastIndexOf(':');
+                marketDataGroup = new InetSocketAddress(InetAddress.getByName(group.substring(0, separator)),
+                        Integer.parseInt(group.substring(separator + 1)));
+            }
+
+            this.serverAddress = InetAddress.getByName(serverAddress);
+
+            // extract the network front end: "nio" (selector threads and workers), "blocking" (a pooled
+            // thread per connection) or "virtual" (a virtual thread per connection)
+            serverMode = config.getProperty("serverMode", "nio").trim();
+            ioThreads = Integer.parseInt(config.getProperty("ioThreads", "2").trim());
 
         } catch (NullPointerException e) {
             System.err.println("Configuration file has not been found :" + CONFIG_FILE);
@@ -179,62 +375,176 @@ public class CrossServerMain {
     }
 
     /*
-     * Save the server databases: the user database, the order history, the limit
-     * orders and
-     * the stop orders. The information are saved in JSON format periodically and
-     * when the
-     * server is preparing to shut down
+     * Save the server databases: the user database and the snapshot of the order
+     * book. The information are saved in JSON format periodically and when the
+     * server is preparing to shut down. The orders are copied by the matching engine
+     * between two requests, so the book is never read while it is being changed.
+     * The limit and stop orders, the order ID counter and the sequence number of the
+     * last journal record they include are written to a single file, so a crash
+     * never leaves the orders of one snapshot next to the journal sequence of
+     * another one. Once the snapshot has been saved the journal records it includes,
+     * rolled over when it was taken, are discarded. Return true if everything has
+     * been saved
      */
-    private void saveDatabases() {
+    private synchronized boolean saveDatabases() {
+        BookSnapshot snapshot;
+        try {
+            snapshot = matchingEngine.snapshot();
+        } catch (RuntimeException e) {
+            System.err.println("[DB] Error taking the order book snapshot: " + e.getMessage());
+            return false;
+        }
+        // the order IDs assigned before the snapshot are greater than the ones of its orders
+        long nextOrderId = orderIdCounter.get();
+
         // Save the user database
-        saveToFile(USERS_DB, usersDB);
-        // Save the order history
-        saveToFile(ORDER_HISTORY_DB,
-                Map.of("orderIdCounter", orderIdCounter.get(), "trades", orderBook.getOrderHistory()));
-        // Save the limit orders (bid and ask)
-        saveToFile(LIMIT_ORDER_DB, Map.of("limitAskOrders", orderBook.getLimitAskOrders(), "limitBidOrders",
-                orderBook.getLimitBidOrders()));
-        // Save the stop orders (bid and ask)
-        saveToFile(STOP_ORDER_DB,
-                Map.of("stopAskOrders", orderBook.getStopAskOrders(), "stopBidOrders", orderBook.getStopBidOrders()));
+        boolean saved = saveToFile(USERS_DB, usersDB);
+
+        // the trades executed before the snapshot are in the trade store, they must reach the disk before
+        // a snapshot without their orders replaces the old one
+        try {
+            tradeStore.force();
+        } catch (IOException e) {
+            System.err.println("[DB] Error saving the trade store: " + e.getMessage());
+            return false;
+        }
+
+        // Save the order book
+        Map<String, Object> orderBookDB = new LinkedHashMap<>();
+        orderBookDB.put("orderIdCounter", nextOrderId);
+        orderBookDB.put("journalSequence", snapshot.getJournalSequence());
+        orderBookDB.put("lastTradePrice", snapshot.getLastTradePrice());
+        orderBookDB.put("limitAskOrders", snapshot.getLimitAskOrders());
+        orderBookDB.put("limitBidOrders", snapshot.getLimitBidOrders());
+        orderBookDB.put("stopAskOrders", snapshot.getStopAskOrders());
+        orderBookDB.put("stopBidOrders", snapshot.getStopBidOrders());
+        if (!saveToFile(ORDER_BOOK_DB, orderBookDB))
+            return false;
+
+        // the journal records up to the snapshot are not needed any more
+        if (journal != null) {
+            try {
+                journal.discardRolledOver();
+            } catch (IOException e) {
+                System.err.println("[Journal] Error deleting the rolled over journal: " + e.getMessage());
+            }
+        }
+
+        // the files of an older version are not read once the order book has its own file
+        for (String filename : new String[] { ORDER_HISTORY_DB, LIMIT_ORDER_DB, STOP_ORDER_DB }) {
+            File legacyFile = new File(DEFAULT_FILE_PATH, filename);
+            if (legacyFile.exists() && !legacyFile.delete())
+                System.err.println("[DB] Error deleting the old database file \"" + filename + "\"");
+        }
+        return saved;
     }
 
     /*
-     * Save the data structure in the file in JSON format
+     * Save the data structure in the file in JSON format. The data is written to a
+     * temporary file and forced to the disk before it replaces the old one, so a
+     * crash during the save never leaves a truncated database next to the journal.
+     * Return false if the file has not been saved
      */
-    private synchronized void saveToFile(String filename, Map<String, ?> data) {
+    private synchronized boolean saveToFile(String filename, Map<String, ?> data) {
         File dbDirectory = new File(DEFAULT_FILE_PATH);
         // check if the directory exists, otherwise create it
         if (!dbDirectory.exists()) {
             dbDirectory.mkdirs();
         }
         File dataFile = new File(dbDirectory, filename);
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(dataFile))) {
-            // write the information in the data structure to the file in JSON format
-            gson.toJson(data, writer);
+        File temporaryFile = new File(dbDirectory, filename + ".tmp");
+        try {
+            try (FileOutputStream output = new FileOutputStream(temporaryFile);
+                    BufferedWriter writer = new BufferedWriter(
+                            new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                // write the information in the data structure to the file in JSON format
+                gson.toJson(data, writer);
+                writer.flush();
+                output.getFD().sync();
+            }
+            Files.move(temporaryFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(dbDirectory);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving data to file \"" + filename + "\": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * Force the entries of the directory to the disk, so a file moved into it
+     * survives a crash. Some platforms can not open a directory: the move is then as
+     * durable as their file system makes it
+     */
+    private static void forceDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
         } catch (IOException e) {
-            System.err.println("Error saving data to file: " + e.getMessage());
+            // the directory can not be forced on this platform
         }
     }
 
     /*
-     * Load the server databases: the user database, the order history, the limit
-     * orders and
-     * the stop orders. The information are loaded from the JSON files when the
-     * server is
-     * started
+     * Load the server databases: the user database and the snapshot of the order
+     * book. The information are loaded from the JSON files when the server is
+     * started. The order book of an older version is split in the order history, the
+     * limit orders and the stop orders: it is read from its files until the first
+     * snapshot is saved
      */
     private void loadDatabases() {
-        // Save the user database
+        // Load the user database
         loadUserDB(USERS_DB);
-        // Save the order history
+        if (new File(DEFAULT_FILE_PATH, ORDER_BOOK_DB).exists()) {
+            // Load the order book
+            loadOrderBook(ORDER_BOOK_DB);
+            return;
+        }
+        // Load the order history
         loadOrderHistory(ORDER_HISTORY_DB);
-        // Save the limit orders (bid and ask)
+        // Load the limit orders (bid and ask)
         loadLimitOrders(LIMIT_ORDER_DB);
-        // Save the stop orders (bid and ask)
+        // Load the stop orders (bid and ask)
         loadStopOrders(STOP_ORDER_DB);
     }
 
+    /*
+     * Load the snapshot of the order book from the file in JSON format. The journal
+     * is replayed on top of it, so the server does not start if it can not be read,
+     * nor if a level does not fit the price range of the array limit books
+     */
+    private void loadOrderBook(String filename) {
+        File orderBookFile = new File(DEFAULT_FILE_PATH, filename);
+        try (BufferedReader reader = new BufferedReader(new FileReader(orderBookFile))) {
+            Type type = new TypeToken<Map<String, Object>>() {
+            }.getType();
+            Map<String, Object> map = gson.fromJson(reader, type);
+            if (map == null)
+                throw new JsonSyntaxException("empty file");
+
+            // the executed orders are in the trade store, their IDs must not be assigned again
+            orderIdCounter = new AtomicLong(tradeStore.getMaxOrderId() + 1);
+            if (map.containsKey("orderIdCounter")) {
+                orderIdCounter = new AtomicLong(
+                        Math.max(((Number) map.get("orderIdCounter")).longValue(), orderIdCounter.get()));
+            }
+            // the journal records up to this sequence number are included in the snapshot
+            if (map.containsKey("journalSequence")) {
+                snapshotSequence = ((Number) map.get("journalSequence")).longValue();
+            }
+            loadLimitOrders(map);
+            loadStopOrders(map);
+
+            System.out.println("[Configuration loading] State loaded successfully from " + filename);
+        } catch (JsonParseException | IOException e) {
+            System.err.println("[Configuration loading] Error loading the order book from \"" + filename + "\": "
+                    + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            exitOnLevelOutOfRange(filename, e);
+        }
+    }
+
     /*
      * Load the user database from the file in JSON format
      */
@@ -283,8 +593,7 @@ public class CrossServerMain {
         if (!orderHistoryFile.exists()) {
             System.out.println(
                     "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
-            // let create a new file for the user database
-            saveToFile(filename, Map.of("orderIdCounter", 0L, "trades", Collections.EMPTY_LIST));
+            orderIdCounter = new AtomicLong(tradeStore.getMaxOrderId() + 1);
             return;
         }
         // load the order history from the file
@@ -292,11 +601,14 @@ public class CrossServerMain {
 
             JsonObject jsonObjectFile = gson.fromJson(reader, JsonObject.class);
 
-            if (jsonObjectFile == null || !jsonObjectFile.has("trades")) {
+            if (jsonObjectFile == null) {
                 throw new FileNotFoundException();
             }
 
-            // update the order history book
+            // the executed orders are in the trade store, their IDs must not be assigned again
+            orderIdCounter = new AtomicLong(tradeStore.getMaxOrderId() + 1);
+
+            // move the trades saved in JSON format by an older version to the trade store
             if (jsonObjectFile.has("trades")) {
                 // convert the JSON array of trades into a JsonArray
                 JsonArray orderArray = jsonObjectFile.getAsJsonArray("trades");
@@ -328,14 +640,23 @@ public class CrossServerMain {
                 }
                 // set the order id counter to the maximum order id in the order history plus
                 // one
-                orderIdCounter = new AtomicLong(maxOrderId + 1);
-                // set the order history of the order book
-                orderBook.setOrderHistory(orderHistory);
+                orderIdCounter = new AtomicLong(Math.max(maxOrderId + 1, orderIdCounter.get()));
+                // add the order history to the trade store
+                orderBook.importOrderHistory(orderHistory);
+                tradeStore.force();
+                System.out.println("[Configuration loading] " + orderHistory.size()
+                        + " trades moved from \"" + filename + "\" to the trade store");
             }
 
             // set the order id counter
             if (jsonObjectFile.has("orderIdCounter")) {
-                orderIdCounter = new AtomicLong(jsonObjectFile.get("orderIdCounter").getAsLong());
+                orderIdCounter = new AtomicLong(
+                        Math.max(jsonObjectFile.get("orderIdCounter").getAsLong(), orderIdCounter.get()));
+            }
+
+            // the journal records up to this sequence number are included in the databases
+            if (jsonObjectFile.has("journalSequence")) {
+                snapshotSequence = jsonObjectFile.get("journalSequence").getAsLong();
             }
 
             System.out.println("[Configuration loading] State loaded successfully from " + filename);
@@ -343,7 +664,7 @@ public class CrossServerMain {
         } catch (FileNotFoundException e) {
             System.out.println(
                     "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
-            orderIdCounter = new AtomicLong(0);
+            orderIdCounter = new AtomicLong(tradeStore.getMaxOrderId() + 1);
         } catch (JsonSyntaxException e) {
             System.err.println("[Configuration loading] Error loading state from file: " + e.getMessage());
         } catch (IOException e) {
@@ -352,19 +673,17 @@ public class CrossServerMain {
     }
 
     /*
-     * Load the limit (bid and ask) orders from the file in JSON format
+     * Load the limit (bid and ask) orders from the file in JSON format, the server
+     * does not start if a level does not fit the price range of the array limit books
      */
     private void loadLimitOrders(String filename) {
 
         String filePath = new StringBuilder(DEFAULT_FILE_PATH).append(filename).toString();
         File limitOrderFile = new File(filePath);
-        // check if the file exists otherwise create a new file
+        // check if the file exists, a new server has no limit orders
         if (!limitOrderFile.exists()) {
             System.out.println(
                     "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
-            // let create a new file for the user database
-            saveToFile(filename,
-                    Map.of("limitAskOrders", Collections.EMPTY_MAP, "limitBidOrders", Collections.EMPTY_MAP));
             return;
         }
         // load the limit orders from the file
@@ -375,71 +694,93 @@ public class CrossServerMain {
             Map<String, Object> map = gson.fromJson(reader, type);
 
             if (map != null) {
-                // define the type of the limit order list for the json deserialization
-                Type orderListType = new TypeToken<ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>>>() {
-                }.getType();
+                loadLimitOrders(map);
+                System.out.println("[Configuration loading] State loaded successfully from " + filename);
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println(
+                    "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
+        } catch (JsonSyntaxException e) {
+            System.err.println("[!] Error loading state from file: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("[!] Unexpected error while loading state: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            exitOnLevelOutOfRange(filename, e);
+        }
+    }
 
-                // used to determine the maximum order id in the limit orders
-                long maxOrderId = 0;
+    /*
+     * Stop the server whose saved limit orders have a price level that the array
+     * limit books can not hold: dropping the level would lose its orders, so the
+     * price range of the books must be changed in the configuration first
+     */
+    private static void exitOnLevelOutOfRange(String filename, IllegalArgumentException e) {
+        System.err.println("[Configuration loading] A limit order level of \"" + filename
+                + "\" does not fit the array limit books (arrayBookMinPrice, arrayBookLevels, arrayBookTickSize): "
+                + e.getMessage());
+        System.exit(1);
+    }
 
-                // load the limit ask orders
-                if (map.containsKey("limitAskOrders")) {
-                    // extract the limit ask orders from the JSON file
-                    ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitAskOrdersFromJsonFile = gson
-                            .fromJson(gson.toJson(map.get("limitAskOrders")), orderListType);
-
-                    synchronized (limitAskOrdersFromJsonFile) {
-                        for (Map.Entry<Long, ConcurrentLinkedQueue<LimitOrder>> entry : limitAskOrdersFromJsonFile
-                                .entrySet()) {
-                            ConcurrentLinkedQueue<LimitOrder> orders = entry.getValue();
-                            // extract the maximum order id in the limit ask orders
-                            maxOrderId = Math.max(orders.stream().mapToLong(Order::getOrderId).max().orElse(0),
-                                    maxOrderId);
-                        }
+    /*
+     * Load the limit (bid and ask) orders from the map read from a database file
+     */
+    private void loadLimitOrders(Map<String, Object> map) {
+        // define the type of the limit order list for the json deserialization
+        Type orderListType = new TypeToken<ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>>>() {
+        }.getType();
+
+        // used to determine the maximum order id in the limit orders
+        long maxOrderId = 0;
+
+        // load the limit ask orders
+        if (map.containsKey("limitAskOrders")) {
+            // extract the limit ask orders from the JSON file
+            ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> limitAskOrdersFromJsonFile = gson
+                    .fromJson(gson.toJson(map.get("limitAskOrders")), orderListType);
+
+            synchronized (limitAskOrdersFromJsonFile) {
+                for (Map.Entry<Long, PriceLevel<LimitOrder>> entry : limitAskOrdersFromJsonFile
+                        .entrySet()) {
+                    PriceLevel<LimitOrder> orders = entry.getValue();
+                    // extract the maximum order id in the limit ask orders
+                    for (Order order : orders) {
+                        maxOrderId = Math.max(order.getOrderId(), maxOrderId);
                     }
-
-                    orderBook.setLimitAskOrders(limitAskOrdersFromJsonFile);
                 }
+            }
 
-                // load the limit bid orders
-                if (map.containsKey("limitBidOrders")) {
+            orderBook.setLimitAskOrders(limitAskOrdersFromJsonFile);
+        }
+
+        // load the limit bid orders
+        if (map.containsKey("limitBidOrders")) {
 
-                    // deserialize the limit bid orders from the JSON file
-                    ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> deserializedMap = gson
-                            .fromJson(gson.toJson(map.get("limitBidOrders")), orderListType);
+            // deserialize the limit bid orders from the JSON file
+            ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> deserializedMap = gson
+                    .fromJson(gson.toJson(map.get("limitBidOrders")), orderListType);
 
-                    // create a new concurrent skip list map to store the limit bid orders
-                    ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitBidOrdersFromJsonFile = new ConcurrentSkipListMap<>(
-                            Comparator.reverseOrder());
+            // create a new concurrent skip list map to store the limit bid orders
+            ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> limitBidOrdersFromJsonFile = new ConcurrentSkipListMap<>(
+                    Comparator.reverseOrder());
 
-                    // copy the limit bid orders from the deserialized map to the new map
-                    limitBidOrdersFromJsonFile.putAll(deserializedMap);
+            // copy the limit bid orders from the deserialized map to the new map
+            limitBidOrdersFromJsonFile.putAll(deserializedMap);
 
-                    synchronized (limitBidOrdersFromJsonFile) {
-                        for (Map.Entry<Long, ConcurrentLinkedQueue<LimitOrder>> entry : limitBidOrdersFromJsonFile
-                                .entrySet()) {
-                            ConcurrentLinkedQueue<LimitOrder> orders = entry.getValue();
-                            // extract the maximum order id in the limit ask orders
-                            maxOrderId = Math.max(orders.stream().mapToLong(Order::getOrderId).max().orElse(0),
-                                    maxOrderId);
-                        }
+            synchronized (limitBidOrdersFromJsonFile) {
+                for (Map.Entry<Long, PriceLevel<LimitOrder>> entry : limitBidOrdersFromJsonFile
+                        .entrySet()) {
+                    PriceLevel<LimitOrder> orders = entry.getValue();
+                    // extract the maximum order id in the limit ask orders
+                    for (Order order : orders) {
+                        maxOrderId = Math.max(order.getOrderId(), maxOrderId);
                     }
-                    orderBook.setLimitBidOrders(limitBidOrdersFromJsonFile);
                 }
-
-                // set the order id counter to the maximum order id in the limit orders plus one
-                orderIdCounter = new AtomicLong(Math.max(maxOrderId, orderIdCounter.get() - 1) + 1);
-
-                System.out.println("[Configuration loading] State loaded successfully from " + filename);
             }
-        } catch (FileNotFoundException e) {
-            System.out.println(
-                    "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
-        } catch (JsonSyntaxException e) {
-            System.err.println("[!] Error loading state from file: " + e.getMessage());
-        } catch (IOException e) {
-            System.err.println("[!] Unexpected error while loading state: " + e.getMessage());
+            orderBook.setLimitBidOrders(limitBidOrdersFromJsonFile);
         }
+
+        // set the order id counter to the maximum order id in the limit orders plus one
+        orderIdCounter = new AtomicLong(Math.max(maxOrderId, orderIdCounter.get() - 1) + 1);
     }
 
     /*
@@ -449,13 +790,10 @@ public class CrossServerMain {
 
         String filePath = new StringBuilder(DEFAULT_FILE_PATH).append(filename).toString();
         File stopOrderFile = new File(filePath);
-        // check if the file exists otherwise create a new file
+        // check if the file exists, a new server has no stop orders
         if (!stopOrderFile.exists()) {
             System.out.println(
                     "[Configuration loading] No previous state file found, starting fresh of \"" + filename + "\"");
-            // let create a new file for the user database
-            saveToFile(filename,
-                    Map.of("stopAskOrders", Collections.EMPTY_MAP, "stopBidOrders", Collections.EMPTY_MAP));
             return;
         }
         // load the stop orders from the file
@@ -465,54 +803,7 @@ public class CrossServerMain {
             }.getType();
             Map<String, Object> map = gson.fromJson(reader, type);
             if (map != null) {
-                // define the type of the limit order list for the json deserialization
-                Type orderListType = new TypeToken<ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>>>() {
-                }.getType();
-
-                // used to determine the maximum order id in the limit orders
-                long maxOrderId = 0;
-
-                // load the stop ask orders
-                if (map.containsKey("stopAskOrders")) {
-                    // extract the limit ask orders from the JSON file
-                    ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopAskOrdersFromJsonFile = gson
-                            .fromJson(gson.toJson(map.get("stopAskOrders")), orderListType);
-
-                    synchronized (stopAskOrdersFromJsonFile) {
-                        for (Map.Entry<Long, ConcurrentLinkedQueue<StopOrder>> entry : stopAskOrdersFromJsonFile
-                                .entrySet()) {
-                            ConcurrentLinkedQueue<StopOrder> orders = entry.getValue();
-                            // extract the maximum order id in the limit ask orders
-                            maxOrderId = Math.max(orders.stream().mapToLong(Order::getOrderId).max().orElse(0),
-                                    maxOrderId);
-                        }
-                    }
-
-                    orderBook.setStopAskOrders(stopAskOrdersFromJsonFile);
-                }
-
-                // load the stop bid orders
-                if (map.containsKey("stopBidOrders")) {
-                    // extract the limit ask orders from the JSON file
-                    ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopBidOrdersFromJsonFile = gson
-                            .fromJson(gson.toJson(map.get("stopBidOrders")), orderListType);
-
-                    synchronized (stopBidOrdersFromJsonFile) {
-                        for (Map.Entry<Long, ConcurrentLinkedQueue<StopOrder>> entry : stopBidOrdersFromJsonFile
-                                .entrySet()) {
-                            ConcurrentLinkedQueue<StopOrder> orders = entry.getValue();
-                            // extract the maximum order id in the limit ask orders
-                            maxOrderId = Math.max(orders.stream().mapToLong(Order::getOrderId).max().orElse(0),
-                                    maxOrderId);
-                        }
-                    }
-
-                    orderBook.setStopBidOrders(stopBidOrdersFromJsonFile);
-                }
-
-                // set the order id counter to the maximum order id in the limit orders plus one
-                orderIdCounter = new AtomicLong(Math.max(maxOrderId, orderIdCounter.get() - 1) + 1);
-
+                loadStopOrders(map);
                 System.out.println("[Configuration loading] State loaded successfully from " + filename);
             }
         } catch (FileNotFoundException e) {
@@ -525,6 +816,66 @@ public class CrossServerMain {
         }
     }
 
+    /*
+     * Load the stop (bid and ask) orders from the map read from a database file
+     */
+    private void loadStopOrders(Map<String, Object> map) {
+        // define the type of the limit order list for the json deserialization
+        Type orderListType = new TypeToken<ConcurrentSkipListMap<Long, PriceLevel<StopOrder>>>() {
+        }.getType();
+
+        // used to determine the maximum order id in the limit orders
+        long maxOrderId = 0;
+
+        // load the stop ask orders
+        if (map.containsKey("stopAskOrders")) {
+            // extract the limit ask orders from the JSON file
+            ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> stopAskOrdersFromJsonFile = gson
+                    .fromJson(gson.toJson(map.get("stopAskOrders")), orderListType);
+
+            synchronized (stopAskOrdersFromJsonFile) {
+                for (Map.Entry<Long, PriceLevel<StopOrder>> entry : stopAskOrdersFromJsonFile
+                        .entrySet()) {
+                    PriceLevel<StopOrder> orders = entry.getValue();
+                    // extract the maximum order id in the limit ask orders
+                    for (Order order : orders) {
+                        maxOrderId = Math.max(order.getOrderId(), maxOrderId);
+                    }
+                }
+            }
+
+            orderBook.setStopAskOrders(stopAskOrdersFromJsonFile);
+        }
+
+        // load the stop bid orders
+        if (map.containsKey("stopBidOrders")) {
+            // extract the limit ask orders from the JSON file
+            ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> stopBidOrdersFromJsonFile = gson
+                    .fromJson(gson.toJson(map.get("stopBidOrders")), orderListType);
+
+            synchronized (stopBidOrdersFromJsonFile) {
+                for (Map.Entry<Long, PriceLevel<StopOrder>> entry : stopBidOrdersFromJsonFile
+                        .entrySet()) {
+                    PriceLevel<StopOrder> orders = entry.getValue();
+                    // extract the maximum order id in the limit ask orders
+                    for (Order order : orders) {
+                        maxOrderId = Math.max(order.getOrderId(), maxOrderId);
+                    }
+                }
+            }
+
+            orderBook.setStopBidOrders(stopBidOrdersFromJsonFile);
+        }
+
+        // load the price of the last trade, which decides whether a new stop order is triggered
+        if (map.containsKey("lastTradePrice")) {
+            orderBook.setLastTradePrice(((Number) map.get("lastTradePrice")).longValue());
+        }
+
+        // set the order id counter to the maximum order id in the limit orders plus one
+        orderIdCounter = new AtomicLong(Math.max(maxOrderId, orderIdCounter.get() - 1) + 1);
+    }
+
     /*
      * Hash the password using the SHA-256 algorithm and return the hashed password
      */
@@ -547,8 +898,26 @@ public class CrossServerMain {
         }
     }
 
-    // start the server
+    /*
+     * Start the server: with the non-blocking front end the I/O threads serve the
+     * connections and the thread pool handles the requests, with the blocking one
+     * every connection takes a thread of the pool
+     */
     public void start() throws IOException {
+        if ("nio".equals(serverMode)) {
+            nioServer = new NioServer(this, new InetSocketAddress(serverAddress, serverPort), ioThreads, threadPool);
+            nioServer.start();
+            System.out.println("[!] Server started on port " + serverPort + ". Address: " + serverAddress + " ("
+                    + ioThreads + " I/O threads)");
+            try {
+                nioServer.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        serverSocket = new ServerSocket(serverPort, 0, serverAddress);
         System.out.println("[!] Server started on port " + serverPort + ". Address: " + serverSocket.getInetAddress());
 
         while (true) {
@@ -565,14 +934,14 @@ public class CrossServerMain {
     public String register(JsonObject request) {
         // check if the request contains the operation and values fields
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("response", 103, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(103, "Missing parameters");
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         // check if the request contains the username and password fields in the values
         // object
         if (!values.has("username") || !values.has("password")) {
-            return gson.toJson(Map.of("response", 103, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(103, "Missing parameters");
         }
 
         String username = values.get("username").getAsString();
@@ -580,21 +949,21 @@ public class CrossServerMain {
 
         // check if the username and password are empty
         if (username.isEmpty() || password.isEmpty()) {
-            return gson.toJson(Map.of("response", 103, "errorMessage", "User parameter not found"));
+            return ResponseWriter.response(103, "User parameter not found");
         }
 
         // check if the password matches the pattern
         if (!checkPassword(password)) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid password"));
+            return ResponseWriter.response(101, "Invalid password");
         }
 
         // check if the username is already taken
         if (usersDB.containsKey(username)) {
-            return gson.toJson(Map.of("response", 102, "errorMessage", "Username not available"));
+            return ResponseWriter.response(102, "Username not available");
         }
         usersDB.put(username, hashPassword(password));
 
-        return gson.toJson(Map.of("response", 100, "errorMessage", "OK"));
+        return ResponseWriter.response(100, "OK");
     }
 
     /*
@@ -622,13 +991,13 @@ public class CrossServerMain {
      */
     public String updateCredentials(JsonObject request) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("response", 105, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(105, "Missing parameters");
         }
 
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("username") || !values.has("old_password") || !values.has("new-password")) {
-            return gson.toJson(Map.of("response", 105, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(105, "Missing parameters");
         }
         String username = values.get("username").getAsString();
         String oldPassword = values.get("old_password").getAsString();
@@ -638,42 +1007,41 @@ public class CrossServerMain {
 
         // check if the new password matches the pattern
         if (!checkPassword(newPassword)) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid new password"));
+            return ResponseWriter.response(101, "Invalid new password");
         }
         // check if the username exists
         if (user_password == null) {
-            return gson.toJson(Map.of("response", 102, "errorMessage", "Non-existent username"));
+            return ResponseWriter.response(102, "Non-existent username");
         }
         // check if the old password matches the stored password
         if (!user_password.equals(hashPassword(oldPassword))) {
-            return gson.toJson(Map.of("response", 102, "errorMessage", "Username/old password mismatch"));
+            return ResponseWriter.response(102, "Username/old password mismatch");
         }
         // check if the new password is equal to the old password
         if (newPassword.equals(oldPassword)) {
-            return gson.toJson(Map.of("response", 103, "errorMessage", "New password equal to the old one"));
+            return ResponseWriter.response(103, "New password equal to the old one");
         }
 
         if (sessionManager.isUserLoggedIn(username)) {
-            return gson.toJson(Map.of("response", 104, "errorMessage", "User currently logged in"));
+            return ResponseWriter.response(104, "User currently logged in");
         }
 
         usersDB.put(username, hashPassword(newPassword)); // update the user's password
 
-        return gson.toJson(Map.of("response", 100, "errorMessage", "Password updated successfully"));
+        return ResponseWriter.response(100, "Password updated successfully");
     }
 
     /*
      * User login the method returns a map containing the response code, the error
      * message and the maximum user session which will be forwarded to the client,
-     * moreover it saves the username for let the server "UserHandler" to manage the
-     * user
-     * connection and update the server when something happends to the user
-     * connection.
-     * The "UserHandler" will send the response to the client according to the
+     * moreover it returns the session of the user, which the "RequestHandler" binds
+     * to the user connection: the requests of the connection are made for that
+     * session, and the connection is closed when the session expires.
+     * The "RequestHandler" will send the response to the client according to the
      * format in the "handleRequest" method
      */
 
-    public Map<String, Object> login(JsonObject request, UserHandler activeConnection) {
+    public Map<String, Object> login(JsonObject request, RequestHandler activeConnection) {
 
         if (!request.has("operation") || !request.has("values")) {
             return Map.of("response", 103, "errorMessage", "Missing parameters");
@@ -705,53 +1073,57 @@ public class CrossServerMain {
             return Map.of("response", 101, "errorMessage", "Username/password mismatch");
         }
 
-        // Start user session
-        sessionManager.loginUser(username);
+        // Start user session, when it expires the user is no longer notified and its connection is closed. The
+        // address of the expired session is removed only if a new session of the user has not replaced it
+        Session session = sessionManager.loginUser(username, expired -> {
+            notifier.unregisterUdpClient(username, expired.getUdpAddress());
+            activeConnection.expire(expired);
+        });
+        if (session == null) {
+            return Map.of("response", 102, "errorMessage", "User already logged in");
+        }
 
         // // Save the user connection
         // activeUserConnections.put(username, activeConnection);
 
-        return Map.of("userId", username, "session", maxSessionTime, "response", 100, "errorMessage", "OK");
+        return Map.of("userSession", session, "session", maxSessionTime, "response", 100, "errorMessage", "OK");
     }
 
     /*
      * User logout the method returns a JSON string containing the response code and
-     * the error message to be forwarded to the client
+     * the error message to be forwarded to the client. Only the user logged in
+     * through the connection (whose session is given, null if none) can log out
      */
-    public String logout(JsonObject request, UserHandler activeConnection) {
+    public String logout(JsonObject request, Session session) {
 
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(101, "Missing parameters");
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("username")) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(101, "Missing parameters");
         }
         String username = values.get("username").getAsString();
 
-        // check if the user is already logged in
-        if (!sessionManager.isUserLoggedIn(username)) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "User not logged in"));
+        // check if the user is logged in through this connection
+        if (session == null || !session.getUsername().equals(username)) {
+            return ResponseWriter.response(101, "User not logged in");
         }
 
         // check if the user exists
         if (usersDB.get(username) == null) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Non existent username"));
-        }
-
-        if (!sessionManager.isUserLoggedIn(username)) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "User is not logged in"));
+            return ResponseWriter.response(101, "Non existent username");
         }
 
         // logout the user
-        sessionManager.logoutUser(username);
+        sessionManager.logoutUser(session);
         // activeUserConnections.remove(username);
 
-        // unregister the user from the UDP notifier
-        notifier.unregisterUdpClient(username);
+        // unregister the address of the session from the UDP notifier
+        notifier.unregisterUdpClient(username, session.getUdpAddress());
 
-        return gson.toJson(Map.of("response", 100, "errorMessage", "OK"));
+        return ResponseWriter.response(100, "OK");
     }
 
     /*
@@ -759,41 +1131,66 @@ public class CrossServerMain {
      * JSON string containing the order ID (or -1 in case of error) to be forwarded
      * to the client
      */
-    public String handleLimitOrderRequest(JsonObject request, Socket clientSocket) {
+    public String handleLimitOrderRequest(JsonObject request, Session session, InetAddress clientAddress) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("type") || !values.has("size") || !values.has("price") || !values.has("userId")
                 || !values.has("udpPort")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
 
-        String type = values.get("type").getAsString();
+        Side type = Side.fromString(values.get("type").getAsString());
         long size = values.get("size").getAsLong();
         long price = values.get("price").getAsLong();
+        int udpPort = values.get("udpPort").getAsInt();
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.orderId(-1); // error: not logged in as the user of the order
+        }
 
-        // check if the type, size and price are valid
-        if ((!type.equals("bid") && !type.equals("ask")) || size <= 0 || price <= 0) {
-            return gson.toJson(Map.of("orderId", -1)); // error
+        long orderId = insertLimitOrder(session, clientAddress, udpPort, type, size, price);
+        if (orderId == -1) {
+            return ResponseWriter.orderId(-1); // error
         }
+        ExecutionReport report = matchingEngine.getExecutionReport();
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        ResponseWriter response = ResponseWriter.start().field("orderId", orderId).field("newUserSession",
+                updatedUserSessionTime);
+        if (report.isExecuted())
+            response.fills(report);
+        return response.end();
+    }
 
-        // limit order creation
-        String userId = values.get("userId").getAsString();
+    /*
+     * Insert the limit order of the session in the order book, matching it against
+     * the opposite book first, and return its order ID or -1 if the order is not
+     * valid. The fills are in the execution report of the calling thread. The
+     * requests of both the JSON and the binary protocol end up here
+     */
+    public long insertLimitOrder(Session session, InetAddress clientAddress, int udpPort, Side type, long size,
+            long price) {
+        // check if the type, size and price are valid
+        if (type == null || size <= 0 || price <= 0) {
+            return -1;
+        }
 
-        LimitOrder order = new LimitOrder(orderIdCounter.getAndIncrement(), type, size, price);
-        order.setUserId(userId);
+        // check if the limit book can hold the price (the array book has a fixed price range)
+        if (!orderBook.acceptsLimitPrice(type, price)) {
+            return -1;
+        }
 
-        // get the user's UDP port for notifications
-        int udpPort = values.get("udpPort").getAsInt();
+        // limit order creation
+        long orderId = orderIdCounter.getAndIncrement();
 
         // Register the user's UDP port for notifications
-        notifier.registerUdpClient(userId, clientSocket.getInetAddress(), udpPort);
+        registerUdpPort(session, clientAddress, udpPort);
 
-        orderBook.insertLimitOrder(order); // insert the order in the order book
-        long updatedUserSessionTime = sessionManager.updateUserActivity(userId); // update user activity
-        return gson.toJson(Map.of("orderId", order.getOrderId(), "newUserSession", updatedUserSessionTime));
+        // insert the order in the order book, matching it against the opposite book first
+        matchingEngine.insertLimitOrder(orderId, type, size, price, session.getUsername());
+        return orderId;
     }
 
     /*
@@ -801,36 +1198,77 @@ public class CrossServerMain {
      * a JSON string containing the order ID (or -1 in case of error) to be
      * forwarded to the client
      */
-    public String handleMarketOrderRequest(JsonObject request, Socket clientSocket) {
+    public String handleMarketOrderRequest(JsonObject request, Session session, InetAddress clientAddress) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("type") || !values.has("size") || !values.has("userId") || !values.has("udpPort")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
 
-        String type = values.get("type").getAsString();
+        Side type = Side.fromString(values.get("type").getAsString());
 
         // market order creation
         long size = values.get("size").getAsLong();
-        String userId = values.get("userId").getAsString();
 
-        if ((!type.equals("bid") && !type.equals("ask")) || size <= 0) {
-            return gson.toJson(Map.of("orderId", -1)); // error
-        }
+        // optional maximum distance from the best price at which the order can be executed
+        long maxSlippage = values.has("maxSlippage") ? values.get("maxSlippage").getAsLong()
+                : OrderBook.NO_SLIPPAGE_LIMIT;
         int udpPort = values.get("udpPort").getAsInt();
 
-        // Register the user's UDP port for notifications
-        notifier.registerUdpClient(userId, clientSocket.getInetAddress(), udpPort);
+        if (!isValidMarketOrder(type, size, maxSlippage)) {
+            return ResponseWriter.orderId(-1); // error
+        }
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.orderId(-1); // error: not logged in as the user of the order
+        }
+        long orderId = insertMarketOrder(session, clientAddress, udpPort, type, size, maxSlippage);
+        ExecutionReport report = matchingEngine.getExecutionReport();
+
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        if (orderId == -1)
+            return ResponseWriter.start().field("orderId", -1).field("newUserSession", updatedUserSessionTime).end();
 
-        // insert the order in the order book and return its identifier
-        long executedOrderid = orderBook.insertMarketOrder(orderIdCounter.getAndIncrement(), type, size, userId);
+        return ResponseWriter.start().field("orderId", orderId).field("newUserSession", updatedUserSessionTime)
+                .fills(report).end();
 
-        long updatedUserSessionTime = sessionManager.updateUserActivity(userId); // update user activity
-        return gson.toJson(Map.of("orderId", executedOrderid, "newUserSession", updatedUserSessionTime));
+    }
 
+    // Check the parameters of a market order, the maximum slippage may be NO_SLIPPAGE_LIMIT
+    private static boolean isValidMarketOrder(Side type, long size, long maxSlippage) {
+        return type != null && size > 0 && (maxSlippage >= 0 || maxSlippage == OrderBook.NO_SLIPPAGE_LIMIT);
+    }
+
+    /*
+     * Execute the market order of the session sweeping the book in a single engine
+     * operation and return its order ID, or -1 if the order is not valid or has not
+     * been executed. The fills are in the execution report of the calling thread
+     */
+    public long insertMarketOrder(Session session, InetAddress clientAddress, int udpPort, Side type, long size,
+            long maxSlippage) {
+        if (!isValidMarketOrder(type, size, maxSlippage)) {
+            return -1;
+        }
+
+        // Register the user's UDP port for notifications
+        registerUdpPort(session, clientAddress, udpPort);
+
+        ExecutionReport report = matchingEngine.insertMarketOrder(orderIdCounter.getAndIncrement(), type, size,
+                maxSlippage, session.getUsername());
+        return report.isExecuted() ? report.getOrderId() : -1;
+    }
+
+    /*
+     * Create one side of the limit order book according to the configuration: an
+     * array of price levels for a dense price range, a skip list for any price
+     */
+    private LimitBook createLimitBook(boolean bid) {
+        if (arrayLimitBook)
+            return new ArrayLimitBook(bid, arrayBookMinPrice, arrayBookLevels, arrayBookTickSize);
+        return new SkipListLimitBook(bid);
     }
 
     /*
@@ -838,37 +1276,58 @@ public class CrossServerMain {
      * JSON string containing the order ID (or -1 in case of error) to be forwarded
      * to the client
      */
-    public String handleStopOrderRequest(JsonObject request, Socket clientSocket) {
+    public String handleStopOrderRequest(JsonObject request, Session session, InetAddress clientAddress) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("type") || !values.has("size") || !values.has("price") || !values.has("userId")
                 || !values.has("udpPort")) {
-            return gson.toJson(Map.of("orderId", -1)); // Errore
+            return ResponseWriter.orderId(-1); // Errore
         }
 
-        String type = values.get("type").getAsString();
+        Side type = Side.fromString(values.get("type").getAsString());
         long size = values.get("size").getAsLong();
         long price = values.get("price").getAsLong();
-        String userId = values.get("userId").getAsString();
+        int udpPort = values.get("udpPort").getAsInt();
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.orderId(-1); // error: not logged in as the user of the order
+        }
 
-        if (!type.equals("bid") && !type.equals("ask")) {
-            return gson.toJson(Map.of("orderId", -1)); // Error
+        long orderId = insertStopOrder(session, clientAddress, udpPort, type, size, price);
+        if (orderId == -1) {
+            return ResponseWriter.orderId(-1); // Error
+        }
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        return ResponseWriter.start().field("orderId", orderId).field("newUserSession", updatedUserSessionTime).end();
+    }
+
+    /*
+     * Insert the stop order of the session in the order book and return its order
+     * ID, or -1 if the order is not valid
+     */
+    public long insertStopOrder(Session session, InetAddress clientAddress, int udpPort, Side type, long size,
+            long price) {
+        if (!isValidStopOrder(type, size, price)) {
+            return -1;
         }
-        int udpPort = values.get("udpPort").getAsInt();
 
         // Register the user's UDP port for notifications
-        notifier.registerUdpClient(userId, clientSocket.getInetAddress(), udpPort);
+        registerUdpPort(session, clientAddress, udpPort);
 
         // stop order creation
-        StopOrder stopOrder = new StopOrder(orderIdCounter.getAndIncrement(), type, size, price);
-        stopOrder.setUserId(userId);
+        long orderId = orderIdCounter.getAndIncrement();
+
+        // insert the order in the order book
+        matchingEngine.insertStopOrder(orderId, type, size, price, session.getUsername());
+        return orderId;
+    }
 
-        orderBook.insertStopOrder(stopOrder); // insert the order in the order book
-        long updatedUserSessionTime = sessionManager.updateUserActivity(userId); // update user activity
-        return gson.toJson(Map.of("orderId", stopOrder.getOrderId(), "newUserSession", updatedUserSessionTime));
+    // Check the parameters of a stop order, which waits in the book until its stop price is reached
+    private static boolean isValidStopOrder(Side type, long size, long price) {
+        return type != null && size > 0 && price > 0;
     }
 
     /*
@@ -876,60 +1335,348 @@ public class CrossServerMain {
      * containing the order ID (or -1 in case of error) to be forwarded to the
      * client
      */
-    public String cancelOrder(JsonObject request) {
+    public String cancelOrder(JsonObject request, Session session) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("orderId", -1)); // error: missing parameters
+            return ResponseWriter.orderId(-1); // error: missing parameters
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("orderId") || !values.has("userId")) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(101, "Missing parameters");
         }
-        String userId = values.get("userId").getAsString();
         long orderId = values.get("orderId").getAsLong();
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.response(101, "User not logged in");
+        }
 
-        Order order = orderBook.getOrder(orderId);
-        // check if the order exists
-        if (order == null)
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Order does not exist"));
+        long cancelledOrderId = cancelOrder(session.getUsername(), orderId);
+        String orderError = orderErrorOf(cancelledOrderId);
+        if (orderError != null)
+            return ResponseWriter.response(101, orderError);
 
-        // get the user id of the order
-        String orderUserId = order.getUserId();
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+
+        // order has been deleted
+        return ResponseWriter.start().field("response", 100).field("errorMessage", "OK")
+                .field("newUserSession", updatedUserSessionTime).end();
+    }
+
+    /*
+     * Cancel the order of the user, return the order ID or the error code of the
+     * order book. The ownership and the status of the order are checked by the
+     * matching engine together with the cancellation
+     */
+    public long cancelOrder(String userId, long orderId) {
+        return checkExecutedOrder(orderId, userId, matchingEngine.cancelOrder(orderId, userId));
+    }
+
+    /*
+     * Return the outcome of a cancellation or a modification given by the matching
+     * engine, looking up among the older executed orders an order that the engine
+     * has not found. The engine only searches the orders in memory, so an old or
+     * made-up order ID never makes it read the disk: the trade segments of the older
+     * days are read here, by the thread of the request
+     */
+    private long checkExecutedOrder(long orderId, String userId, long outcome) {
+        if (outcome != OrderBook.ORDER_NOT_FOUND)
+            return outcome;
+        return orderBook.findExecutedOrder(orderId, userId);
+    }
+
+    /*
+     * Return the session a request is made for: the session bound to the connection
+     * (null if none), or null if the request names another user
+     */
+    private static Session sessionOf(JsonObject values, Session session) {
+        if (session == null || !session.getUsername().equals(values.get("userId").getAsString()))
+            return null;
+        return session;
+    }
+
+    /*
+     * Record the activity of the user of a query and return the new time of its
+     * session, -1 if the query is not made for the session of the connection (the
+     * queries are answered whatever the user)
+     */
+    private static long updateActivity(JsonObject values, Session session) {
+        session = sessionOf(values, session);
+        return session == null ? -1 : session.updateActivity();
+    }
+
+    /*
+     * Register the UDP port of the session for the notifications of its orders.
+     * The port is kept in the session, so the notifier is updated only when the
+     * client gives a new one
+     */
+    private void registerUdpPort(Session session, InetAddress clientAddress, int udpPort) {
+        if (session.getUdpPort() == udpPort)
+            return;
+        session.setUdpAddress(notifier.registerUdpClient(session.getUsername(), clientAddress, udpPort));
+    }
+
+    /*
+     * Return the error message of a cancellation or a modification that failed
+     * (response code 101), null if the order has been cancelled or modified
+     */
+    private String orderErrorOf(long orderId) {
+        // check if the order exists
+        if (orderId == OrderBook.ORDER_NOT_FOUND)
+            return "Order does not exist";
         // check if the order belongs to the user
-        if (orderUserId == null || !order.getUserId().equals(userId))
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Order belongs to different user"));
-        if (order.isExecuted())
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Order has been executed"));
+        if (orderId == OrderBook.ORDER_OF_ANOTHER_USER)
+            return "Order belongs to different user";
+        if (orderId == OrderBook.ORDER_EXECUTED)
+            return "Order has been executed";
+        if (orderId == OrderBook.ORDER_NOT_MODIFIABLE)
+            return "Only limit orders can be modified";
+        if (orderId == OrderBook.PRICE_OUT_OF_RANGE)
+            return "Price out of the range of the book";
+        return null;
+    }
 
-        orderBook.cancelOrder(orderId);
+    /*
+     * Handle the client request to change the size and the price of a resting limit
+     * order and return a JSON string with the response code to be forwarded to the
+     * client. The order keeps its ID and is never absent from the book: a smaller
+     * size at the same price keeps its time priority, a new price can execute it
+     * against the opposite book, whose fills are in the response
+     */
+    public String modifyOrder(JsonObject request, Session session) {
+        if (!request.has("operation") || !request.has("values")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        JsonObject values = request.get("values").getAsJsonObject();
 
-        long updatedUserSessionTime = sessionManager.updateUserActivity(userId); // update user activity
+        if (!values.has("orderId") || !values.has("userId") || !values.has("size") || !values.has("price")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        long orderId = values.get("orderId").getAsLong();
+        long size = values.get("size").getAsLong();
+        long price = values.get("price").getAsLong();
+        if (size <= 0 || price <= 0) {
+            return ResponseWriter.response(101, "Invalid size or price");
+        }
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.response(101, "User not logged in");
+        }
 
-        return gson.toJson(Map.of("response", 100, "errorMessage", "OK", "newUserSession", updatedUserSessionTime)); // order
-                                                                                                                     // has
-                                                                                                                     // been
-                                                                                                                     // deleted
+        long modifiedOrderId = modifyOrder(session.getUsername(), orderId, size, price);
+        String orderError = orderErrorOf(modifiedOrderId);
+        if (orderError != null)
+            return ResponseWriter.response(101, orderError);
+
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        ExecutionReport report = matchingEngine.getExecutionReport();
+        ResponseWriter response = ResponseWriter.start().field("response", 100).field("errorMessage", "OK")
+                .field("orderId", orderId).field("newUserSession", updatedUserSessionTime);
+        if (report.isExecuted())
+            response.fills(report);
+        return response.end();
+    }
+
+    /*
+     * Change the size and the price of the resting limit order of the user, return
+     * the order ID or the error code of the order book. The ownership and the status
+     * of the order are checked by the matching engine together with the modification,
+     * the fills are in the execution report of the calling thread
+     */
+    public long modifyOrder(String userId, long orderId, long size, long price) {
+        return checkExecutedOrder(orderId, userId, matchingEngine.modifyOrder(orderId, size, price, userId));
+    }
+
+    // Return the execution report of the last order request of the calling thread
+    public ExecutionReport getExecutionReport() {
+        return matchingEngine.getExecutionReport();
+    }
+
+    /*
+     * Handle the client request to apply several orders and cancellations as one
+     * unit: the valid ones are applied by the matching engine one after the other,
+     * with no order of another client in between, and the response holds the result
+     * of every item in the order of the request, in the same format as the response
+     * of the single operation (an invalid item gets its error and is not applied)
+     *
+     * The client JSON format of the request is the following: { "operation": "batch",
+     * "values": { "userId": STRING, "udpPort": INT, "orders": [ { "operation":
+     * "insertLimitOrder" | "insertMarketOrder" | "insertStopOrder" | "cancelOrder" | "modifyOrder",
+     * "values": { ... } }, ... ] } }
+     */
+    public String handleBatchRequest(JsonObject request, Session session, InetAddress clientAddress) {
+        if (!request.has("operation") || !request.has("values")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        JsonObject values = request.get("values").getAsJsonObject();
+
+        if (!values.has("userId") || !values.has("udpPort") || !values.has("orders")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        session = sessionOf(values, session);
+        if (session == null) {
+            return ResponseWriter.response(101, "User not logged in");
+        }
+        String userId = session.getUsername();
+        JsonArray items = values.get("orders").getAsJsonArray();
+        if (items.size() == 0 || items.size() > maxBatchSize) {
+            return ResponseWriter.response(101, "A batch holds from 1 to " + maxBatchSize + " orders");
+        }
+
+        // Register the user's UDP port for notifications
+        registerUdpPort(session, clientAddress, values.get("udpPort").getAsInt());
+
+        // build the engine request of every valid item, the invalid ones get their error in the response
+        EngineCommand[] itemCommands = new EngineCommand[items.size()];
+        List<EngineCommand> commands = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject item = items.get(i).isJsonObject() ? items.get(i).getAsJsonObject() : null;
+            itemCommands[i] = item == null ? null : batchItemCommand(item, userId);
+            if (itemCommands[i] != null)
+                commands.add(itemCommands[i]);
+        }
+
+        matchingEngine.applyBatch(commands.toArray(new EngineCommand[0]));
+
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        ResponseWriter response = ResponseWriter.start().field("response", 100).field("errorMessage", "OK")
+                .field("newUserSession", updatedUserSessionTime).name("results").beginArray();
+        for (int i = 0; i < itemCommands.length; i++) {
+            response.beginObject();
+            if (itemCommands[i] == null)
+                response.field("response", 103).field("errorMessage", "Invalid order");
+            else
+                writeBatchItemResult(response, itemCommands[i]);
+            response.endObject();
+        }
+        return response.endArray().end();
+    }
+
+    /*
+     * Return the engine request of an item of a batch, checked like the single
+     * operation, or null if the item is not valid
+     */
+    private EngineCommand batchItemCommand(JsonObject item, String userId) {
+        if (!item.has("operation") || !item.has("values") || !item.get("values").isJsonObject())
+            return null;
+        JsonObject values = item.get("values").getAsJsonObject();
+        switch (item.get("operation").getAsString()) {
+            case "insertLimitOrder": {
+                if (!values.has("type") || !values.has("size") || !values.has("price"))
+                    return null;
+                Side type = Side.fromString(values.get("type").getAsString());
+                long size = values.get("size").getAsLong();
+                long price = values.get("price").getAsLong();
+                if (type == null || size <= 0 || price <= 0 || !orderBook.acceptsLimitPrice(type, price))
+                    return null;
+                return EngineCommand.limit(orderIdCounter.getAndIncrement(), type, size, price, userId,
+                        new ExecutionReport(0));
+            }
+            case "insertMarketOrder": {
+                if (!values.has("type") || !values.has("size"))
+                    return null;
+                Side type = Side.fromString(values.get("type").getAsString());
+                long size = values.get("size").getAsLong();
+                long maxSlippage = values.has("maxSlippage") ? values.get("maxSlippage").getAsLong()
+                        : OrderBook.NO_SLIPPAGE_LIMIT;
+                if (!isValidMarketOrder(type, size, maxSlippage))
+                    return null;
+                return EngineCommand.market(orderIdCounter.getAndIncrement(), type, size, maxSlippage, userId,
+                        new ExecutionReport(0));
+            }
+            case "insertStopOrder": {
+                if (!values.has("type") || !values.has("size") || !values.has("price"))
+                    return null;
+                Side type = Side.fromString(values.get("type").getAsString());
+                long size = values.get("size").getAsLong();
+                long price = values.get("price").getAsLong();
+                if (!isValidStopOrder(type, size, price))
+                    return null;
+                return EngineCommand.stop(orderIdCounter.getAndIncrement(), type, size, price, userId);
+            }
+            case "cancelOrder":
+                if (!values.has("orderId"))
+                    return null;
+                return EngineCommand.cancel(values.get("orderId").getAsLong(), userId);
+            case "modifyOrder": {
+                if (!values.has("orderId") || !values.has("size") || !values.has("price"))
+                    return null;
+                long size = values.get("size").getAsLong();
+                long price = values.get("price").getAsLong();
+                if (size <= 0 || price <= 0)
+                    return null;
+                return EngineCommand.modify(values.get("orderId").getAsLong(), size, price, userId,
+                        new ExecutionReport(0));
+            }
+            default:
+                return null;
+        }
+    }
+
+    /*
+     * Write the fields of the result of an item of a batch applied by the matching
+     * engine, in the format of the response of the single operation
+     */
+    private void writeBatchItemResult(ResponseWriter response, EngineCommand command) {
+        long outcome;
+        try {
+            outcome = command.getResult().join();
+        } catch (CompletionException e) {
+            response.field("response", -1).field("errorMessage", "Internal server error: " + e.getCause().getMessage());
+            return;
+        }
+        ExecutionReport report = command.getReport();
+        switch (command.getKind()) {
+            case LIMIT:
+                response.field("orderId", report.getOrderId());
+                if (report.isExecuted())
+                    response.fills(report);
+                break;
+            case MARKET:
+                if (!report.isExecuted()) {
+                    response.field("orderId", -1);
+                    break;
+                }
+                response.field("orderId", report.getOrderId()).fills(report);
+                break;
+            case CANCEL:
+            case MODIFY:
+                outcome = checkExecutedOrder(command.getOrderId(), command.getUserId(), outcome);
+                String orderError = orderErrorOf(outcome);
+                if (orderError != null) {
+                    response.field("response", 101).field("errorMessage", orderError);
+                    break;
+                }
+                response.field("response", 100).field("errorMessage", "OK");
+                if (command.getKind() == EngineCommand.Kind.CANCEL)
+                    break;
+                response.field("orderId", outcome);
+                if (report.isExecuted())
+                    response.fills(report);
+                break;
+            default:
+                response.field("orderId", outcome);
+        }
     }
 
     /*
      * Handle the client request to get the trade history of a specify month and
      * year and return a JSON string containing the list of fulfilled orders to be
-     * forwarded to the client
+     * forwarded to the client. With the "summary" option only the summary of every
+     * day is returned, otherwise at most "historyPageSize" orders of every day: the
+     * other ones are fetched with getDayTrades from the cursor of the day
      */
-    public String getPriceHistory(JsonObject request) {
+    public String getPriceHistory(JsonObject request, Session session) {
         if (!request.has("operation") || !request.has("values")) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(101, "Missing parameters");
         }
         JsonObject values = request.get("values").getAsJsonObject();
 
         if (!values.has("month") || !values.has("userId")) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Missing parameters"));
+            return ResponseWriter.response(101, "Missing parameters");
         }
         if (values.get("month").getAsString().length() != 6) {
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid month format"));
+            return ResponseWriter.response(101, "Invalid month format");
         }
-        String userId = values.get("userId").getAsString();
-
         String month = values.get("month").getAsString().substring(0, 2);
         int year = Integer.parseInt(values.get("month").getAsString().substring(2));
         Calendar currCalendar = Calendar.getInstance();
@@ -938,23 +1685,178 @@ public class CrossServerMain {
         int monthToInt = Integer.parseInt(month);
 
         if (monthToInt < 1 || monthToInt > 12)
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid month format"));
+            return ResponseWriter.response(101, "Invalid month format");
         else if (year > currentYear)
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid year format"));
+            return ResponseWriter.response(101, "Invalid year format");
         else if (year == currentYear && monthToInt > currentMonth)
-            return gson.toJson(Map.of("response", 101, "errorMessage", "Invalid month value"));
+            return ResponseWriter.response(101, "Invalid month value");
 
         LocalDate startOfMonth = LocalDate.of(year, monthToInt, 1);
         LocalDate endOfMonth = startOfMonth.plusMonths(1).minusDays(1);
         long startOfMonthSeconds = startOfMonth.atStartOfDay().toEpochSecond(java.time.ZoneOffset.UTC);
         long endOfMonthSeconds = endOfMonth.atStartOfDay().toEpochSecond(java.time.ZoneOffset.UTC);
         // get the trade history of the month
+        boolean summary = values.has("summary") && values.get("summary").getAsBoolean();
         ConcurrentSkipListMap<String, TradeHistory> orderHistory = orderBook.getOrderHistory(startOfMonthSeconds,
-                endOfMonthSeconds);
-        long updatedUserSessionTime = sessionManager.updateUserActivity(userId); // update user activity
+                endOfMonthSeconds, summary ? 0 : historyPageSize);
+        long updatedUserSessionTime = updateActivity(values, session); // update user activity
+
+        return ResponseWriter.start().field("newUserSession", updatedUserSessionTime).field("month", month)
+                .name("tradeHistory").tradeHistories(orderHistory).end();
+    }
+
+    /*
+     * Handle the client request to get a page of the fulfilled orders of a day
+     * (DDMMYYYY) starting from the cursor given by the previous page (0 for the
+     * first page), and return a JSON string containing the trade history of the day
+     * with at most "limit" orders (no more than "historyPageSize") and the cursor of
+     * the next page, absent if the page is the last one
+     */
+    public String getDayTrades(JsonObject request, Session session) {
+        if (!request.has("operation") || !request.has("values")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        JsonObject values = request.get("values").getAsJsonObject();
+
+        if (!values.has("day") || !values.has("userId")) {
+            return ResponseWriter.response(101, "Missing parameters");
+        }
+        String day = values.get("day").getAsString();
+
+        LocalDate date;
+        try {
+            if (day.length() != 8)
+                throw new NumberFormatException();
+            date = LocalDate.of(Integer.parseInt(day.substring(4)), Integer.parseInt(day.substring(2, 4)),
+                    Integer.parseInt(day.substring(0, 2)));
+        } catch (NumberFormatException | DateTimeException e) {
+            return ResponseWriter.response(101, "Invalid day format");
+        }
+
+        long cursor = values.has("cursor") ? values.get("cursor").getAsLong() : 0;
+        int limit = values.has("limit") ? values.get("limit").getAsInt() : historyPageSize;
+        if (cursor < 0 || cursor > Integer.MAX_VALUE || limit <= 0) {
+            return ResponseWriter.response(101, "Invalid cursor or limit");
+        }
+
+        // the size of a page is bounded whatever limit the client asks for
+        TradeHistory tradeHistory = orderBook.getDayTrades(date.toEpochDay(), (int) cursor,
+                Math.min(limit, historyPageSize));
+        long updatedUserSessionTime = updateActivity(values, session); // update user activity
+
+        if (tradeHistory == null)
+            return ResponseWriter.start().field("response", 101).field("errorMessage", "No trades in the day")
+                    .field("newUserSession", updatedUserSessionTime).end();
+        return ResponseWriter.start().field("newUserSession", updatedUserSessionTime).field("day", day)
+                .name("tradeHistory").tradeHistory(tradeHistory).end();
+    }
 
-        return gson
-                .toJson(Map.of("newUserSession", updatedUserSessionTime, "month", month, "tradeHistory", orderHistory));
+    /*
+     * Handle the client request to send again the notifications of the user logged
+     * in through the connection from a sequence number on, after the client has
+     * seen a gap in the sequence numbers of the datagrams. The response holds the
+     * messages still kept, in order and stopping at the first one not stored yet,
+     * the first sequence number still kept (the messages before it are lost) and the
+     * sequence number that follows the last message of the response
+     *
+     * The client JSON format of the request is the following: { "operation":
+     * "replayNotifications", "values": { "fromSequence": LONG } }
+     */
+    public String replayNotifications(JsonObject request, Session session) {
+        if (session == null)
+            return ResponseWriter.response(101, "User not logged in");
+        if (!request.has("values") || !request.get("values").getAsJsonObject().has("fromSequence"))
+            return ResponseWriter.response(101, "Missing parameters");
+        long fromSequence = request.get("values").getAsJsonObject().get("fromSequence").getAsLong();
+        if (fromSequence < 1)
+            return ResponseWriter.response(101, "Invalid sequence number");
+
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        NotificationLog log = notifier.getLog(session.getUsername());
+        ResponseWriter response = ResponseWriter.start().field("response", 100).field("errorMessage", "OK")
+                .field("newUserSession", updatedUserSessionTime);
+        if (log == null) // the user has never been notified
+            return response.field("firstSequence", 1).field("nextSequence", fromSequence).name("notifications")
+                    .beginArray().endArray().end();
+
+        response.field("firstSequence", log.getFirstSequence()).name("notifications").beginArray();
+        long nextSequence = log.replay(fromSequence,
+                (sequence, message, length) -> response.rawValue(message, length));
+        return response.endArray().field("nextSequence", nextSequence).end();
+    }
+
+    /*
+     * Handle the client request to receive the market data feed on a UDP port of the
+     * client: the top messages (best prices and their sizes) and, if asked, the depth
+     * messages and the snapshots of the book. A connection has one subscription,
+     * which ends with the connection. The feed is public, so the user does not need
+     * to be logged in
+     *
+     * The client JSON format of the request is the following: { "operation":
+     * "subscribeMarketData", "values": { "udpPort": INT, "depth": BOOLEAN } }
+     */
+    public String subscribeMarketData(JsonObject request, InetAddress clientAddress, RequestHandler connection) {
+        if (!request.has("values") || !request.get("values").getAsJsonObject().has("udpPort"))
+            return ResponseWriter.response(101, "Missing parameters");
+        JsonObject values = request.get("values").getAsJsonObject();
+        int udpPort = values.get("udpPort").getAsInt();
+        if (udpPort <= 0 || udpPort > 65535)
+            return ResponseWriter.response(101, "Invalid UDP port");
+        boolean depth = values.has("depth") && values.get("depth").getAsBoolean();
+
+        if (!marketData.subscribe(connection, clientAddress, udpPort, depth))
+            return ResponseWriter.response(101, "Too many subscribers");
+        return ResponseWriter.response(100, "OK");
+    }
+
+    /*
+     * Handle the client request to get the best levels of both sides of the book,
+     * up to the depth asked, with the total size and the number of orders of every
+     * level and the sequence number of the last depth message of the market data
+     * feed included. The response is written once for every depth and version of the
+     * book and shared by the requests until the book changes. Like the feed, the
+     * book is public, so the user does not need to be logged in
+     *
+     * The client JSON format of the request is the following: { "operation":
+     * "getOrderBook", "values": { "depth": INT } }
+     */
+    public String getOrderBook(JsonObject request) {
+        if (!request.has("values") || !request.get("values").getAsJsonObject().has("depth"))
+            return ResponseWriter.response(101, "Missing parameters");
+        int depth = request.get("values").getAsJsonObject().get("depth").getAsInt();
+        if (depth <= 0)
+            return ResponseWriter.response(101, "Invalid depth");
+        depth = Math.min(depth, marketData.getSnapshotDepth()); // the depth is bounded whatever the client asks for
+
+        DepthView view = marketData.getDepthView();
+        String response = view.getResponse(depth);
+        if (response != null)
+            return response;
+        ResponseWriter writer = ResponseWriter.start().field("response", 100).field("errorMessage", "OK")
+                .field("sequence", view.getSequence());
+        writeLevels(writer.name("bids"), view, true, depth);
+        writeLevels(writer.name("asks"), view, false, depth);
+        response = writer.end();
+        view.setResponse(depth, response);
+        return response;
+    }
+
+    // Write the array of the best levels of the side of the view, at most depth levels
+    private static void writeLevels(ResponseWriter response, DepthView view, boolean bid, int depth) {
+        response.beginArray();
+        for (int i = 0; i < Math.min(depth, view.getLevelCount(bid)); i++) {
+            response.beginObject().field("price", view.getPrice(bid, i)).field("size", view.getSize(bid, i))
+                    .field("orders", view.getOrderCount(bid, i)).endObject();
+        }
+        response.endArray();
+    }
+
+    /*
+     * Handle the client request to stop the market data feed of the connection
+     */
+    public String unsubscribeMarketData(RequestHandler connection) {
+        marketData.unsubscribe(connection);
+        return ResponseWriter.response(100, "OK");
     }
 
     // Main
@@ -0,0 +1,86 @@
+package com.crossserver.models.Network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import com.crossserver.models.Orders.ExecutionReport;
+import com.crossserver.models.Orders.Side;
+
+/*
+ * This class defines the compact binary protocol that a client can choose instead of
+ * the newline-delimited JSON. The client chooses it by sending the HELLO bytes as
+ * the first bytes of the connection, which can not start a JSON request, and the
+ * server answers with the same bytes; a connection that starts with anything else
+ * speaks JSON.
+ *
+ * Every message is a frame: payload length (int) followed by the payload, that is
+ * the opcode (byte), the request ID (long, 0 if the request has none) and the body.
+ * The orders use fixed layouts (big-endian) with no field names and no text, so
+ * they are decoded and encoded without parsing:
+ * - LIMIT: side (byte: 1 bid, 2 ask), size (long), price (long), UDP port (int)
+ * - MARKET: side (byte), size (long), maximum slippage (long, -1 for no limit), UDP port (int)
+ * - STOP: side (byte), size (long), stop price (long), UDP port (int)
+ * - CANCEL: order ID (long)
+ * - MODIFY: order ID (long), new size (long), new price (long)
+ * They act on behalf of the user logged in through the connection and are answered
+ * with an ORDER_RESULT: response code (int), order ID or error code of the order book
+ * (long), new user session (long), number of fills (int) and the price (long) and
+ * size (long) of every fill. Any other operation is sent as a JSON frame, whose body
+ * is the UTF-8 JSON request and whose response is a JSON frame with the JSON response
+ */
+public final class BinaryProtocol {
+    public static final byte[] HELLO = { (byte) 0xCB, 'X', 'B', 1 }; // first bytes of a binary connection
+    public static final int LENGTH_SIZE = Integer.BYTES; // size of the length prefix of a frame
+    public static final int HEADER_SIZE = Byte.BYTES + Long.BYTES; // opcode and request ID of a payload
+
+    // Opcodes
+    public static final byte JSON = 0;
+    public static final byte LIMIT = 1;
+    public static final byte MARKET = 2;
+    public static final byte STOP = 3;
+    public static final byte CANCEL = 4;
+    public static final byte MODIFY = 5;
+    public static final byte ORDER_RESULT = 6;
+
+    // Response codes of an order result
+    public static final int OK = 100; // the order has been applied
+    public static final int REJECTED = 101; // the order book refused the order, the order ID is the error code
+    public static final int INVALID_REQUEST = 103; // malformed message or no user logged in
+
+    private BinaryProtocol() {
+    }
+
+    // Return the side encoded in a message, null if the byte is not a side
+    public static Side sideOf(byte side) {
+        return side == 1 ? Side.BID : side == 2 ? Side.ASK : null;
+    }
+
+    // Return the request ID of the payload of a frame
+    public static long requestIdOf(ByteBuffer payload) {
+        return payload.getLong(payload.position() + Byte.BYTES);
+    }
+
+    // Return the frame that carries the JSON response of a request
+    public static byte[] jsonFrame(long requestId, String json) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + body.length);
+        frame.putInt(HEADER_SIZE + body.length).put(JSON).putLong(requestId).put(body);
+        return frame.array();
+    }
+
+    /*
+     * Return the frame of the result of an order with the fills of the report, if
+     * any (report may be null)
+     */
+    public static byte[] orderResultFrame(long requestId, int response, long orderId, long userSession,
+            ExecutionReport report) {
+        int fills = report == null ? 0 : report.getFillCount();
+        int length = HEADER_SIZE + 2 * Integer.BYTES + 2 * Long.BYTES + fills * 2 * Long.BYTES;
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + length);
+        frame.putInt(length).put(ORDER_RESULT).putLong(requestId);
+        frame.putInt(response).putLong(orderId).putLong(userSession).putInt(fills);
+        for (int i = 0; i < fills; i++) {
+            frame.putLong(report.getFillPrice(i)).putLong(report.getFillSize(i));
+        }
+        return frame.array();
+    }
+}
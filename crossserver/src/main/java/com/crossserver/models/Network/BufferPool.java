@@ -0,0 +1,48 @@
+package com.crossserver.models.Network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class keeps a pool of direct byte buffers of the same size, so the network
+ * front end does not allocate (and the garbage collector does not free) a native
+ * buffer for every message. The buffers beyond the capacity of the pool are left
+ * to the garbage collector when they are released
+ */
+public class BufferPool {
+    private final int bufferSize; // size of every buffer in bytes
+    private final int capacity; // maximum number of free buffers kept
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers; // buffers ready to be reused
+    private final AtomicInteger freeCount; // number of buffers in the pool
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.freeBuffers = new ConcurrentLinkedQueue<>();
+        this.freeCount = new AtomicInteger(0);
+    }
+
+    // Return an empty buffer, taken from the pool if there is one
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        freeCount.decrementAndGet();
+        return buffer;
+    }
+
+    // Give the buffer back to the pool
+    public void release(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() > capacity) {
+            freeCount.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,468 @@
+package com.crossserver.models.Network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import com.crossserver.CrossServerMain;
+import com.crossserver.models.RequestHandler;
+import com.google.gson.JsonObject;
+
+/*
+ * This class is the non-blocking network front end of the server: a few I/O
+ * threads serve all the client connections with a selector each, so an idle
+ * client costs only its connection state and not a thread. The requests are
+ * newline-delimited JSON lines: the I/O thread splits them from the bytes read
+ * and hands them to the worker threads, which handle them and pass the response
+ * back to the I/O thread of the connection to be written. A request without a
+ * request ID is handled alone, once the previous requests of the connection have
+ * been answered, so its response keeps the order of the requests. The requests
+ * with a request ID that follow each other are handled together (up to
+ * MAX_IN_FLIGHT_REQUESTS per connection) and answered as soon as they are done:
+ * the matching engine can then commit them to the journal with the same fsync.
+ * A connection that starts with the hello of the binary protocol sends
+ * length-prefixed frames instead of lines, with the same ordering rules (a frame
+ * with a request ID other than 0 is handled with the previous ones)
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // size of the read buffer of an I/O thread
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024; // size of the pooled buffers of the responses
+    private static final int WRITE_BUFFER_POOL_CAPACITY = 1024; // free response buffers kept in the pool
+    private static final int INITIAL_LINE_SIZE = 256; // initial size of the buffer of a partial request
+    private static final int MAX_REQUEST_SIZE = 1024 * 1024; // longer requests close the connection
+    private static final int MAX_PENDING_REQUESTS = 64; // requests read ahead before the reading is paused
+    private static final int MAX_IN_FLIGHT_REQUESTS = 16; // requests with an ID of a connection handled together
+
+    private final CrossServerMain server; // reference to server instance
+    private final InetSocketAddress address; // address the server listens on
+    private final ExecutorService workers; // threads that handle the requests
+    private final BufferPool writeBuffers; // pool of the buffers of the responses
+    private final IoLoop[] ioLoops; // I/O threads, the first one also accepts the connections
+    private ServerSocketChannel serverChannel; // listening channel
+    private int nextLoop; // I/O thread of the next connection accepted (round robin)
+    private volatile boolean running; // false once the server is closed
+
+    public NioServer(CrossServerMain server, InetSocketAddress address, int ioThreads, ExecutorService workers) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        this.server = server;
+        this.address = address;
+        this.workers = workers;
+        this.writeBuffers = new BufferPool(WRITE_BUFFER_SIZE, WRITE_BUFFER_POOL_CAPACITY);
+        this.ioLoops = new IoLoop[ioThreads];
+        this.nextLoop = 0;
+    }
+
+    // Bind the listening channel and start the I/O threads
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        running = true;
+        for (int i = 0; i < ioLoops.length; i++) {
+            ioLoops[i] = new IoLoop(i);
+        }
+        serverChannel.register(ioLoops[0].selector, SelectionKey.OP_ACCEPT);
+        for (IoLoop loop : ioLoops) {
+            loop.thread.start();
+        }
+    }
+
+    // Wait until the server is closed
+    public void awaitTermination() throws InterruptedException {
+        for (IoLoop loop : ioLoops) {
+            loop.thread.join();
+        }
+    }
+
+    // Stop accepting connections and close all the client connections
+    public void close() {
+        running = false;
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("[NIO server] Error while closing the server channel: " + e.getMessage());
+        }
+        for (IoLoop loop : ioLoops) {
+            if (loop != null)
+                loop.selector.wakeup();
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /*
+     * I/O thread: it owns a selector and the connections registered with it, so
+     * the state of a connection is changed only by its thread. The other threads
+     * pass it tasks through a queue and wake the selector up
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector; // selector of the connections of the thread
+        private final ConcurrentLinkedQueue<Runnable> tasks; // tasks submitted by the other threads
+        private final ByteBuffer readBuffer; // buffer of the bytes read, shared by the connections of the thread
+        private final Thread thread; // the I/O thread
+
+        IoLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            this.thread = new Thread(this, "nio-io-" + index);
+        }
+
+        // Run the task on the I/O thread
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("[NIO server] I/O thread error: " + e.getMessage());
+            } finally {
+                // close the connections of the thread
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection)
+                        ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    System.err.println("[NIO server] Error while closing the selector: " + e.getMessage());
+                }
+            }
+        }
+
+        // Accept the pending connections and give them to the I/O threads in turn
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop loop = ioLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % ioLoops.length;
+                SocketChannel acceptedChannel = channel;
+                if (loop == this)
+                    register(acceptedChannel);
+                else
+                    loop.execute(() -> loop.register(acceptedChannel));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                System.err.println("[NIO server] Error while registering a connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    // the connection is discarded anyway
+                }
+            }
+        }
+    }
+
+    /*
+     * Request read from a connection: a JSON request (null if the line was not valid
+     * JSON) or the payload of a binary frame
+     */
+    private static final class PendingRequest {
+        private final JsonObject json; // JSON request, null for a binary frame or a line that is not JSON
+        private final ByteBuffer frame; // payload of the binary frame, null for a JSON request
+        private final boolean pipelined; // true if the request carries a request ID
+
+        PendingRequest(JsonObject json, ByteBuffer frame, boolean pipelined) {
+            this.json = json;
+            this.frame = frame;
+            this.pipelined = pipelined;
+        }
+    }
+
+    /*
+     * State of a client connection. Every field is used only by the I/O thread of
+     * the connection, the worker threads only submit the responses to it
+     */
+    private final class Connection {
+        private final IoLoop loop; // I/O thread of the connection
+        private final SocketChannel channel; // channel of the connection
+        private final RequestHandler requestHandler; // handler of the requests of the connection
+        private SelectionKey key; // registration of the channel with the selector
+        private byte[] line; // bytes of the request being read (of the frames being read, binary protocol)
+        private int lineLength; // number of bytes of the request being read
+        private boolean negotiated; // true once the first byte has told the protocol of the connection
+        private boolean binary; // true if the connection speaks the binary protocol
+        private boolean helloReceived; // true once the hello of the binary protocol has been read
+        private final ArrayDeque<PendingRequest> pendingRequests; // requests read and not handled yet
+        private final ArrayDeque<ByteBuffer> pendingWrites; // buffers of the responses not written yet
+        private int inFlight; // number of requests of the connection handled by the workers
+        private boolean orderedInFlight; // true while a request without request ID is handled
+        private boolean closed; // true once the connection has been closed
+
+        Connection(IoLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            // the connection is closed by its I/O thread, whatever the thread that asks
+            this.requestHandler = new RequestHandler(
+                    ((InetSocketAddress) channel.getRemoteAddress()).getAddress(), server,
+                    () -> loop.execute(this::close));
+            this.line = new byte[INITIAL_LINE_SIZE];
+            this.lineLength = 0;
+            this.negotiated = false;
+            this.binary = false;
+            this.helloReceived = false;
+            this.pendingRequests = new ArrayDeque<>();
+            this.pendingWrites = new ArrayDeque<>();
+            this.inFlight = 0;
+            this.orderedInFlight = false;
+            this.closed = false;
+        }
+
+        // Read the bytes available and split the complete requests
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (read < 0) {
+                // the client has closed the connection
+                close();
+                return;
+            }
+            buffer.flip();
+            // the first byte of the connection tells the protocol
+            if (!negotiated && buffer.hasRemaining()) {
+                binary = buffer.get(buffer.position()) == BinaryProtocol.HELLO[0];
+                negotiated = true;
+            }
+            if (binary)
+                readFrames(buffer);
+            else
+                readLines(buffer);
+            if (closed)
+                return;
+            // stop reading a client that sends requests faster than they are handled
+            if (pendingRequests.size() >= MAX_PENDING_REQUESTS)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            handleNextRequests();
+        }
+
+        // Split the newline-delimited JSON requests
+        private void readLines(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    // the request is parsed here to know whether it can be handled with the previous ones
+                    JsonObject request = requestHandler.parse(new String(line, 0, length, StandardCharsets.UTF_8));
+                    pendingRequests.offer(new PendingRequest(request, null, RequestHandler.isPipelined(request)));
+                    lineLength = 0;
+                    continue;
+                }
+                if (lineLength == line.length) {
+                    if (line.length >= MAX_REQUEST_SIZE) {
+                        System.err.println("[NIO server] Request too long, closing the connection");
+                        close();
+                        return;
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_REQUEST_SIZE));
+                }
+                line[lineLength++] = b;
+            }
+        }
+
+        // Split the frames of the binary protocol, after its hello
+        private void readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                if (lineLength == line.length) {
+                    int maxFrameSize = MAX_REQUEST_SIZE + BinaryProtocol.LENGTH_SIZE;
+                    if (line.length >= maxFrameSize) {
+                        System.err.println("[NIO server] Request too long, closing the connection");
+                        close();
+                        return;
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, maxFrameSize));
+                }
+                int length = Math.min(buffer.remaining(), line.length - lineLength);
+                buffer.get(line, lineLength, length);
+                lineLength += length;
+
+                int offset = 0;
+                if (!helloReceived) {
+                    if (lineLength < BinaryProtocol.HELLO.length)
+                        continue;
+                    if (!Arrays.equals(line, 0, BinaryProtocol.HELLO.length, BinaryProtocol.HELLO, 0,
+                            BinaryProtocol.HELLO.length)) {
+                        System.err.println("[NIO server] Unsupported binary protocol, closing the connection");
+                        close();
+                        return;
+                    }
+                    // confirm the protocol to the client
+                    queueWrite(BinaryProtocol.HELLO);
+                    flush();
+                    helloReceived = true;
+                    offset = BinaryProtocol.HELLO.length;
+                }
+                while (lineLength - offset >= BinaryProtocol.LENGTH_SIZE) {
+                    int frameLength = ByteBuffer.wrap(line, offset, BinaryProtocol.LENGTH_SIZE).getInt();
+                    if (frameLength < BinaryProtocol.HEADER_SIZE || frameLength > MAX_REQUEST_SIZE) {
+                        System.err.println("[NIO server] Invalid frame length, closing the connection");
+                        close();
+                        return;
+                    }
+                    int start = offset + BinaryProtocol.LENGTH_SIZE;
+                    if (lineLength - start < frameLength)
+                        break;
+                    ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOfRange(line, start, start + frameLength));
+                    pendingRequests.offer(new PendingRequest(null, frame, RequestHandler.isPipelined(frame)));
+                    offset = start + frameLength;
+                }
+                // keep the bytes of the incomplete frame at the beginning of the buffer
+                System.arraycopy(line, offset, line, 0, lineLength - offset);
+                lineLength -= offset;
+            }
+        }
+
+        /*
+         * Hand the next requests to the workers: a request without request ID waits
+         * until no other request of the connection is in progress and is handled
+         * alone, the requests with a request ID are handled together
+         */
+        private void handleNextRequests() {
+            while (!closed && !orderedInFlight && !pendingRequests.isEmpty()) {
+                PendingRequest request = pendingRequests.peek();
+                boolean pipelined = request.pipelined;
+                if (pipelined ? inFlight >= MAX_IN_FLIGHT_REQUESTS : inFlight > 0)
+                    return;
+                pendingRequests.poll();
+                if (pendingRequests.size() < MAX_PENDING_REQUESTS && key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                inFlight++;
+                orderedInFlight = !pipelined;
+                try {
+                    workers.execute(() -> {
+                        byte[] bytes = request.frame != null ? requestHandler.handleFrame(request.frame)
+                                : (requestHandler.handle(request.json) + "\n").getBytes(StandardCharsets.UTF_8);
+                        loop.execute(() -> onResponse(bytes));
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the server is shutting down
+                    close();
+                }
+            }
+        }
+
+        // Queue the response in pooled buffers, write it and go on with the next requests
+        private void onResponse(byte[] response) {
+            inFlight--;
+            orderedInFlight = false;
+            if (closed)
+                return;
+            queueWrite(response);
+            flush();
+            handleNextRequests();
+        }
+
+        // Copy the bytes to write in pooled buffers
+        private void queueWrite(byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ByteBuffer buffer = writeBuffers.acquire();
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length).flip();
+                pendingWrites.offer(buffer);
+                offset += length;
+            }
+        }
+
+        // Write the pending responses, waiting for the channel to be writable if it is full
+        void flush() {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = pendingWrites.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeBuffers.release(pendingWrites.poll());
+                }
+                if (key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error while closing the connection: " + e.getMessage());
+            }
+            ByteBuffer buffer;
+            while ((buffer = pendingWrites.poll()) != null) {
+                writeBuffers.release(buffer);
+            }
+            // the user is logged out by a worker, which waits for a login or logout in progress if any
+            try {
+                workers.execute(requestHandler::close);
+            } catch (RejectedExecutionException e) {
+                requestHandler.close();
+            }
+        }
+    }
+}
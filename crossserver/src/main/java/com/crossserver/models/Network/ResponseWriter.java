@@ -0,0 +1,205 @@
+package com.crossserver.models.Network;
+
+import java.util.List;
+import java.util.Map;
+import com.crossserver.models.Orders.ExecutionReport;
+import com.crossserver.models.Orders.Order;
+import com.crossserver.models.Orders.TradeHistory;
+
+/*
+ * This class writes the JSON responses of the server field by field into a
+ * buffer that every thread reuses, instead of building maps that Gson then
+ * inspects by reflection: the only object left by a response is its string. The
+ * responses have a fixed shape (order acknowledgements, response codes, fills,
+ * trade history), so the writer knows nothing but objects, arrays, numbers and
+ * strings, and the caller writes the fields in the order of the response.
+ *
+ * A thread builds one response at a time: start returns the writer of the thread
+ * emptied, so a response must be finished with end before the next one is started
+ */
+public final class ResponseWriter {
+    private static final int INITIAL_SIZE = 512; // initial size of the buffer of every thread
+    private static final int MAX_KEPT_SIZE = 64 * 1024; // larger buffers are not kept after their response
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<ResponseWriter> WRITERS = ThreadLocal.withInitial(ResponseWriter::new);
+
+    private StringBuilder json; // response being written
+    private boolean needsComma; // true if a value has been written in the current object or array
+
+    private ResponseWriter() {
+        this.json = new StringBuilder(INITIAL_SIZE);
+    }
+
+    // Return the writer of the calling thread, empty and with the response object opened
+    public static ResponseWriter start() {
+        ResponseWriter writer = WRITERS.get();
+        writer.json.setLength(0);
+        writer.needsComma = false;
+        return writer.beginObject();
+    }
+
+    // Return the response with only its response code and message
+    public static String response(int code, String message) {
+        return start().field("response", code).field("errorMessage", message).end();
+    }
+
+    // Return the response with only the order ID (or the error code) of an order
+    public static String orderId(long orderId) {
+        return start().field("orderId", orderId).end();
+    }
+
+    // Close the response object and return the response
+    public String end() {
+        endObject();
+        String response = json.toString();
+        if (json.capacity() > MAX_KEPT_SIZE) // a long trade history does not stay with the thread
+            json = new StringBuilder(INITIAL_SIZE);
+        return response;
+    }
+
+    public ResponseWriter beginObject() {
+        separate();
+        json.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public ResponseWriter endObject() {
+        json.append('}');
+        needsComma = true;
+        return this;
+    }
+
+    public ResponseWriter beginArray() {
+        separate();
+        json.append('[');
+        needsComma = false;
+        return this;
+    }
+
+    public ResponseWriter endArray() {
+        json.append(']');
+        needsComma = true;
+        return this;
+    }
+
+    // Write the name of the next field, whose value follows
+    public ResponseWriter name(String name) {
+        separate();
+        appendString(name);
+        json.append(':');
+        needsComma = false;
+        return this;
+    }
+
+    public ResponseWriter value(long value) {
+        separate();
+        json.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    // Write a string value, null is written as the JSON null
+    public ResponseWriter value(String value) {
+        separate();
+        if (value == null)
+            json.append("null");
+        else
+            appendString(value);
+        needsComma = true;
+        return this;
+    }
+
+    // Write a value that is already encoded as ASCII JSON in the first length bytes, such as a stored notification
+    public ResponseWriter rawValue(byte[] encoded, int length) {
+        separate();
+        for (int i = 0; i < length; i++) {
+            json.append((char) (encoded[i] & 0xff));
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public ResponseWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    public ResponseWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    // Write the "fills" field with the price and the size of every fill of the report
+    public ResponseWriter fills(ExecutionReport report) {
+        name("fills").beginArray();
+        for (int i = 0; i < report.getFillCount(); i++) {
+            beginObject().field("price", report.getFillPrice(i)).field("size", report.getFillSize(i)).endObject();
+        }
+        return endArray();
+    }
+
+    /*
+     * Write an executed order with the fields of the orders stored in the databases
+     * (the user ID only if it is known)
+     */
+    public ResponseWriter order(Order order) {
+        beginObject().field("orderId", order.getOrderId()).field("type", String.valueOf(order.getType()))
+                .field("size", order.getSize()).field("orderType", String.valueOf(order.getOrderType()))
+                .field("timestamp", order.getTimestamp()).field("price", order.getPrice());
+        if (order.getUserId() != null)
+            field("userId", order.getUserId());
+        return endObject();
+    }
+
+    /*
+     * Write the trade history of a day: its summary and, unless it is only the
+     * summary, its page of fulfilled orders and the cursor of the next page if any
+     */
+    public ResponseWriter tradeHistory(TradeHistory history) {
+        beginObject().field("numberOfDay", history.getNumberOfDay())
+                .field("openingPrice", history.getOpeningPrice()).field("closingPrice", history.getClosingPrice())
+                .field("highestPrice", history.getHighestPrice()).field("lowestPrice", history.getLowestPrice())
+                .field("volume", history.getVolume()).field("numberOfTrades", history.getNumberOfTrades());
+        List<Order> orders = history.getFulfilledOrders();
+        if (orders != null) {
+            name("fulfilledOrders").beginArray();
+            for (int i = 0; i < orders.size(); i++) {
+                order(orders.get(i));
+            }
+            endArray();
+        }
+        if (history.getNextCursor() != null)
+            field("nextCursor", history.getNextCursor());
+        return endObject();
+    }
+
+    // Write the trade history of every day of the map as a field named after the day
+    public ResponseWriter tradeHistories(Map<String, TradeHistory> histories) {
+        beginObject();
+        for (Map.Entry<String, TradeHistory> day : histories.entrySet()) {
+            name(day.getKey()).tradeHistory(day.getValue());
+        }
+        return endObject();
+    }
+
+    private void separate() {
+        if (needsComma)
+            json.append(',');
+    }
+
+    // Append a quoted string, escaping the characters that JSON does not allow as they are
+    private void appendString(String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                json.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf]).append(HEX[c >> 4 & 0xf])
+                        .append(HEX[c & 0xf]);
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
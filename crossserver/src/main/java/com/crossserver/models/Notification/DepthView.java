@@ -0,0 +1,84 @@
+package com.crossserver.models.Notification;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * This class is an immutable view of the best levels of both sides of the book,
+ * taken from the depth kept by the market data feed: every level has its price,
+ * its total size and its number of orders. The view has the version of the depth
+ * it was taken from, so it is reused until the book changes, and the sequence
+ * number of the last depth message of the feed that it includes, so a client can
+ * apply the following depth messages to it. The responses written from the view
+ * are cached in it for every depth asked, so the requests between two changes of
+ * the book share one response
+ */
+public final class DepthView {
+    private static final int FIELDS = 3; // price, size and number of orders of a level
+
+    private final long version; // version of the depth of the feed
+    private final long sequence; // sequence number of the last depth message included
+    private final long[] bidLevels; // fields of the best bid levels, best price first
+    private final long[] askLevels; // fields of the best ask levels, best price first
+    private final String[] responses; // response written for every depth, null if not written yet
+
+    DepthView(long version, long sequence, long[] bidLevels, long[] askLevels, int maxDepth) {
+        this.version = version;
+        this.sequence = sequence;
+        this.bidLevels = bidLevels;
+        this.askLevels = askLevels;
+        this.responses = new String[maxDepth + 1];
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Return the number of levels of the side in the view
+    public int getLevelCount(boolean bid) {
+        return (bid ? bidLevels : askLevels).length / FIELDS;
+    }
+
+    public long getPrice(boolean bid, int level) {
+        return (bid ? bidLevels : askLevels)[level * FIELDS];
+    }
+
+    public long getSize(boolean bid, int level) {
+        return (bid ? bidLevels : askLevels)[level * FIELDS + 1];
+    }
+
+    public long getOrderCount(boolean bid, int level) {
+        return (bid ? bidLevels : askLevels)[level * FIELDS + 2];
+    }
+
+    /*
+     * Return the response already written from the view for the depth, null if
+     * none. Two threads may write the same response at the same time: both are
+     * equal and the strings are immutable, so either one can be kept
+     */
+    public String getResponse(int depth) {
+        return responses[depth];
+    }
+
+    public void setResponse(int depth, String response) {
+        responses[depth] = response;
+    }
+
+    // Return the fields of the levels of the depth, at most maxDepth levels from the best price
+    static long[] levelsOf(TreeMap<Long, long[]> depth, int maxDepth) {
+        long[] levels = new long[Math.min(depth.size(), maxDepth) * FIELDS];
+        int index = 0;
+        for (Map.Entry<Long, long[]> level : depth.entrySet()) {
+            if (index == levels.length)
+                break;
+            levels[index++] = level.getKey();
+            levels[index++] = level.getValue()[0];
+            levels[index++] = level.getValue()[1];
+        }
+        return levels;
+    }
+}
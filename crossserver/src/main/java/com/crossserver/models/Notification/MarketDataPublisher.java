@@ -0,0 +1,511 @@
+package com.crossserver.models.Notification;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import com.crossserver.models.Orders.LimitBook;
+import com.crossserver.models.Orders.LimitOrder;
+import com.crossserver.models.Orders.PriceLevel;
+
+/*
+ * This class publishes the market data of the order book over UDP: the best bid
+ * and ask prices with their sizes (level 1) and the changes of the price levels
+ * (level 2). The matching engine only notes the levels changed by a command and,
+ * once the matching pass is committed to the journal, reads their new total size
+ * into an update that it hands to the dispatcher thread of the feed (the changes
+ * of a pass whose commit fails are discarded). The messages are encoded and sent to
+ * every subscriber by the dispatcher, so the matching path does the same work
+ * whatever the number of subscribers. If the dispatcher falls behind the update is
+ * not dropped but kept by the engine, and the levels changed by the next passes are
+ * merged into it: the feed may skip intermediate states, never a change.
+ *
+ * The dispatcher keeps its own copy of the depth of the book, built from the
+ * updates, and sends a snapshot of the best levels at every snapshot interval and
+ * soon after a new subscription, so a client that joins late or loses a datagram
+ * synchronizes from the next snapshot. The messages are JSON objects:
+ * - top: { "marketData": "top", "sequence": N, "bidPrice": P, "bidSize": S,
+ *   "askPrice": P, "askSize": S }, with price -1 and size 0 for an empty side
+ * - depth: { "marketData": "depth", "sequence": N, "levels": [ { "side": "bid",
+ *   "price": P, "size": S, "orders": C }, ... ] }, with size 0 for a removed level
+ * - snapshot: { "marketData": "snapshot", "sequence": N, the top fields, "bids": [
+ *   { "price": P, "size": S, "orders": C }, ... ], "asks": [ ... ] }, where N is
+ *   the sequence number of the last depth message included in the snapshot
+ * Every subscriber receives the top messages, the depth subscribers the depth
+ * messages and the snapshots too. All the messages can also be sent to a
+ * multicast group on the loopback interface.
+ *
+ * The same depth answers the getOrderBook requests over TCP: a request takes a
+ * DepthView of the best levels, which is taken again only after the depth has
+ * changed, so the requests between two changes of the book share the view and
+ * its responses instead of walking the book
+ */
+public class MarketDataPublisher {
+    private static final int QUEUE_SIZE = 1024; // updates waiting for the dispatcher
+    private static final int INITIAL_LEVELS = 16; // levels of a new update, grown when a pass changes more
+    private static final int MESSAGE_SIZE = 8 * 1024; // size of a message, a larger depth message is split
+    private static final int MAX_LEVEL_SIZE = 128; // room left for a level before a message is split
+    private static final long STOP_TIMEOUT_MILLIS = 1000; // time given to the dispatcher to send the last updates
+    private static final long IDLE_POLL_MILLIS = 100; // longest wait of the dispatcher before checking its status
+
+    private final long snapshotIntervalMillis; // time between two snapshots
+    private final int snapshotDepth; // number of levels of every side of a snapshot
+    private final int maxSubscribers; // maximum number of subscriptions
+    private final InetSocketAddress group; // multicast group of the feed, null if none
+
+    private final ConcurrentHashMap<Object, Subscriber> subscribers; // subscriptions by owner (the connection)
+    private final ArrayBlockingQueue<Update> outbound; // updates waiting for the dispatcher
+    private final ArrayBlockingQueue<Update> freeUpdates; // updates published and ready to be reused
+    private final Thread dispatcher; // thread that sends the messages
+    private volatile boolean running; // dispatcher status
+    private volatile boolean snapshotRequested; // true if a subscriber is waiting for a snapshot
+    private volatile long sentMessages; // datagrams sent by the dispatcher
+    private volatile long mergedUpdates; // updates merged into the next one because the dispatcher was behind
+
+    // state of the matching engine
+    private Update current; // update of the current matching pass
+    private int flushedLevels; // levels of the current update read by a flush, kept because the queue was full
+    private long bidPrice; // best bid price published, LimitBook.NO_PRICE if none
+    private long bidSize; // size of the best bid level published
+    private long askPrice; // best ask price published, LimitBook.NO_PRICE if none
+    private long askSize; // size of the best ask level published
+
+    // state of the dispatcher
+    private final TreeMap<Long, long[]> bidDepth; // size and number of orders of the bid levels, best price first
+    private final TreeMap<Long, long[]> askDepth; // size and number of orders of the ask levels, best price first
+    private final ByteBuffer message; // message being encoded
+    private long topSequence; // sequence number of the last top message
+    private long depthSequence; // sequence number of the last depth message
+    private long[] top; // best bid price and size, best ask price and size of the last top message
+
+    // depth shared with the request handlers
+    private final ReentrantLock depthLock; // guards the changes of the depth and the views taken from it
+    private volatile long depthVersion; // incremented at every change of the depth or of its sequence number
+    private long viewSequence; // sequence number of the last depth message sent, guarded by depthLock
+    private volatile DepthView depthView; // last view taken from the depth
+
+    // UDP address of a subscriber and the messages it receives
+    private static final class Subscriber {
+        private final InetSocketAddress address;
+        private final boolean depth; // true if the subscriber receives the depth of the book
+
+        private Subscriber(InetSocketAddress address, boolean depth) {
+            this.address = address;
+            this.depth = depth;
+        }
+    }
+
+    // Levels changed by a matching pass with their new size, and the best prices after the pass
+    private static final class Update {
+        private boolean[] bids = new boolean[INITIAL_LEVELS]; // side of every level
+        private long[] prices = new long[INITIAL_LEVELS];
+        private long[] sizes = new long[INITIAL_LEVELS]; // total size of every level, 0 if removed
+        private int[] orderCounts = new int[INITIAL_LEVELS];
+        private int levelCount; // number of levels of the update
+        private boolean topChanged; // true if the best prices or their sizes have changed
+        private final long[] top = new long[4]; // best bid price and size, best ask price and size
+
+        private void add(boolean bid, long price) {
+            if (levelCount == prices.length) {
+                bids = Arrays.copyOf(bids, levelCount * 2);
+                prices = Arrays.copyOf(prices, levelCount * 2);
+                sizes = Arrays.copyOf(sizes, levelCount * 2);
+                orderCounts = Arrays.copyOf(orderCounts, levelCount * 2);
+            }
+            bids[levelCount] = bid;
+            prices[levelCount] = price;
+            levelCount++;
+        }
+    }
+
+    public MarketDataPublisher(long snapshotIntervalMillis, int snapshotDepth, int maxSubscribers,
+            InetSocketAddress group) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.snapshotDepth = snapshotDepth;
+        this.maxSubscribers = maxSubscribers;
+        this.group = group;
+        this.subscribers = new ConcurrentHashMap<>();
+        this.outbound = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.freeUpdates = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        this.current = new Update();
+        this.bidPrice = LimitBook.NO_PRICE;
+        this.askPrice = LimitBook.NO_PRICE;
+        this.bidDepth = new TreeMap<>(Comparator.reverseOrder());
+        this.askDepth = new TreeMap<>();
+        this.message = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+        this.top = new long[] { LimitBook.NO_PRICE, 0, LimitBook.NO_PRICE, 0 };
+        this.depthLock = new ReentrantLock();
+        this.dispatcher = new Thread(this::dispatch, "market-data");
+        this.dispatcher.setDaemon(true);
+    }
+
+    /*
+     * Start the dispatcher from the levels of the book, before the matching engine
+     * starts: the updates of the orders replayed from the journal are already in the
+     * levels, so they are discarded
+     */
+    public void start(Map<Long, PriceLevel<LimitOrder>> bidLevels, Map<Long, PriceLevel<LimitOrder>> askLevels) {
+        outbound.clear();
+        current.levelCount = 0;
+        current.topChanged = false;
+        loadDepth(bidDepth, bidLevels);
+        loadDepth(askDepth, askLevels);
+        top = topOf();
+        bidPrice = top[0];
+        bidSize = top[1];
+        askPrice = top[2];
+        askSize = top[3];
+        running = true;
+        dispatcher.start();
+    }
+
+    // Stop the dispatcher once it has sent the updates already handed to it, or after a timeout
+    public void stop() {
+        running = false;
+        try {
+            dispatcher.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Subscribe the UDP address to the feed on behalf of the owner (a connection has
+     * one subscription, which replaces the previous one). Return false if there are
+     * already too many subscribers
+     */
+    public boolean subscribe(Object owner, InetAddress host, int port, boolean depth) {
+        if (subscribers.size() >= maxSubscribers && !subscribers.containsKey(owner))
+            return false;
+        subscribers.put(owner, new Subscriber(new InetSocketAddress(host, port), depth));
+        if (depth)
+            snapshotRequested = true; // the new subscriber synchronizes from the next snapshot
+        return true;
+    }
+
+    // Remove the subscription of the owner, if any
+    public void unsubscribe(Object owner) {
+        subscribers.remove(owner);
+    }
+
+    // Note that the level of the price has changed in the current matching pass
+    public void levelChanged(boolean bid, long price) {
+        Update update = current;
+        for (int i = 0; i < update.levelCount; i++) {
+            if (update.prices[i] == price && update.bids[i] == bid)
+                return;
+        }
+        update.add(bid, price);
+    }
+
+    /*
+     * End the current matching pass, once committed: read the new size of the levels
+     * changed by the pass and the best prices of the books, and hand the update to the dispatcher.
+     * If its queue is full the update is kept and completed by the next pass
+     */
+    public void flush(LimitBook bids, LimitBook asks) {
+        Update update = current;
+        if (update.levelCount == 0)
+            return;
+        for (int i = 0; i < update.levelCount; i++) {
+            PriceLevel<LimitOrder> level = (update.bids[i] ? bids : asks).getLevel(update.prices[i]);
+            update.sizes[i] = level == null ? 0 : level.getTotalSize();
+            update.orderCounts[i] = level == null ? 0 : level.getOrderCount();
+        }
+        long newBidPrice = bids.bestPrice();
+        long newBidSize = newBidPrice == LimitBook.NO_PRICE ? 0 : bids.getLevel(newBidPrice).getTotalSize();
+        long newAskPrice = asks.bestPrice();
+        long newAskSize = newAskPrice == LimitBook.NO_PRICE ? 0 : asks.getLevel(newAskPrice).getTotalSize();
+        if (newBidPrice != bidPrice || newBidSize != bidSize || newAskPrice != askPrice || newAskSize != askSize) {
+            update.topChanged = true;
+            bidPrice = newBidPrice;
+            bidSize = newBidSize;
+            askPrice = newAskPrice;
+            askSize = newAskSize;
+        }
+        update.top[0] = bidPrice;
+        update.top[1] = bidSize;
+        update.top[2] = askPrice;
+        update.top[3] = askSize;
+
+        if (!outbound.offer(update)) {
+            mergedUpdates++;
+            flushedLevels = update.levelCount;
+            return;
+        }
+        flushedLevels = 0;
+        Update next = freeUpdates.poll();
+        if (next == null)
+            next = new Update();
+        current = next;
+    }
+
+    /*
+     * Forget the levels changed by the passes whose commit has failed. The levels
+     * of a previous flush that are still waiting for the dispatcher are kept with
+     * the sizes read by that flush
+     */
+    public void discard() {
+        current.levelCount = flushedLevels;
+    }
+
+    // Return the number of datagrams sent and of updates merged into the next one
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    public long getMergedUpdates() {
+        return mergedUpdates;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    // Return the maximum number of levels of every side of a snapshot or of a view
+    public int getSnapshotDepth() {
+        return snapshotDepth;
+    }
+
+    /*
+     * Return the view of the best levels of the depth, taken again only if the
+     * depth has changed since the last one
+     */
+    public DepthView getDepthView() {
+        DepthView view = depthView;
+        if (view != null && view.getVersion() == depthVersion)
+            return view;
+        depthLock.lock();
+        try {
+            // the version changes only under the lock, so the view taken here is up to date
+            view = depthView;
+            if (view == null || view.getVersion() != depthVersion) {
+                view = new DepthView(depthVersion, viewSequence, DepthView.levelsOf(bidDepth, snapshotDepth),
+                        DepthView.levelsOf(askDepth, snapshotDepth), snapshotDepth);
+                depthView = view;
+            }
+            return view;
+        } finally {
+            depthLock.unlock();
+        }
+    }
+
+    /*
+     * Dispatcher thread loop: publish every update queued since the last wake-up,
+     * then send a snapshot if it is time or a subscriber is waiting for one
+     */
+    private void dispatch() {
+        List<Update> updates = new ArrayList<>();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            joinGroup(channel);
+            long nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+            while (running || !outbound.isEmpty()) {
+                long wait = Math.max(0, Math.min(IDLE_POLL_MILLIS, nextSnapshot - System.currentTimeMillis()));
+                Update first;
+                try {
+                    first = outbound.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first != null) {
+                    updates.add(first);
+                    outbound.drainTo(updates);
+                    for (int i = 0; i < updates.size(); i++) {
+                        publish(channel, updates.get(i));
+                        release(updates.get(i));
+                    }
+                    updates.clear();
+                }
+                if (snapshotRequested || System.currentTimeMillis() >= nextSnapshot) {
+                    snapshotRequested = false;
+                    sendSnapshot(channel);
+                    nextSnapshot = System.currentTimeMillis() + snapshotIntervalMillis;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[Market data] Error opening the datagram channel: " + e.getMessage());
+        }
+    }
+
+    // Apply the update to the depth of the dispatcher and send its top and depth messages
+    private void publish(DatagramChannel channel, Update update) {
+        depthLock.lock();
+        try {
+            for (int i = 0; i < update.levelCount; i++) {
+                TreeMap<Long, long[]> depth = update.bids[i] ? bidDepth : askDepth;
+                if (update.sizes[i] == 0)
+                    depth.remove(update.prices[i]);
+                else
+                    depth.put(update.prices[i], new long[] { update.sizes[i], update.orderCounts[i] });
+            }
+            // a view taken before the messages of the update are sent has the previous sequence number: the
+            // depth messages carry the new size of the levels, so applying them again to the view is harmless
+            depthVersion++;
+        } finally {
+            depthLock.unlock();
+        }
+        if (update.topChanged) {
+            top = update.top.clone();
+            startMessage("top", ++topSequence);
+            putTop();
+            endMessage(channel, false);
+        }
+
+        startMessage("depth", ++depthSequence);
+        UDPNotifier.putAscii(message, ",\"levels\":[");
+        for (int i = 0; i < update.levelCount; i++) {
+            if (message.remaining() < MAX_LEVEL_SIZE) {
+                // the message is full: send it and go on with the next sequence number
+                message.put((byte) ']');
+                endMessage(channel, true);
+                startMessage("depth", ++depthSequence);
+                UDPNotifier.putAscii(message, ",\"levels\":[");
+            } else if (i > 0) {
+                message.put((byte) ',');
+            }
+            UDPNotifier.putAscii(message, update.bids[i] ? "{\"side\":\"bid\"," : "{\"side\":\"ask\",");
+            putLevel(update.prices[i], update.sizes[i], update.orderCounts[i]);
+        }
+        message.put((byte) ']');
+        endMessage(channel, true);
+
+        depthLock.lock();
+        try {
+            viewSequence = depthSequence;
+            depthVersion++;
+        } finally {
+            depthLock.unlock();
+        }
+    }
+
+    // Send the best levels of the depth of the dispatcher to the depth subscribers
+    private void sendSnapshot(DatagramChannel channel) {
+        startMessage("snapshot", depthSequence);
+        putTop();
+        UDPNotifier.putAscii(message, ",\"bids\":[");
+        putLevels(bidDepth);
+        UDPNotifier.putAscii(message, "],\"asks\":[");
+        putLevels(askDepth);
+        message.put((byte) ']');
+        endMessage(channel, true);
+    }
+
+    // Write the best levels of the side, as many as the snapshot depth and the message allow
+    private void putLevels(TreeMap<Long, long[]> depth) {
+        int count = 0;
+        for (Map.Entry<Long, long[]> level : depth.entrySet()) {
+            if (count == snapshotDepth || message.remaining() < 2 * MAX_LEVEL_SIZE)
+                break;
+            if (count++ > 0)
+                message.put((byte) ',');
+            message.put((byte) '{');
+            putLevel(level.getKey(), level.getValue()[0], level.getValue()[1]);
+        }
+    }
+
+    // Write the fields of a level after its opening brace, and the closing brace
+    private void putLevel(long price, long size, long orders) {
+        UDPNotifier.putAscii(message, "\"price\":");
+        UDPNotifier.putLong(message, price);
+        UDPNotifier.putAscii(message, ",\"size\":");
+        UDPNotifier.putLong(message, size);
+        UDPNotifier.putAscii(message, ",\"orders\":");
+        UDPNotifier.putLong(message, orders);
+        message.put((byte) '}');
+    }
+
+    private void putTop() {
+        UDPNotifier.putAscii(message, ",\"bidPrice\":");
+        UDPNotifier.putLong(message, top[0]);
+        UDPNotifier.putAscii(message, ",\"bidSize\":");
+        UDPNotifier.putLong(message, top[1]);
+        UDPNotifier.putAscii(message, ",\"askPrice\":");
+        UDPNotifier.putLong(message, top[2]);
+        UDPNotifier.putAscii(message, ",\"askSize\":");
+        UDPNotifier.putLong(message, top[3]);
+    }
+
+    private void startMessage(String type, long sequence) {
+        message.clear();
+        UDPNotifier.putAscii(message, "{\"marketData\":\"");
+        UDPNotifier.putAscii(message, type);
+        UDPNotifier.putAscii(message, "\",\"sequence\":");
+        UDPNotifier.putLong(message, sequence);
+    }
+
+    /*
+     * Close the message and send it to the subscribers (only to the depth ones if it
+     * is a depth message) and to the multicast group
+     */
+    private void endMessage(DatagramChannel channel, boolean depth) {
+        message.put((byte) '}').flip();
+        for (Subscriber subscriber : subscribers.values()) {
+            if (depth && !subscriber.depth)
+                continue;
+            send(channel, subscriber.address);
+        }
+        if (group != null)
+            send(channel, group);
+    }
+
+    private void send(DatagramChannel channel, InetSocketAddress address) {
+        message.position(0);
+        try {
+            channel.send(message, address);
+            sentMessages++;
+        } catch (IOException e) {
+            // a subscriber that can not be reached does not stop the feed of the other ones
+        }
+    }
+
+    // Send the multicast datagrams through the loopback interface, so they stay on the host
+    private void joinGroup(DatagramChannel channel) {
+        if (group == null)
+            return;
+        try {
+            NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+            if (loopback != null)
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, loopback);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        } catch (IOException e) {
+            System.err.println("[Market data] Error setting the multicast interface: " + e.getMessage());
+        }
+    }
+
+    // Give the update back to the engine to be reused
+    private void release(Update update) {
+        update.levelCount = 0;
+        update.topChanged = false;
+        freeUpdates.offer(update);
+    }
+
+    private static void loadDepth(TreeMap<Long, long[]> depth, Map<Long, PriceLevel<LimitOrder>> levels) {
+        depth.clear();
+        for (Map.Entry<Long, PriceLevel<LimitOrder>> level : levels.entrySet()) {
+            PriceLevel<LimitOrder> orders = level.getValue();
+            if (!orders.isEmpty())
+                depth.put(level.getKey(), new long[] { orders.getTotalSize(), orders.getOrderCount() });
+        }
+    }
+
+    // Return the best bid price and size and the best ask price and size of the depth of the dispatcher
+    private long[] topOf() {
+        Map.Entry<Long, long[]> bid = bidDepth.firstEntry();
+        Map.Entry<Long, long[]> ask = askDepth.firstEntry();
+        return new long[] { bid == null ? LimitBook.NO_PRICE : bid.getKey(), bid == null ? 0 : bid.getValue()[0],
+                ask == null ? LimitBook.NO_PRICE : ask.getKey(), ask == null ? 0 : ask.getValue()[0] };
+    }
+}
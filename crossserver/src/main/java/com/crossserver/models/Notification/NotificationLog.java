@@ -0,0 +1,101 @@
+package com.crossserver.models.Notification;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class keeps the last notification messages of a user, indexed by their
+ * sequence number, so a client that has lost a datagram can ask for the messages
+ * again over TCP. The log is a ring: the message with sequence number s is in the
+ * slot s modulo the capacity, so the oldest messages are overwritten and a message
+ * can be stored before the ones that precede it (a message dropped by the notifier
+ * is stored at once, the ones waiting for the dispatcher later). The array of a
+ * slot is reused by the next messages that fit in it, so storing a message does not
+ * allocate once the log is warm
+ */
+public class NotificationLog {
+    private final long[] sequences; // sequence number of the message of every slot, 0 if the slot is empty
+    private final byte[][] messages; // JSON messages of the slots
+    private final int[] lengths; // length of the message in the array of every slot
+    private long nextSequence; // sequence number of the next message of the user, used by the notifier only
+    UDPNotifier.Message pendingMessage; // message of the user waiting for the commit, used by the notifier only
+    private long highestSequence; // highest sequence number stored
+    private final ReentrantLock lock; // guards the slots, written by the notifier and read by the request handlers
+
+    public NotificationLog(int capacity) {
+        this.sequences = new long[capacity];
+        this.messages = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.nextSequence = 1;
+        this.highestSequence = 0;
+        this.lock = new ReentrantLock();
+    }
+
+    // Return the sequence number of the next message of the user and advance it
+    long nextSequence() {
+        return nextSequence++;
+    }
+
+    // Make the sequence number the one of the next message, for a message that has not been sent
+    void resetSequence(long sequence) {
+        nextSequence = sequence;
+    }
+
+    // Store a copy of the message between the position and the limit of the buffer
+    void store(long sequence, ByteBuffer message) {
+        int length = message.remaining();
+        int slot = (int) (sequence % sequences.length);
+        lock.lock();
+        try {
+            byte[] copy = messages[slot];
+            if (copy == null || copy.length < length) {
+                copy = new byte[length];
+                messages[slot] = copy;
+            }
+            message.get(message.position(), copy, 0, length);
+            sequences[slot] = sequence;
+            lengths[slot] = length;
+            highestSequence = Math.max(highestSequence, sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Give to the consumer the stored messages from the sequence number on, in
+     * order, stopping at the first one that is not stored yet, and return the
+     * sequence number that follows the last message given. A sequence number older
+     * than the log starts from the oldest message kept. The array given to the
+     * consumer is reused by the log, so it must be read before accept returns
+     */
+    public long replay(long fromSequence, MessageConsumer consumer) {
+        lock.lock();
+        try {
+            long sequence = Math.max(fromSequence, Math.max(1, highestSequence - sequences.length + 1));
+            for (; sequence <= highestSequence; sequence++) {
+                int slot = (int) (sequence % sequences.length);
+                if (sequences[slot] != sequence)
+                    break;
+                consumer.accept(sequence, messages[slot], lengths[slot]);
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Return the oldest sequence number that can still be replayed
+    public long getFirstSequence() {
+        lock.lock();
+        try {
+            return Math.max(1, highestSequence - sequences.length + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Receiver of the messages replayed from the log: the message is in the first length bytes of the array
+    public interface MessageConsumer {
+        void accept(long sequence, byte[] message, int length);
+    }
+}
@@ -1,73 +1,328 @@
 package com.crossserver.models.Notification;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import com.crossserver.models.Orders.Order;
-import com.google.gson.Gson;
 
+/*
+ * This class sends to the clients the notifications of their executed orders.
+ * The matching engine does not send them: notifyClient writes the executed order
+ * into the pending message of its owner, so all the orders of a user executed by
+ * the same matching pass (an order, the resting orders it fills and the stop orders
+ * it triggers) end up in one closedTrades message. The messages are held until
+ * the journal commit of the pass: flush then hands them to a dedicated dispatcher
+ * thread that sends them from a single datagram channel, discard drops them if
+ * the commit has failed. The engine thread never blocks on the network: if the dispatcher falls
+ * behind and its queue is full the message is dropped and counted, as a lost
+ * datagram would be.
+ *
+ * Every message carries the sequence number of the messages of its user, and the
+ * last messages of every user are kept in a NotificationLog, dropped ones included:
+ * a client that sees a gap in the sequence numbers asks for the missing messages
+ * with a replayNotifications request, so the datagrams stay the fast path and a lost
+ * one is recovered over TCP.
+ *
+ * notifyClient and flush are called by the single writer of the order book. The
+ * messages are written in direct buffers that go back and forth between the engine
+ * and the dispatcher, so a notification does not allocate on the engine thread: the
+ * copy kept in the log is made by the dispatcher
+ */
 public class UDPNotifier {
+    private static final int MESSAGE_SIZE = 8 * 1024; // size of a message buffer, larger messages are split
+    private static final int MAX_TRADE_SIZE = 512; // room left for a trade before a message is split
+    private static final long STOP_TIMEOUT_MILLIS = 1000; // time given to the dispatcher to send the last messages
+    private static final long IDLE_POLL_MILLIS = 100; // longest wait of the dispatcher before checking its status
+    private static final byte[] MESSAGE_START = ascii("{\"notification\":\"closedTrades\",\"sequence\":");
+    private static final byte[] TRADES_START = ascii(",\"trades\":[");
+    private static final byte[] MESSAGE_END = ascii("]}");
+
     private ConcurrentHashMap<String, InetSocketAddress> clientUdpAddresses;
+    private final ConcurrentHashMap<String, NotificationLog> logs; // last messages of every user notified
+    private final int logSize; // number of messages kept for every user
+
+    private final ArrayBlockingQueue<Message> outbound; // messages waiting for the dispatcher
+    private final ArrayBlockingQueue<Message> freeMessages; // messages sent and ready to be reused
+    private final List<Message> pending; // messages of the passes waiting for their commit, in order
+    private final Thread dispatcher; // thread that sends the messages
+    private volatile boolean running; // dispatcher status
+    private volatile long droppedMessages; // messages dropped because the dispatcher was behind
+    private volatile long sentMessages; // messages sent by the dispatcher
+
+    // Notification message of a user: the destination and the encoded JSON message
+    static final class Message {
+        private String clientId; // user notified
+        private InetSocketAddress address; // UDP address of the user
+        private NotificationLog log; // log of the messages of the user
+        private long sequence; // sequence number of the message among the ones of the user
+        private final ByteBuffer buffer; // JSON message being written, then flipped to be sent
+        private int tradeCount; // number of trades in the message
+
+        private Message() {
+            this.buffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+        }
+    }
 
-    public UDPNotifier() {
+    public UDPNotifier(int queueSize, int logSize) {
         this.clientUdpAddresses = new ConcurrentHashMap<>();
+        this.logs = new ConcurrentHashMap<>();
+        this.logSize = logSize;
+        this.outbound = new ArrayBlockingQueue<>(queueSize);
+        this.freeMessages = new ArrayBlockingQueue<>(queueSize);
+        this.pending = new ArrayList<>();
+        this.dispatcher = new Thread(this::dispatch, "udp-notifier");
+        this.dispatcher.setDaemon(true);
     }
 
-    public synchronized void unregisterUdpClient(String clientId) {
-        if (clientUdpAddresses.containsKey(clientId))
-            clientUdpAddresses.remove(clientId);
+    // Start the dispatcher thread
+    public void start() {
+        running = true;
+        dispatcher.start();
     }
 
-    public synchronized void registerUdpClient(String clientId, InetAddress host, int port) {
-        if (!clientUdpAddresses.containsKey(clientId)) {
-            InetSocketAddress udpAddress = new InetSocketAddress(host, port);
-            clientUdpAddresses.put(clientId, udpAddress);
+    /*
+     * Stop the dispatcher once it has sent the messages already handed to it, or
+     * after a timeout
+     */
+    public void stop() {
+        // the dispatcher is not interrupted, as that would close its channel
+        running = false;
+        try {
+            dispatcher.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public synchronized void notifyClient(String clientId, Order order) {
+    /*
+     * Remove the UDP address of the user only if it is still the one registered by
+     * the session that is ending: the address registered by a newer session of the
+     * user, even with the same host and port, is a different object and is kept
+     */
+    public void unregisterUdpClient(String clientId, InetSocketAddress address) {
+        if (address == null)
+            return;
+        // the map operation is atomic, so no lock is needed
+        clientUdpAddresses.computeIfPresent(clientId, (id, current) -> current == address ? null : current);
+    }
+
+    /*
+     * Register the UDP address of the user, replacing the previous one, and return
+     * it. The server calls it when the session of the user gives a new port, not for
+     * every order
+     */
+    public InetSocketAddress registerUdpClient(String clientId, InetAddress host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        // the map operation is atomic, so no lock is needed
+        clientUdpAddresses.put(clientId, address);
+        return address;
+    }
+
+    /*
+     * Add the executed order to the notification of its owner for the current
+     * matching pass. The order is encoded at once, so it can be given back to the
+     * order pool as soon as this method returns
+     */
+    public void notifyClient(String clientId, Order order) {
         InetSocketAddress udpClientAddress = clientUdpAddresses.get(clientId);
-        Gson gson = new Gson();
-        if (udpClientAddress != null) {
-            // send fulfilled order notification to client
-            try (DatagramSocket socket = new DatagramSocket()) {
-
-                // Create JSON notification message
-                HashMap<String, Object> message = new HashMap<>();
-                message.put("notification", "closedTrades");
-
-                // Create JSON array of trades that have been closed in the same moment
-                ArrayList<Map<String, Object>> trades = new ArrayList<>();
-                Map<String, Object> trade = new HashMap<>();
-                trade.put("orderId", order.getOrderId());
-                trade.put("type", order.getType());
-                trade.put("orderType", order.getOrderType());
-                trade.put("size", order.getSize());
-                trade.put("price", order.getPrice());
-                trade.put("timestamp", order.getTimestamp());
-                trades.add(trade);
-
-                message.put("trades", trades);
-
-                // Create JSON string
-                String jsonMessage = gson.toJson(message);
-
-                // Send JSON notification message
-                byte[] data = jsonMessage.getBytes(StandardCharsets.UTF_8);
-
-                DatagramPacket packet = new DatagramPacket(data, data.length, udpClientAddress);
-                socket.send(packet);
-            } catch (IOException e) {
-                System.err.println("Error sending notification to " + clientId + ": " + e.getMessage());
+        if (udpClientAddress == null)
+            return;
+
+        Message message = pendingMessageOf(clientId, udpClientAddress);
+        if (message.buffer.remaining() < MAX_TRADE_SIZE) {
+            // the message is full: it waits for the commit as it is and the next trades go to a new one
+            message.log.pendingMessage = null;
+            message = pendingMessageOf(clientId, udpClientAddress);
+        }
+        ByteBuffer buffer = message.buffer;
+        if (message.tradeCount++ > 0)
+            buffer.put((byte) ',');
+        putAscii(buffer, "{\"orderId\":");
+        putLong(buffer, order.getOrderId());
+        putAscii(buffer, ",\"type\":\"");
+        putAscii(buffer, String.valueOf(order.getType()));
+        putAscii(buffer, "\",\"orderType\":\"");
+        putAscii(buffer, String.valueOf(order.getOrderType()));
+        putAscii(buffer, "\",\"size\":");
+        putLong(buffer, order.getSize());
+        putAscii(buffer, ",\"price\":");
+        putLong(buffer, order.getPrice());
+        putAscii(buffer, ",\"timestamp\":");
+        putLong(buffer, order.getTimestamp());
+        buffer.put((byte) '}');
+    }
+
+    /*
+     * Hand the messages of the committed passes to the dispatcher, one per user
+     * unless a message was full
+     */
+    public void flush() {
+        for (int i = 0; i < pending.size(); i++) {
+            Message message = pending.get(i);
+            // the slot is cleared before the dispatcher gets the message and may reuse it
+            message.log.pendingMessage = null;
+            send(message);
+        }
+        pending.clear();
+    }
+
+    /*
+     * Drop the messages of the passes whose commit has failed. The sequence numbers
+     * of the messages are given back, so the next message of a user follows the
+     * last one sent
+     */
+    public void discard() {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Message message = pending.get(i);
+            message.log.pendingMessage = null;
+            message.log.resetSequence(message.sequence);
+            release(message);
+        }
+        pending.clear();
+    }
+
+    // Return the log of the messages of the user, null if the user has never been notified
+    public NotificationLog getLog(String clientId) {
+        return logs.get(clientId);
+    }
+
+    // Return the number of messages sent and dropped
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /*
+     * Return the message of the user waiting for the commit, opened if there is none.
+     * The message is found through the log of the user, so the lookup does not
+     * depend on the number of users notified by the pass
+     */
+    private Message pendingMessageOf(String clientId, InetSocketAddress address) {
+        NotificationLog log = logs.get(clientId);
+        if (log == null) {
+            log = new NotificationLog(logSize);
+            logs.put(clientId, log);
+        }
+        Message message = log.pendingMessage;
+        if (message != null)
+            return message;
+        message = freeMessages.poll();
+        if (message == null)
+            message = new Message();
+        message.clientId = clientId;
+        message.address = address;
+        message.log = log;
+        message.sequence = log.nextSequence();
+        message.tradeCount = 0;
+        message.buffer.clear();
+        message.buffer.put(MESSAGE_START);
+        putLong(message.buffer, message.sequence);
+        message.buffer.put(TRADES_START);
+        log.pendingMessage = message;
+        pending.add(message);
+        return message;
+    }
+
+    /*
+     * Close the message and queue it for the dispatcher. If the queue is full the
+     * message is not sent but it is stored in the log, so it can be replayed
+     */
+    private void send(Message message) {
+        message.buffer.put(MESSAGE_END).flip();
+        if (!outbound.offer(message)) {
+            droppedMessages++;
+            message.log.store(message.sequence, message.buffer);
+            release(message);
+        }
+    }
+
+    // Give the message back to be reused
+    private void release(Message message) {
+        message.clientId = null;
+        message.address = null;
+        message.log = null;
+        freeMessages.offer(message);
+    }
+
+    /*
+     * Dispatcher thread loop: wait for the messages and send every message queued
+     * since the last wake-up before waiting again
+     */
+    private void dispatch() {
+        List<Message> messages = new ArrayList<>();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            while (running || !outbound.isEmpty()) {
+                Message first;
+                try {
+                    first = outbound.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first == null)
+                    continue;
+                messages.add(first);
+                outbound.drainTo(messages);
+                for (int i = 0; i < messages.size(); i++) {
+                    Message message = messages.get(i);
+                    // the message is stored before being sent: a client that sees it can replay the previous ones
+                    message.log.store(message.sequence, message.buffer);
+                    try {
+                        channel.send(message.buffer, message.address);
+                        sentMessages++;
+                    } catch (IOException e) {
+                        System.err.println(
+                                "Error sending notification to " + message.clientId + ": " + e.getMessage());
+                    }
+                    release(message);
+                }
+                messages.clear();
             }
+        } catch (IOException e) {
+            System.err.println("[Notifier] Error opening the datagram channel: " + e.getMessage());
         }
     }
 
+    // Write the ASCII characters of the text (the names and the values of the messages are ASCII)
+    static void putAscii(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    // Write the decimal digits of the number without creating a string
+    static void putLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                putAscii(buffer, "9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,303 @@
+package com.crossserver.models;
+
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import com.crossserver.CrossServerMain;
+import com.crossserver.models.Network.BinaryProtocol;
+import com.crossserver.models.Network.ResponseWriter;
+import com.crossserver.models.Orders.ExecutionReport;
+import com.crossserver.models.Orders.Side;
+import com.crossserver.models.Session.Session;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+
+/*
+ * This class handles the requests of a client connection whatever the network
+ * front end that reads them: it parses the JSON request, dispatches it to the
+ * server and keeps the session of the user logged in through the connection: the
+ * orders and the cancellations of the connection are made for that session, so
+ * the server neither looks the user up nor trusts the user named by the request
+ * (a request that names another user is rejected). A request that
+ * carries a "requestId" gets it back in its response, so the client can send
+ * several requests without waiting and match the responses that the non-blocking
+ * front end may return out of order. The requests of a connection that speaks the
+ * binary protocol arrive as frames: the orders are decoded from their fixed layout
+ * and applied on behalf of the session of the connection, the other
+ * operations carry a JSON request. The login, the logout and the closing of the
+ * connection change the user of the connection one at a time: the lock is not the
+ * monitor of the handler, so a virtual thread that waits for it does not pin its
+ * carrier thread. When the session of the user expires the front end is asked to
+ * close the connection
+ */
+public class RequestHandler {
+
+    private final InetAddress clientAddress; // address of the client, used for the UDP notifications
+    private final Gson gson; // JSON parser
+    private final CrossServerMain server; // reference to server instance
+    private volatile Session session; // session of the user logged in through the connection, null if none
+    private final ReentrantLock lock; // serializes the changes of the user of the connection
+    private final Runnable disconnect; // closes the connection, given by the front end
+
+    public RequestHandler(InetAddress clientAddress, CrossServerMain server, Runnable disconnect) {
+        this.clientAddress = clientAddress;
+        this.server = server;
+        this.disconnect = disconnect;
+        this.gson = new Gson();
+        this.session = null;
+        this.lock = new ReentrantLock();
+    }
+
+    /*
+     * Handle a request line received from the client and return the response line
+     * to send back
+     */
+    public String handleLine(String line) {
+        return handle(parse(line));
+    }
+
+    /*
+     * Parse a request line received from the client, return null if it is not a
+     * JSON object
+     */
+    public JsonObject parse(String line) {
+        try {
+            return gson.fromJson(line, JsonObject.class);
+        } catch (JsonSyntaxException e) {
+            return null;
+        }
+    }
+
+    /*
+     * Return true if the request carries a request ID, so its response can be
+     * returned before the ones of the requests received earlier
+     */
+    public static boolean isPipelined(JsonObject request) {
+        return request != null && request.has("requestId");
+    }
+
+    /*
+     * Handle a request parsed by parse (null if it was not valid JSON) and return the
+     * response line to send back, with the request ID of the request if any
+     */
+    public String handle(JsonObject request) {
+        if (request == null)
+            return ResponseWriter.response(103, "Invalid request");
+        String response = handleRequest(request);
+        if (!isPipelined(request) || !response.startsWith("{"))
+            return response;
+        // the request ID is the first field of the response, whatever the operation
+        return "{\"requestId\":" + gson.toJson(request.get("requestId"))
+                + (response.length() > 2 ? "," : "") + response.substring(1);
+    }
+
+    /*
+     * Return true if the binary frame carries a request ID, so its response can be
+     * returned before the ones of the frames received earlier
+     */
+    public static boolean isPipelined(ByteBuffer payload) {
+        return payload.remaining() >= BinaryProtocol.HEADER_SIZE && BinaryProtocol.requestIdOf(payload) != 0;
+    }
+
+    /*
+     * Handle the payload of a binary frame (opcode, request ID and body) and return
+     * the response frame to send back, length prefix included
+     */
+    public byte[] handleFrame(ByteBuffer payload) {
+        long requestId = 0;
+        try {
+            byte opcode = payload.get();
+            requestId = payload.getLong();
+            if (opcode == BinaryProtocol.JSON) {
+                String line = StandardCharsets.UTF_8.decode(payload).toString();
+                return BinaryProtocol.jsonFrame(requestId, handle(parse(line)));
+            }
+            return handleOrder(opcode, requestId, payload);
+        } catch (BufferUnderflowException e) { // the frame is shorter than its layout
+            return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.INVALID_REQUEST, -1, 0, null);
+        } catch (Exception e) { // catch any exception and return an internal error to the client
+            return BinaryProtocol.orderResultFrame(requestId, -1, -1, 0, null);
+        }
+    }
+
+    /*
+     * Decode the order of a binary frame, apply it for the user logged in through
+     * the connection and return the frame of its result
+     */
+    private byte[] handleOrder(byte opcode, long requestId, ByteBuffer body) {
+        Session session = activeSession();
+        if (session == null)
+            return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.INVALID_REQUEST, -1, 0, null);
+
+        long orderId;
+        ExecutionReport report = null;
+        switch (opcode) {
+            case BinaryProtocol.LIMIT:
+            case BinaryProtocol.MARKET:
+            case BinaryProtocol.STOP: {
+                // the insertions share their layout
+                Side type = BinaryProtocol.sideOf(body.get());
+                long size = body.getLong();
+                long price = body.getLong(); // limit price, maximum slippage or stop price
+                int udpPort = body.getInt();
+                if (opcode == BinaryProtocol.LIMIT) {
+                    orderId = server.insertLimitOrder(session, clientAddress, udpPort, type, size, price);
+                    report = server.getExecutionReport();
+                } else if (opcode == BinaryProtocol.MARKET) {
+                    orderId = server.insertMarketOrder(session, clientAddress, udpPort, type, size, price);
+                    report = server.getExecutionReport();
+                } else {
+                    orderId = server.insertStopOrder(session, clientAddress, udpPort, type, size, price);
+                }
+                break;
+            }
+            case BinaryProtocol.CANCEL:
+                orderId = server.cancelOrder(session.getUsername(), body.getLong());
+                break;
+            case BinaryProtocol.MODIFY: {
+                long modifiedOrderId = body.getLong();
+                long size = body.getLong();
+                long price = body.getLong();
+                if (size <= 0 || price <= 0)
+                    return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.INVALID_REQUEST, -1, 0, null);
+                orderId = server.modifyOrder(session.getUsername(), modifiedOrderId, size, price);
+                report = server.getExecutionReport();
+                break;
+            }
+            default:
+                return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.INVALID_REQUEST, -1, 0, null);
+        }
+        long updatedUserSessionTime = session.updateActivity(); // update user activity
+        if (orderId < 0)
+            return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.REJECTED, orderId,
+                    updatedUserSessionTime, null);
+        return BinaryProtocol.orderResultFrame(requestId, BinaryProtocol.OK, orderId, updatedUserSessionTime,
+                report);
+    }
+
+    /*
+     * Close the session of the connection: the user logged in through it is logged
+     * out and its market data subscription ends
+     */
+    public void close() {
+        server.getMarketData().unsubscribe(this);
+        lock.lock();
+        try {
+            server.getSessionManager().logoutUser(session);
+            session = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * End the connection whose session has expired. The session is forgotten before
+     * the connection is closed, so the closing does not log out a later session of
+     * the same user. Nothing is done if the connection is no longer bound to the
+     * session
+     */
+    public void expire(Session expired) {
+        lock.lock();
+        try {
+            if (session != expired)
+                return;
+            session = null;
+        } finally {
+            lock.unlock();
+        }
+        disconnect.run();
+    }
+
+    /*
+     * Return the session bound to the connection, null if the connection is not
+     * logged in or if the session has been ended by a logout or an expiry
+     */
+    private Session activeSession() {
+        Session current = session;
+        return current != null && current.isActive() ? current : null;
+    }
+
+    /*
+     * Handle the client request and return the response to the client
+     */
+    private String handleRequest(JsonObject request) {
+        try {
+            // check if the request has the operation parameter
+            if (!request.has("operation")) {
+                return ResponseWriter.response(103, "Missing parameter");
+            }
+            String operation = request.get("operation").getAsString();
+
+            // select the method according to the operation
+            switch (operation) {
+                case "register": // register
+                    return server.register(request);
+                case "updateCredentials": // update credentials
+                    return server.updateCredentials(request);
+                case "login": // Login
+                    lock.lock();
+                    try {
+                        // a connection holds one session at a time
+                        if (activeSession() != null)
+                            return ResponseWriter.response(102, "User already logged in");
+                        Map<String, Object> loginResponse = new HashMap<>(server.login(request, this));
+
+                        // if the login was successful, bind the session of the user to the connection
+                        if (loginResponse.containsKey("userSession")) {
+                            session = (Session) loginResponse.get("userSession");
+                            loginResponse.remove("userSession"); // remove the session from the response
+                        }
+                        return gson.toJson(loginResponse); // return the formatted response to the client
+                    } finally {
+                        lock.unlock();
+                    }
+
+                case "logout": // Logout
+                    lock.lock();
+                    try {
+                        String logoutResponse = server.logout(request, activeSession());
+                        if (session != null && !session.isActive())
+                            session = null; // the connection is no longer bound to the session
+                        return logoutResponse;
+                    } finally {
+                        lock.unlock();
+                    }
+
+                case "insertLimitOrder": // add limit order
+                    return server.handleLimitOrderRequest(request, activeSession(), clientAddress);
+                case "insertMarketOrder": // add market order
+                    return server.handleMarketOrderRequest(request, activeSession(), clientAddress);
+                case "insertStopOrder": // add stop order
+                    return server.handleStopOrderRequest(request, activeSession(), clientAddress);
+                case "cancelOrder": // cancel order
+                    return server.cancelOrder(request, activeSession());
+                case "modifyOrder": // change the size and the price of a limit order
+                    return server.modifyOrder(request, activeSession());
+                case "batch": // orders and cancellations applied as one unit
+                    return server.handleBatchRequest(request, activeSession(), clientAddress);
+                case "getPriceHistory": // get order book history
+                    return server.getPriceHistory(request, activeSession());
+                case "getDayTrades": // get a page of the trades of a day
+                    return server.getDayTrades(request, activeSession());
+                case "replayNotifications": // notifications lost by the client
+                    return server.replayNotifications(request, activeSession());
+                case "subscribeMarketData": // live best prices and depth of the book
+                    return server.subscribeMarketData(request, clientAddress, this);
+                case "unsubscribeMarketData": // stop the market data feed
+                    return server.unsubscribeMarketData(this);
+                case "getOrderBook": // best levels of the book
+                    return server.getOrderBook(request);
+                default: // error
+                    return ResponseWriter.response(-1, "Operation not recognized");
+            }
+        } catch (Exception e) { // catch any exception and return an internal error message to the client 
+            return ResponseWriter.response(-1, "Internal server error: " + e.getMessage());
+        }
+    }
+
+}
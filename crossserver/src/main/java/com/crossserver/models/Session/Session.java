@@ -0,0 +1,100 @@
+package com.crossserver.models.Session;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * This class is the session of a logged in user: the time of its last activity,
+ * the UDP address its notifications are sent to and what to do when it expires. The
+ * login binds the session to the connection of the user, so the requests of the
+ * connection use it directly: its username is the one string that identifies the
+ * user to the order book, and its activity is recorded without looking the user up.
+ *
+ * The activity is written by the threads that handle the requests of the user
+ * without any lock, the timing wheel only reads it when the session reaches its
+ * bucket, so an activity update never moves the session between buckets. A session
+ * that has ended (logout or expiry) keeps ENDED as its last activity, so it can end
+ * only once and the wheel drops it the next time it finds it
+ */
+public final class Session {
+    static final long ENDED = -1; // last activity of a session that has ended
+    private static final int NO_UDP_PORT = -1; // UDP port of a session that has not registered one yet
+
+    final String username; // user of the session
+    final Consumer<Session> onExpiry; // called when the session expires, null if nothing has to be done
+    private final AtomicLong lastActivity; // time of the last activity in milliseconds, ENDED once ended
+    private volatile InetSocketAddress udpAddress; // UDP address registered by the session, null if none
+    Session next; // next session of the same bucket of the wheel, used only by the timer thread
+    long deadline; // tick the session is scheduled at in the wheel, used only by the timer thread
+
+    Session(String username, long loginTime, Consumer<Session> onExpiry) {
+        this.username = username;
+        this.onExpiry = onExpiry;
+        this.lastActivity = new AtomicLong(loginTime);
+        this.udpAddress = null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    // Return true until the session is ended by a logout or an expiry
+    public boolean isActive() {
+        return lastActivity.get() != ENDED;
+    }
+
+    /*
+     * Record an activity of the user, return the current time or -1 if the
+     * session has ended
+     */
+    public long updateActivity() {
+        long currentTime = System.currentTimeMillis();
+        return touch(currentTime) ? currentTime : -1;
+    }
+
+    public int getUdpPort() {
+        InetSocketAddress address = udpAddress;
+        return address == null ? NO_UDP_PORT : address.getPort();
+    }
+
+    // Return the UDP address registered in the notifier by the session, null if none
+    public InetSocketAddress getUdpAddress() {
+        return udpAddress;
+    }
+
+    public void setUdpAddress(InetSocketAddress udpAddress) {
+        this.udpAddress = udpAddress;
+    }
+
+    long getLastActivity() {
+        return lastActivity.get();
+    }
+
+    /*
+     * Record an activity of the user, return false if the session has already
+     * ended. The time never goes back, so a late update does not shorten the session
+     */
+    boolean touch(long time) {
+        while (true) {
+            long last = lastActivity.get();
+            if (last == ENDED)
+                return false;
+            if (last >= time || lastActivity.compareAndSet(last, time))
+                return true;
+        }
+    }
+
+    /*
+     * End the session if its last activity is still the one the caller has seen,
+     * return false if the session has been used or ended in the meantime
+     */
+    boolean end(long seenActivity) {
+        return seenActivity != ENDED && lastActivity.compareAndSet(seenActivity, ENDED);
+    }
+
+    // End the session whatever its last activity
+    void end() {
+        lastActivity.set(ENDED);
+    }
+}
@@ -1,16 +1,40 @@
 package com.crossserver.models.Session;
 
-import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
+/*
+ * This class keeps the sessions of the logged in users and expires the ones left
+ * inactive for longer than the session timeout. The sessions are kept in a
+ * hierarchical timing wheel advanced once a second by the timer thread: an
+ * activity update, made through the session bound to the connection of the user,
+ * only writes the time of the session, with no lock and without moving it, and
+ * when the session reaches its bucket the wheel either schedules it again at the
+ * end of its new timeout or expires it. So the work of the timer
+ * is proportional to the sessions that come due, never a scan of all of them.
+ * The new sessions are handed to the timer through a lock-free queue, so the
+ * wheel is used by a single thread.
+ *
+ * When a session expires the user is logged out and the action given at its
+ * login is run (the server unregisters its UDP endpoint and closes its connection)
+ */
 public class SessionManager {
-    private final ConcurrentHashMap<String, Long> sessionMap;
+    private static final long TICK_MILLIS = 1000; // precision of the expiry
+
+    private final ConcurrentHashMap<String, Session> sessionMap;
     private final long sessionTimeout; // Timeout in milliseconds
     private final ScheduledExecutorService executor; // Monitor user session
+    private final ConcurrentLinkedQueue<Session> newSessions; // sessions not scheduled in the wheel yet
+    private final TimingWheel wheel; // sessions by expiry time, used only by the timer thread
+    private final Consumer<Session> dueSession; // handler of the sessions found by the wheel
+    private volatile long expiredSessions; // sessions expired since the start
 
     public SessionManager(long timeoutInMillis) {
         this.sessionTimeout = timeoutInMillis;
         sessionMap = new ConcurrentHashMap<>();
+        newSessions = new ConcurrentLinkedQueue<>();
+        wheel = new TimingWheel(System.currentTimeMillis() / TICK_MILLIS);
+        dueSession = this::checkSession;
         executor = Executors.newSingleThreadScheduledExecutor();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -19,15 +43,27 @@ public class SessionManager {
         startSessionMonitor();
     }
 
-    // Save user session
-    public void loginUser(String username) {
-        sessionMap.put(username, System.currentTimeMillis());
+    /*
+     * Start the session of the user and return it, the action is run with the
+     * session if it expires. Return null if the user already has a session
+     */
+    public Session loginUser(String username, Consumer<Session> onExpiry) {
+        Session session = new Session(username, System.currentTimeMillis(), onExpiry);
+        if (sessionMap.putIfAbsent(username, session) != null)
+            return null;
+        newSessions.offer(session);
+        return session;
     }
 
-    // Remove user session
-    public synchronized void logoutUser(String username) {
-        if (username != null && sessionMap.containsKey(username))
-            sessionMap.remove(username);
+    /*
+     * End the session, the user is logged out only if this is still its session.
+     * The wheel drops the session when it finds it
+     */
+    public void logoutUser(Session session) {
+        if (session == null)
+            return;
+        sessionMap.remove(session.username, session);
+        session.end();
     }
 
     // Check if user is logged in
@@ -35,39 +71,57 @@ public class SessionManager {
         return sessionMap.containsKey(username);
     }
 
-    /*
-     * Update user activity
-     * Return the current time if user is logged in
-     * Return -1 if user is not logged in
-     */
-
-    public synchronized long updateUserActivity(String username) {
-        long currentTime = System.currentTimeMillis();
-        if (!sessionMap.containsKey(username))
-            return -1;
-        sessionMap.put(username, currentTime);
-        return currentTime;
+    // Return the number of sessions expired since the start
+    public long getExpiredSessions() {
+        return expiredSessions;
     }
 
-    // Monitor user each user session
+    // Advance the timing wheel every tick
     private void startSessionMonitor() {
         executor.scheduleAtFixedRate(() -> {
+            Session session;
+            while ((session = newSessions.poll()) != null) {
+                wheel.schedule(session, deadlineOf(session.getLastActivity()));
+            }
+            // a late run catches up with all the ticks elapsed
+            wheel.advanceTo(System.currentTimeMillis() / TICK_MILLIS, dueSession);
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-            ConcurrentHashMap<String, Long> copySessionMap;
-            // Create a copy of the session map to avoid concurrent modification exception
-            synchronized (sessionMap) {
-                copySessionMap = new ConcurrentHashMap<>(sessionMap);
+    /*
+     * Handle a session whose bucket has come: drop it if it has ended, schedule it
+     * again if it has been used since it was scheduled, expire it otherwise
+     */
+    private void checkSession(Session session) {
+        while (true) {
+            long lastActivity = session.getLastActivity();
+            if (lastActivity == Session.ENDED)
+                return;
+            long deadline = deadlineOf(lastActivity);
+            if (deadline > wheel.getCurrentTick()) {
+                wheel.schedule(session, deadline);
+                return;
+            }
+            // the session ends only if no activity has been recorded since it was read
+            if (session.end(lastActivity))
+                break;
+        }
+        sessionMap.remove(session.username, session);
+        expiredSessions++;
+        System.out.println(
+                "[Session user manager] User " + session.username + " has been removed due to inactivity");
+        if (session.onExpiry != null) {
+            try {
+                session.onExpiry.accept(session);
+            } catch (RuntimeException e) { // the timer must keep running
+                System.err.println("[Session user manager] Error expiring the session of " + session.username
+                        + ": " + e.getMessage());
             }
-            long currentTime = System.currentTimeMillis();
-            copySessionMap.entrySet().removeIf(entry -> {
-                if (currentTime - entry.getValue() > sessionTimeout) {
-                    System.out.println(
-                            "[Session user manager] User " + entry.getKey() + " has been removed due to inactivity");
-                    return true;
-                }
-                return false;
-            });
+        }
+    }
 
-        }, 0, 60, TimeUnit.SECONDS); // Check every 60 seconds
+    // Return the tick at which a session last used at the time expires
+    private long deadlineOf(long lastActivity) {
+        return (lastActivity + sessionTimeout + TICK_MILLIS - 1) / TICK_MILLIS;
     }
 }
@@ -0,0 +1,109 @@
+package com.crossserver.models.Session;
+
+import java.util.function.Consumer;
+
+/*
+ * This class is a hierarchical timing wheel of sessions. Time is counted in ticks
+ * and every level has 64 buckets: a bucket of the first level holds the sessions
+ * due at one tick, a bucket of the next level the sessions due in a span of 64
+ * ticks, and so on, so four levels cover 64^4 ticks (about 194 days with a tick of
+ * one second). A session is scheduled in the level whose span fits its distance
+ * from the current tick; when the current tick enters the span of a bucket of an
+ * upper level the sessions of the bucket are moved down to the lower levels, and
+ * the sessions of the bucket of the first level of the current tick are handed to
+ * the caller. Scheduling and moving a session are O(1) and a session is moved at
+ * most once per level, so advancing the wheel costs the sessions that are due and
+ * never a scan of all the sessions.
+ *
+ * The buckets are lists linked through the sessions themselves, so the wheel does
+ * not allocate. The wheel is not thread safe: it is used only by the timer thread
+ */
+final class TimingWheel {
+    private static final int LEVELS = 4; // number of levels
+    private static final int SLOT_BITS = 6; // 64 buckets per level
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final long SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DISTANCE = (1L << (SLOT_BITS * LEVELS)) - 1; // farthest tick that fits the wheel
+
+    private final Session[][] buckets; // first session of every bucket of every level, null if the bucket is empty
+    private long currentTick; // last tick handled
+    private int size; // number of sessions in the wheel
+
+    TimingWheel(long startTick) {
+        this.buckets = new Session[LEVELS][SLOTS];
+        this.currentTick = startTick;
+        this.size = 0;
+    }
+
+    long getCurrentTick() {
+        return currentTick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /*
+     * Schedule the session at the tick, the next tick if it is already due. A tick
+     * beyond the range of the wheel is scheduled at its end, where the caller finds
+     * the session again and schedules it once more
+     */
+    void schedule(Session session, long tick) {
+        place(session, Math.min(Math.max(tick, currentTick + 1), currentTick + MAX_DISTANCE));
+    }
+
+    /*
+     * Advance the wheel one tick at a time up to the tick and hand every session
+     * due to the consumer, which may schedule it again
+     */
+    void advanceTo(long tick, Consumer<Session> due) {
+        while (currentTick < tick) {
+            currentTick++;
+            // move down the upper buckets whose span starts at this tick, the highest level first
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0)
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level) & SLOT_MASK));
+            }
+            int slot = (int) (currentTick & SLOT_MASK);
+            Session session = buckets[0][slot];
+            buckets[0][slot] = null;
+            while (session != null) {
+                Session next = session.next;
+                session.next = null;
+                size--;
+                due.accept(session);
+                session = next;
+            }
+        }
+    }
+
+    /*
+     * Schedule again the sessions of the bucket, they end up in the lower levels.
+     * Their ticks are not before the current one, and the ones due at the current
+     * tick go to the bucket of the first level that is handled right after
+     */
+    private void cascade(int level, int slot) {
+        Session session = buckets[level][slot];
+        buckets[level][slot] = null;
+        while (session != null) {
+            Session next = session.next;
+            size--;
+            place(session, session.deadline);
+            session = next;
+        }
+    }
+
+    // Add the session to the bucket of its tick in the level that fits its distance
+    private void place(Session session, long tick) {
+        long distance = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && distance >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) (tick >>> (SLOT_BITS * level) & SLOT_MASK);
+        session.deadline = tick;
+        session.next = buckets[level][slot];
+        buckets[level][slot] = session;
+        size++;
+    }
+}
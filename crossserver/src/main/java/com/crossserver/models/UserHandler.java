@@ -1,53 +1,60 @@
 package com.crossserver.models;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import com.crossserver.CrossServerMain;
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.crossserver.models.Network.BinaryProtocol;
 
 /*
  * This class is responsible for handling the client requests and sending the responses back to the client.
+ * It serves a blocking connection on its own thread, the requests are handled by the request handler
+ * one at a time, so the responses keep the order of the requests even when they carry a request ID.
+ * The first byte of the connection tells whether the client speaks JSON lines or the binary protocol
  */
 public class UserHandler implements Runnable {
+    private static final int MAX_FRAME_SIZE = 1024 * 1024; // longer binary frames close the connection
 
     private final Socket clientSocket; // client socket
-    private BufferedReader input; // input stream
-    private PrintWriter output; // output stream
-
-    private final Gson gson; // JSON parser
-    private final CrossServerMain server; // reference to server instance
-    private String username; // reference of the username of the client currently logged in
+    private final RequestHandler requestHandler; // handler of the requests of the connection
 
     public UserHandler(Socket clientSocket, CrossServerMain server) {
         this.clientSocket = clientSocket;
-        this.server = server;
-        gson = new Gson();
-        this.username = null;
+        this.requestHandler = new RequestHandler(clientSocket.getInetAddress(), server, this::disconnect);
+    }
+
+    // Close the socket, the thread blocked reading it ends the connection
+    private void disconnect() {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error while closing the connection: " + e.getMessage());
+        }
     }
 
     @Override
     public void run() {
         // try with resources to automatically close the streams and socket
-        try (BufferedReader input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter output = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-            String request;
-            // read the client requests and send the responses back to the client until the
-            // client disconnects or the thread is interrupted
-            while (!Thread.currentThread().isInterrupted() && !clientSocket.isClosed()
-                    && (request = input.readLine()) != null) {
-                // parse the client JSON request
-                JsonObject jsonRequest = gson.fromJson(request, JsonObject.class);
-                // handle the client request
-                String response = handleRequest(jsonRequest);
-                output.println(response);
-            }
+        try (BufferedInputStream input = new BufferedInputStream(clientSocket.getInputStream());
+                OutputStream output = clientSocket.getOutputStream()) {
+            // look at the first byte of the connection without consuming it
+            input.mark(1);
+            int firstByte = input.read();
+            input.reset();
+            if (firstByte == (BinaryProtocol.HELLO[0] & 0xff))
+                serveFrames(input, output);
+            else if (firstByte != -1)
+                serveLines(input, output);
         } catch (IOException e) {
             System.err.println("[!]Client connection error : " + e.getMessage());
         } finally {
@@ -57,59 +64,55 @@ public class UserHandler implements Runnable {
             } catch (IOException e) {
                 System.err.println("Error while closing the connection: " + e.getMessage());
             }
-            server.getSessionManager().logoutUser(username); // remove the user session from the session manager if the
+            requestHandler.close(); // remove the user session from the session manager
         }
     }
 
-    /*
-     * Handle the client request and return the response to the client
-     */
-    private synchronized String handleRequest(JsonObject request) {
-        try {
-            // check if the request has the operation parameter
-            if (!request.has("operation")) {
-                return gson.toJson(Map.of("response", 103, "errorMessage", "Missing parameter"));
-            }
-            String operation = request.get("operation").getAsString();
+    // Serve the newline-delimited JSON requests
+    private void serveLines(InputStream stream, OutputStream outputStream) throws IOException {
+        BufferedReader input = new BufferedReader(new InputStreamReader(stream));
+        PrintWriter output = new PrintWriter(outputStream, true);
 
-            // select the method according to the operation
-            switch (operation) {
-                case "register": // register
-                    return server.register(request);
-                case "updateCredentials": // update credentials
-                    return server.updateCredentials(request);
-                case "login": // Login
-                    Map<String, Object> loginResponse = new HashMap<>(server.login(request, this));
+        String request;
+        // read the client requests and send the responses back to the client until the
+        // client disconnects or the thread is interrupted
+        while (!Thread.currentThread().isInterrupted() && !clientSocket.isClosed()
+                && (request = input.readLine()) != null) {
+            // handle the client request
+            String response = requestHandler.handleLine(request);
+            output.println(response);
+        }
+    }
 
-                    // if the login was successful, store the username in the session
-                    if (loginResponse.containsKey("userId")) {
-                        username = loginResponse.get("userId").toString(); // store the username in the session
-                        loginResponse.remove("userId"); // remove the username from the response
-                    }
-                    return gson.toJson(loginResponse); // remove username from response and return the formatted
-                                                       // response to the client
+    // Confirm the hello of the binary protocol and serve the frames of the client
+    private void serveFrames(InputStream stream, OutputStream outputStream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        BufferedOutputStream output = new BufferedOutputStream(outputStream);
 
-                case "logout": // Logout
-                    String logoutResponse = server.logout(request, this);
-                    username = null; // remove the username from the session
-                    return logoutResponse;
+        byte[] hello = new byte[BinaryProtocol.HELLO.length];
+        input.readFully(hello);
+        if (!Arrays.equals(hello, BinaryProtocol.HELLO)) {
+            System.err.println("[!]Unsupported binary protocol, closing the connection");
+            return;
+        }
+        output.write(BinaryProtocol.HELLO);
+        output.flush();
 
-                case "insertLimitOrder": // add limit order
-                    return server.handleLimitOrderRequest(request, clientSocket);
-                case "insertMarketOrder": // add market order
-                    return server.handleMarketOrderRequest(request, clientSocket);
-                case "insertStopOrder": // add stop order
-                    return server.handleStopOrderRequest(request, clientSocket);
-                case "cancelOrder": // cancel order
-                    return server.cancelOrder(request);
-                case "getPriceHistory": // get order book history
-                    return server.getPriceHistory(request);
-                default: // error
-                    return gson.toJson(Map.of("response", -1, "errorMessage", "Operation not recognized"));
+        while (!Thread.currentThread().isInterrupted() && !clientSocket.isClosed()) {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                return; // the client has closed the connection
             }
-        } catch (Exception e) { // catch any exception and return an internal error message to the client 
-            return gson.toJson(Map.of("response", -1, "errorMessage", "Internal server error: " + e.getMessage()));
+            if (length < BinaryProtocol.HEADER_SIZE || length > MAX_FRAME_SIZE) {
+                System.err.println("[!]Invalid frame length, closing the connection");
+                return;
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            output.write(requestHandler.handleFrame(ByteBuffer.wrap(payload)));
+            output.flush();
         }
     }
-
 }
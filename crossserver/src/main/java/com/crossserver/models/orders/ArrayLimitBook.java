@@ -0,0 +1,186 @@
+package com.crossserver.models.Orders;
+
+import java.util.Comparator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Side of the limit order book for a dense range of prices: the price levels are
+ * stored in an array indexed by tick, and a bitset of the ticks that hold a level
+ * lets the book find the best price and the next price with a word scan instead of
+ * a map traversal. A level is created the first time its tick is used and then it
+ * is kept in the array, so matching in steady state does not allocate
+ */
+public class ArrayLimitBook implements LimitBook {
+    private final boolean bid; // true for the buy side
+    private final long minPrice; // price of the first tick of the book
+    private final long tickSize; // price distance between two consecutive ticks
+    private final PriceLevel<LimitOrder>[] levels; // price level of every tick, null if never used
+    private final long[] occupied; // bitset of the ticks that have a level in the book
+    private int bestIndex; // tick of the best price, -1 if the book is empty
+    private int levelCount; // number of levels in the book
+
+    public ArrayLimitBook(boolean bid, long minPrice, int numberOfTicks, long tickSize) {
+        if (minPrice <= 0 || numberOfTicks <= 0 || tickSize <= 0) {
+            throw new IllegalArgumentException("Invalid price range of the array book");
+        }
+        this.bid = bid;
+        this.minPrice = minPrice;
+        this.tickSize = tickSize;
+        this.levels = newLevels(numberOfTicks);
+        this.occupied = new long[(numberOfTicks + 63) >>> 6];
+        this.bestIndex = -1;
+        this.levelCount = 0;
+    }
+
+    @Override
+    public boolean isBid() {
+        return bid;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return levelCount == 0;
+    }
+
+    @Override
+    public long bestPrice() {
+        return bestIndex < 0 ? NO_PRICE : priceOf(bestIndex);
+    }
+
+    @Override
+    public long nextPrice(long price) {
+        if (!acceptsPrice(price))
+            return NO_PRICE;
+        int index = indexOf(price);
+        // the worse prices are the higher ticks for the sell side and the lower ones for the buy side
+        int next = bid ? previousOccupied(index - 1) : nextOccupied(index + 1);
+        return next < 0 ? NO_PRICE : priceOf(next);
+    }
+
+    @Override
+    public PriceLevel<LimitOrder> getLevel(long price) {
+        if (!acceptsPrice(price))
+            return null;
+        int index = indexOf(price);
+        return isOccupied(index) ? levels[index] : null;
+    }
+
+    @Override
+    public PriceLevel<LimitOrder> getOrCreateLevel(long price) {
+        int index = checkedIndexOf(price);
+        PriceLevel<LimitOrder> level = levels[index];
+        if (level == null) {
+            level = new PriceLevel<>();
+            levels[index] = level;
+        }
+        occupy(index);
+        return level;
+    }
+
+    @Override
+    public void putLevel(long price, PriceLevel<LimitOrder> level) {
+        int index = checkedIndexOf(price);
+        levels[index] = level;
+        occupy(index);
+    }
+
+    @Override
+    public void removeLevel(long price) {
+        if (!acceptsPrice(price))
+            return;
+        int index = indexOf(price);
+        if (!isOccupied(index))
+            return;
+        // the level object stays in the array and it is reused when the tick is used again
+        occupied[index >>> 6] &= ~(1L << index);
+        levelCount--;
+        if (index == bestIndex)
+            bestIndex = bid ? previousOccupied(index - 1) : nextOccupied(index + 1);
+    }
+
+    @Override
+    public boolean acceptsPrice(long price) {
+        return price >= minPrice && (price - minPrice) / tickSize < levels.length
+                && (price - minPrice) % tickSize == 0;
+    }
+
+    @Override
+    public NavigableMap<Long, PriceLevel<LimitOrder>> toMap() {
+        NavigableMap<Long, PriceLevel<LimitOrder>> map = bid
+                ? new ConcurrentSkipListMap<>(Comparator.reverseOrder())
+                : new ConcurrentSkipListMap<>();
+        for (int index = nextOccupied(0); index >= 0; index = nextOccupied(index + 1)) {
+            PriceLevel<LimitOrder> level = levels[index];
+            if (level != null && !level.isEmpty())
+                map.put(priceOf(index), level);
+        }
+        return map;
+    }
+
+    // Create the array of the price levels, a generic array can not be created directly
+    @SuppressWarnings("unchecked")
+    private static <T extends Order> PriceLevel<T>[] newLevels(int length) {
+        return (PriceLevel<T>[]) new PriceLevel<?>[length];
+    }
+
+    // Mark the tick as holding a level and update the best price
+    private void occupy(int index) {
+        if (isOccupied(index))
+            return;
+        occupied[index >>> 6] |= 1L << index;
+        levelCount++;
+        if (bestIndex < 0 || (bid ? index > bestIndex : index < bestIndex))
+            bestIndex = index;
+    }
+
+    private boolean isOccupied(int index) {
+        return (occupied[index >>> 6] & (1L << index)) != 0;
+    }
+
+    // Return the first tick holding a level at or after the index, -1 if there is none
+    private int nextOccupied(int index) {
+        if (index >= levels.length)
+            return -1;
+        int wordIndex = index >>> 6;
+        long word = occupied[wordIndex] & (-1L << index);
+        while (true) {
+            if (word != 0)
+                return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+            if (++wordIndex == occupied.length)
+                return -1;
+            word = occupied[wordIndex];
+        }
+    }
+
+    // Return the last tick holding a level at or before the index, -1 if there is none
+    private int previousOccupied(int index) {
+        if (index < 0)
+            return -1;
+        int wordIndex = index >>> 6;
+        long word = occupied[wordIndex] & (-1L >>> (63 - (index & 63)));
+        while (true) {
+            if (word != 0)
+                return (wordIndex << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (wordIndex-- == 0)
+                return -1;
+            word = occupied[wordIndex];
+        }
+    }
+
+    private int indexOf(long price) {
+        return (int) ((price - minPrice) / tickSize);
+    }
+
+    private int checkedIndexOf(long price) {
+        if (!acceptsPrice(price)) {
+            throw new IllegalArgumentException("Price " + price + " is not a tick of the book: the ticks are ["
+                    + minPrice + ", " + priceOf(levels.length) + ") by " + tickSize);
+        }
+        return indexOf(price);
+    }
+
+    private long priceOf(int index) {
+        return minPrice + index * tickSize;
+    }
+}
@@ -0,0 +1,54 @@
+package com.crossserver.models.Orders;
+
+import java.util.NavigableMap;
+
+/*
+ * This class holds a copy of the resting orders of the order book taken by the
+ * matching engine between two requests, with the sequence number of the last
+ * journal record it includes. The orders are copies, so the snapshot can be saved
+ * by the persistence thread while the engine keeps changing the book
+ */
+public class BookSnapshot {
+    private final NavigableMap<Long, PriceLevel<LimitOrder>> limitAskOrders; // limit sell orders by price
+    private final NavigableMap<Long, PriceLevel<LimitOrder>> limitBidOrders; // limit buy orders by price
+    private final NavigableMap<Long, PriceLevel<StopOrder>> stopAskOrders; // sell stops by trigger price
+    private final NavigableMap<Long, PriceLevel<StopOrder>> stopBidOrders; // buy stops by trigger price
+    private final long lastTradePrice; // price of the last trade, which decides whether a stop is triggered
+    private final long journalSequence; // sequence number of the last journal record included
+
+    public BookSnapshot(NavigableMap<Long, PriceLevel<LimitOrder>> limitAskOrders,
+            NavigableMap<Long, PriceLevel<LimitOrder>> limitBidOrders,
+            NavigableMap<Long, PriceLevel<StopOrder>> stopAskOrders,
+            NavigableMap<Long, PriceLevel<StopOrder>> stopBidOrders, long lastTradePrice, long journalSequence) {
+        this.limitAskOrders = limitAskOrders;
+        this.limitBidOrders = limitBidOrders;
+        this.stopAskOrders = stopAskOrders;
+        this.stopBidOrders = stopBidOrders;
+        this.lastTradePrice = lastTradePrice;
+        this.journalSequence = journalSequence;
+    }
+
+    public NavigableMap<Long, PriceLevel<LimitOrder>> getLimitAskOrders() {
+        return limitAskOrders;
+    }
+
+    public NavigableMap<Long, PriceLevel<LimitOrder>> getLimitBidOrders() {
+        return limitBidOrders;
+    }
+
+    public NavigableMap<Long, PriceLevel<StopOrder>> getStopAskOrders() {
+        return stopAskOrders;
+    }
+
+    public NavigableMap<Long, PriceLevel<StopOrder>> getStopBidOrders() {
+        return stopBidOrders;
+    }
+
+    public long getLastTradePrice() {
+        return lastTradePrice;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+}
@@ -0,0 +1,54 @@
+package com.crossserver.models.Orders;
+
+/*
+ * This class represents the summary of the trades of a period: opening, closing,
+ * highest and lowest price, total size of the executed orders and number of
+ * executed orders. It is immutable, so it can be handed to any thread
+ */
+public class Candle {
+    private final long openingPrice; // price of the first executed order of the period
+    private final long closingPrice; // price of the last executed order of the period
+    private final long highestPrice; // highest price of the period
+    private final long lowestPrice; // lowest price of the period
+    private final long volume; // total size of the executed orders of the period
+    private final long numberOfTrades; // number of executed orders of the period
+
+    public Candle(long openingPrice, long closingPrice, long highestPrice, long lowestPrice, long volume,
+            long numberOfTrades) {
+        this.openingPrice = openingPrice;
+        this.closingPrice = closingPrice;
+        this.highestPrice = highestPrice;
+        this.lowestPrice = lowestPrice;
+        this.volume = volume;
+        this.numberOfTrades = numberOfTrades;
+    }
+
+    // Check if no order has been executed in the period
+    public boolean isEmpty() {
+        return numberOfTrades == 0;
+    }
+
+    public long getOpeningPrice() {
+        return openingPrice;
+    }
+
+    public long getClosingPrice() {
+        return closingPrice;
+    }
+
+    public long getHighestPrice() {
+        return highestPrice;
+    }
+
+    public long getLowestPrice() {
+        return lowestPrice;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public long getNumberOfTrades() {
+        return numberOfTrades;
+    }
+}
@@ -0,0 +1,266 @@
+package com.crossserver.models.Orders;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * This class is the write-ahead journal of the matching engine: an append-only
+ * binary file with one record for every command applied to the order book. The
+ * engine applies the commands deterministically from their content and their
+ * timestamp, so the trades and the cancellations are not written: replaying the
+ * commands on top of the last snapshot rebuilds exactly the same book and history.
+ * The records of a batch of commands are buffered and written with a single fsync
+ * (group commit) before the results of the batch are returned to the clients.
+ * When a snapshot is taken the file is rolled over: its records are moved to the
+ * previous file, which is deleted once the snapshot has been saved, so the journal
+ * only holds the commands applied since the last saved snapshot.
+ *
+ * Record layout: payload length (int), CRC32 of the payload (int), then the payload:
+ * sequence number (long), command kind (byte), timestamp in seconds (long), order ID
+ * (long), side (byte: 0 none, 1 bid, 2 ask), size (long), price (long), maximum
+ * slippage (long), user ID length (short) and user ID bytes (UTF-8)
+ */
+public class CommandJournal {
+    private static final int HEADER_SIZE = 2 * Integer.BYTES; // length and checksum of a record
+    // size of the payload without the user ID
+    private static final int FIXED_PAYLOAD_SIZE = 6 * Long.BYTES + 2 * Byte.BYTES + Short.BYTES;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024; // initial size of the buffer of the pending records
+
+    private final File file; // journal file
+    private final File previousFile; // records rolled over by the last snapshot not saved yet
+    private final File nextFile; // new journal file being created by a roll over
+    private FileChannel channel; // channel used to append the records
+    private ByteBuffer pending; // records written since the last commit
+    private final CRC32 checksum; // checksum of the record being written
+    private long sequence; // sequence number of the last record appended or replayed
+
+    public CommandJournal(File file) throws IOException {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists())
+            directory.mkdirs();
+        this.file = file;
+        this.previousFile = new File(file.getPath() + ".prev");
+        this.nextFile = new File(file.getPath() + ".next");
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.pending = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        this.checksum = new CRC32();
+        this.sequence = 0;
+    }
+
+    /*
+     * Read the journal and pass to the consumer the commands with a sequence number
+     * greater than the one of the snapshot, in the order they were applied: the
+     * records of the previous file, if the snapshot that rolled it over has not been
+     * saved, then the ones of the journal file. A record truncated or corrupted by a
+     * crash ends the journal: it is cut off so the next records are appended after
+     * the last valid one. Return the number of commands replayed
+     */
+    public long replay(long snapshotSequence, Consumer<EngineCommand> consumer) throws IOException {
+        sequence = snapshotSequence;
+        long replayed = 0;
+        if (previousFile.exists()) {
+            try (FileChannel previous = FileChannel.open(previousFile.toPath(), StandardOpenOption.READ)) {
+                long size = previous.size();
+                long[] counts = replay(previous, snapshotSequence, consumer);
+                // the records of the journal file follow the last one of the previous file
+                if (counts[1] < size)
+                    throw new IOException("Corrupted record in " + previousFile.getName());
+                replayed += counts[0];
+            }
+        }
+
+        long size = channel.size();
+        long[] counts = replay(channel, snapshotSequence, consumer);
+        replayed += counts[0];
+        long validLength = counts[1];
+        if (validLength < size) {
+            System.err.printf("[Journal] Discarded %d bytes of incomplete records at the end of %s%n",
+                    size - validLength, file.getName());
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        return replayed;
+    }
+
+    /*
+     * Replay the records of the file until the first invalid one. Return the number
+     * of commands replayed and the length of the valid records
+     */
+    private long[] replay(FileChannel records, long snapshotSequence, Consumer<EngineCommand> consumer)
+            throws IOException {
+        long size = records.size();
+        long replayed = 0;
+        long validLength = 0;
+        if (size > 0) {
+            MappedByteBuffer buffer = records.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ExecutionReport report = new ExecutionReport(0);
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int storedChecksum = buffer.getInt();
+                if (length < FIXED_PAYLOAD_SIZE || length > buffer.remaining())
+                    break;
+
+                // check that the record has been written entirely
+                ByteBuffer payload = buffer.slice().limit(length);
+                checksum.reset();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != storedChecksum)
+                    break;
+
+                long recordSequence = buffer.getLong();
+                EngineCommand command = read(buffer, report);
+                validLength = buffer.position();
+                sequence = Math.max(sequence, recordSequence);
+                // the commands already included in the snapshot are skipped
+                if (recordSequence > snapshotSequence) {
+                    consumer.accept(command);
+                    replayed++;
+                }
+            }
+        }
+        return new long[] { replayed, validLength };
+    }
+
+    // Decode the command of a record, the fills of the orders are recorded in the report
+    private static EngineCommand read(ByteBuffer records, ExecutionReport report) {
+        EngineCommand.Kind kind = EngineCommand.Kind.values()[records.get()];
+        long timestamp = records.getLong();
+        long orderId = records.getLong();
+        byte side = records.get();
+        long size = records.getLong();
+        long price = records.getLong();
+        long maxSlippage = records.getLong();
+        byte[] userId = new byte[records.getShort()];
+        records.get(userId);
+        Side type = side == 1 ? Side.BID : side == 2 ? Side.ASK : null;
+        return EngineCommand.restore(kind, timestamp, orderId, type, size, price, maxSlippage,
+                new String(userId, StandardCharsets.UTF_8), report);
+    }
+
+    /*
+     * Add the record of the command to the pending records, it is written to the
+     * file by the next commit
+     */
+    public void append(EngineCommand command) {
+        byte[] userId = command.userId == null ? new byte[0] : command.userId.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_PAYLOAD_SIZE + userId.length;
+        ensureCapacity(HEADER_SIZE + length);
+
+        int start = pending.position();
+        pending.position(start + HEADER_SIZE);
+        pending.putLong(++sequence);
+        pending.put((byte) command.kind.ordinal());
+        pending.putLong(command.timestamp);
+        pending.putLong(command.orderId);
+        pending.put((byte) (command.type == Side.BID ? 1 : command.type == Side.ASK ? 2 : 0));
+        pending.putLong(command.size);
+        pending.putLong(command.price);
+        pending.putLong(command.maxSlippage);
+        pending.putShort((short) userId.length);
+        pending.put(userId);
+
+        // checksum of the payload, so a record torn by a crash is detected on replay
+        checksum.reset();
+        checksum.update(pending.duplicate().position(start + HEADER_SIZE).limit(start + HEADER_SIZE + length));
+        pending.putInt(start, length);
+        pending.putInt(start + Integer.BYTES, (int) checksum.getValue());
+    }
+
+    /*
+     * Write the pending records to the file and force them to the disk with a single
+     * fsync for the whole batch
+     */
+    public void commit() throws IOException {
+        if (pending.position() == 0)
+            return;
+        pending.flip();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+        channel.force(false);
+    }
+
+    /*
+     * Move the committed records to the previous file and continue in a new journal
+     * file, it is called when a snapshot is taken after the commit of its records.
+     * Nothing is done if the previous file is still there: the snapshot that rolled
+     * it over has not been saved, and the journal file then also holds the records
+     * of the next snapshot. If the roll over fails the journal must not be written
+     * any more, as the records could be appended to the previous file
+     */
+    public void rollOver() throws IOException {
+        if (previousFile.exists())
+            return;
+        FileChannel next = FileChannel.open(nextFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Files.move(file.toPath(), previousFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(nextFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        channel.close();
+        channel = next;
+    }
+
+    /*
+     * Delete the previous file once the snapshot that rolled it over has been saved,
+     * the sequence numbers keep growing
+     */
+    public void discardRolledOver() throws IOException {
+        Files.deleteIfExists(previousFile.toPath());
+    }
+
+    /*
+     * Discard all the records once a snapshot that includes the whole journal has
+     * been saved, the sequence numbers keep growing
+     */
+    public void truncate() throws IOException {
+        discardRolledOver();
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Return the sequence number of the last command appended or replayed
+    public long getSequence() {
+        return sequence;
+    }
+
+    // Force the entries of the journal directory to the disk, so a rolled over file keeps its name after a crash
+    private void forceDirectory() {
+        File directory = file.getAbsoluteFile().getParentFile();
+        try (FileChannel entries = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            entries.force(true);
+        } catch (IOException e) {
+            // some platforms can not open a directory, the moves are as durable as their file system makes them
+        }
+    }
+
+    private void ensureCapacity(int recordSize) {
+        if (pending.remaining() >= recordSize)
+            return;
+        ByteBuffer larger = ByteBuffer
+                .allocateDirect(Math.max(pending.capacity() * 2, pending.position() + recordSize));
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+    }
+}
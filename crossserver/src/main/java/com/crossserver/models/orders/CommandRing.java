@@ -0,0 +1,101 @@
+package com.crossserver.models.Orders;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Bounded lock-free ring buffer with many producers and a single consumer.
+ * Every slot carries a sequence number: a producer claims a position with a CAS on
+ * the tail and publishes the element by advancing the slot sequence, the consumer
+ * reads the slot only when its sequence says that the element has been published
+ */
+public class CommandRing<T> {
+    private final Object[] buffer; // ring slots
+    private final AtomicLongArray sequences; // sequence number of each slot
+    private final int mask; // capacity - 1, used to map a position to a slot
+    private final AtomicLong tail; // next position claimed by the producers
+    private long head; // next position read by the consumer (accessed only by the consumer thread)
+
+    public CommandRing(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        this.buffer = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.tail = new AtomicLong(0);
+        this.head = 0;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /*
+     * Try to publish the element in the ring, return false if the ring is full
+     */
+    public boolean offer(T element) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) (position & mask);
+            long difference = sequences.get(slot) - position;
+            if (difference == 0) {
+                // the slot is free: try to claim the position
+                if (tail.compareAndSet(position, position + 1))
+                    break;
+            } else if (difference < 0) {
+                // the consumer has not released the slot yet: the ring is full
+                return false;
+            }
+            // another producer claimed the position in the meantime, retry
+        }
+        buffer[slot] = element;
+        sequences.lazySet(slot, position + 1); // publish the element to the consumer
+        return true;
+    }
+
+    /*
+     * Publish the element in the ring waiting for a free slot when the ring is full
+     */
+    public void put(T element) {
+        int attempts = 0;
+        while (!offer(element)) {
+            // back off progressively: spin, then yield and finally park the producer
+            if (attempts < 100)
+                Thread.onSpinWait();
+            else if (attempts < 200)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(1_000L);
+            attempts++;
+        }
+    }
+
+    /*
+     * Remove and return the oldest element of the ring, null if the ring is empty.
+     * It must be called only by the consumer thread
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int slot = (int) (head & mask);
+        if (sequences.get(slot) != head + 1) {
+            return null; // the element has not been published yet
+        }
+        T element = (T) buffer[slot];
+        buffer[slot] = null;
+        sequences.lazySet(slot, head + mask + 1); // release the slot to the producers
+        head++;
+        return element;
+    }
+
+    // Check if the ring does not contain published elements (consumer side)
+    public boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
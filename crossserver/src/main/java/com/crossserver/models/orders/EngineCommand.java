@@ -0,0 +1,119 @@
+package com.crossserver.models.Orders;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * This class represents a request published to the matching engine: it carries the
+ * parameters of the operation and the future used to return the result to the
+ * thread that submitted it
+ */
+public class EngineCommand {
+
+    // Operations supported by the matching engine, a batch or a snapshot is never written to the journal as such
+    public enum Kind {
+        LIMIT, MARKET, STOP, CANCEL, MODIFY, BATCH, SNAPSHOT
+    }
+
+    final Kind kind; // operation requested
+    final long orderId; // order ID
+    final Side type; // order type: bid or ask (insert requests)
+    final long size; // order size (insert and modify requests)
+    final long price; // limit or stop price (limit, stop and modify requests)
+    final long maxSlippage; // maximum distance from the best price at which a market order can be executed
+    final String userId; // user who submitted the request
+    final ExecutionReport report; // report filled with the fills of a limit, market or modify request
+    final EngineCommand[] items; // requests applied one after the other by a batch, null otherwise
+    final CompletableFuture<Long> result; // order ID or error code returned by the order book
+    long timestamp; // time at which the engine applied the request in seconds, written in the journal
+    long outcome; // result of the request, returned once the journal has been committed
+    RuntimeException failure; // error raised by the request, null if it has been applied
+    BookSnapshot snapshot; // copy of the order book taken by a snapshot request
+
+    private EngineCommand(Kind kind, long orderId, Side type, long size, long price, long maxSlippage,
+            String userId, ExecutionReport report, EngineCommand[] items) {
+        this.kind = kind;
+        this.orderId = orderId;
+        this.type = type;
+        this.size = size;
+        this.price = price;
+        this.maxSlippage = maxSlippage;
+        this.userId = userId;
+        this.report = report;
+        this.items = items;
+        this.result = new CompletableFuture<>();
+    }
+
+    public static EngineCommand limit(long orderId, Side type, long size, long limitPrice, String userId,
+            ExecutionReport report) {
+        return new EngineCommand(Kind.LIMIT, orderId, type, size, limitPrice, OrderBook.NO_SLIPPAGE_LIMIT,
+                userId, report, null);
+    }
+
+    public static EngineCommand market(long orderId, Side type, long size, long maxSlippage, String userId,
+            ExecutionReport report) {
+        return new EngineCommand(Kind.MARKET, orderId, type, size, 0, maxSlippage, userId, report, null);
+    }
+
+    public static EngineCommand stop(long orderId, Side type, long size, long stopPrice, String userId) {
+        return new EngineCommand(Kind.STOP, orderId, type, size, stopPrice, OrderBook.NO_SLIPPAGE_LIMIT, userId,
+                null, null);
+    }
+
+    public static EngineCommand cancel(long orderId, String userId) {
+        return new EngineCommand(Kind.CANCEL, orderId, null, 0, 0, OrderBook.NO_SLIPPAGE_LIMIT, userId, null,
+                null);
+    }
+
+    public static EngineCommand modify(long orderId, long size, long price, String userId,
+            ExecutionReport report) {
+        return new EngineCommand(Kind.MODIFY, orderId, null, size, price, OrderBook.NO_SLIPPAGE_LIMIT, userId,
+                report, null);
+    }
+
+    /*
+     * Group the requests so the engine applies them one after the other, with no
+     * request of another client in between, and commits them to the journal
+     * together. Every request keeps its own result
+     */
+    public static EngineCommand batch(EngineCommand[] items) {
+        for (EngineCommand item : items) {
+            if (item.kind == Kind.BATCH)
+                throw new IllegalArgumentException("A batch cannot contain another batch");
+        }
+        return new EngineCommand(Kind.BATCH, 0, null, 0, 0, OrderBook.NO_SLIPPAGE_LIMIT, null, null, items);
+    }
+
+    // Request a copy of the order book between two requests, it does not change the book
+    static EngineCommand snapshot() {
+        return new EngineCommand(Kind.SNAPSHOT, 0, null, 0, 0, OrderBook.NO_SLIPPAGE_LIMIT, null, null, null);
+    }
+
+    // Rebuild a request read from the journal with the time at which it was applied
+    static EngineCommand restore(Kind kind, long timestamp, long orderId, Side type, long size, long price,
+            long maxSlippage, String userId, ExecutionReport report) {
+        EngineCommand command = new EngineCommand(kind, orderId, type, size, price, maxSlippage, userId, report,
+                null);
+        command.timestamp = timestamp;
+        return command;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getOrderId() {
+        return orderId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public CompletableFuture<Long> getResult() {
+        return result;
+    }
+
+    public ExecutionReport getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,107 @@
+package com.crossserver.models.Orders;
+
+import java.util.Arrays;
+
+/*
+ * This class maps the IDs of the executed orders of the hot trade segments to the
+ * index of the user who placed them, with open addressing on primitive keys and
+ * values so that recording a trade neither boxes nor allocates an entry. It is not
+ * thread safe, it is used only by the thread that applies the commands
+ */
+class ExecutedOrderIndex {
+    public static final int NOT_FOUND = -1; // returned when the order is not in the index
+
+    private static final int MIN_CAPACITY = 16; // minimum number of slots
+    private static final long FREE = Long.MIN_VALUE; // key of a free slot (the order IDs are not negative)
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L; // spreads consecutive IDs over the slots
+
+    private long[] keys; // order ID of every slot, FREE if the slot is free
+    private int[] values; // user index of every slot
+    private int mask; // number of slots minus one (the number of slots is a power of two)
+    private int size; // number of orders in the index
+
+    ExecutedOrderIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    // Return the user index of the order, NOT_FOUND if the index does not contain it
+    int get(long orderId) {
+        for (int slot = slotOf(orderId); keys[slot] != FREE; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId)
+                return values[slot];
+        }
+        return NOT_FOUND;
+    }
+
+    boolean contains(long orderId) {
+        return get(orderId) != NOT_FOUND;
+    }
+
+    // Add the order to the index, replacing the user index of the same ID
+    void put(long orderId, int userIndex) {
+        int slot = slotOf(orderId);
+        for (; keys[slot] != FREE; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId) {
+                values[slot] = userIndex;
+                return;
+            }
+        }
+        keys[slot] = orderId;
+        values[slot] = userIndex;
+        // keep the load factor at most one half so the probe sequences stay short
+        if (++size * 2 > keys.length)
+            resize(keys.length * 2);
+    }
+
+    // Remove the order from the index
+    void remove(long orderId) {
+        int slot = slotOf(orderId);
+        for (; keys[slot] != FREE; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId)
+                break;
+        }
+        if (keys[slot] == FREE)
+            return;
+
+        // shift back the following orders of the probe sequence so that no free slot
+        // is left between an order and its home slot
+        int free = slot;
+        for (int next = (free + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+            int home = slotOf(keys[next]);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        keys[free] = FREE;
+        size--;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slotOf(long orderId) {
+        long hash = orderId * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != FREE)
+                put(oldKeys[slot], oldValues[slot]);
+        }
+    }
+}
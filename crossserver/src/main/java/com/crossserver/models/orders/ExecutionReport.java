@@ -0,0 +1,88 @@
+package com.crossserver.models.Orders;
+
+import java.util.Arrays;
+
+/*
+ * This class represents the result of the execution of an order against the book:
+ * one fill for every resting order that has been matched, with the price of its
+ * level and the quantity exchanged. The fills are stored in parallel arrays so that
+ * recording a fill does not allocate
+ */
+public class ExecutionReport {
+    private static final int INITIAL_CAPACITY = 8; // initial number of fills
+
+    private long orderId; // ID of the order that has been executed
+    private long[] fillOrderIds; // IDs of the resting orders matched
+    private long[] fillPrices; // prices of the fills
+    private long[] fillSizes; // quantities of the fills
+    private int fillCount; // number of fills
+    private long filledSize; // total quantity executed
+    private long filledNotional; // sum of price * quantity of the fills
+
+    public ExecutionReport(long orderId) {
+        this.orderId = orderId;
+        this.fillOrderIds = new long[INITIAL_CAPACITY];
+        this.fillPrices = new long[INITIAL_CAPACITY];
+        this.fillSizes = new long[INITIAL_CAPACITY];
+        this.fillCount = 0;
+        this.filledSize = 0;
+        this.filledNotional = 0;
+    }
+
+    // Record the execution of a quantity against a resting order
+    public void addFill(long restingOrderId, long price, long size) {
+        if (fillCount == fillPrices.length) {
+            int capacity = fillCount * 2;
+            fillOrderIds = Arrays.copyOf(fillOrderIds, capacity);
+            fillPrices = Arrays.copyOf(fillPrices, capacity);
+            fillSizes = Arrays.copyOf(fillSizes, capacity);
+        }
+        fillOrderIds[fillCount] = restingOrderId;
+        fillPrices[fillCount] = price;
+        fillSizes[fillCount] = size;
+        fillCount++;
+        filledSize += size;
+        filledNotional += price * size;
+    }
+
+    // Discard the fills so the report can be used for another order
+    public void reset(long orderId) {
+        this.orderId = orderId;
+        this.fillCount = 0;
+        this.filledSize = 0;
+        this.filledNotional = 0;
+    }
+
+    public long getOrderId() {
+        return orderId;
+    }
+
+    public boolean isExecuted() {
+        return fillCount > 0;
+    }
+
+    public int getFillCount() {
+        return fillCount;
+    }
+
+    public long getFillOrderId(int index) {
+        return fillOrderIds[index];
+    }
+
+    public long getFillPrice(int index) {
+        return fillPrices[index];
+    }
+
+    public long getFillSize(int index) {
+        return fillSizes[index];
+    }
+
+    public long getFilledSize() {
+        return filledSize;
+    }
+
+    // Return the volume-weighted average price of the fills, -1 if nothing has been executed
+    public long getAveragePrice() {
+        return filledSize == 0 ? -1 : Math.round((double) filledNotional / filledSize);
+    }
+}
@@ -0,0 +1,47 @@
+package com.crossserver.models.Orders;
+
+import java.util.NavigableMap;
+
+/*
+ * This interface represents one side (bid or ask) of the limit order book: the
+ * price levels of the resting limit orders sorted from the best price to the worst
+ * one. The order book works only through this interface, so the structure that
+ * holds the levels can be chosen in the server configuration
+ */
+public interface LimitBook {
+    long NO_PRICE = -1; // returned when there is no price level
+
+    // Check if the book holds the buy side (best price is the highest one)
+    boolean isBid();
+
+    // Check if the book has no price levels
+    boolean isEmpty();
+
+    // Return the best price of the book, NO_PRICE if the book is empty
+    long bestPrice();
+
+    // Return the first price worse than the given one that has a level, NO_PRICE if there is none
+    long nextPrice(long price);
+
+    // Return the level of the price, null if the book has no level at that price
+    PriceLevel<LimitOrder> getLevel(long price);
+
+    // Return the level of the price, creating it if the book has no level at that price
+    PriceLevel<LimitOrder> getOrCreateLevel(long price);
+
+    // Put a whole level in the book (used when the book is loaded from the database)
+    void putLevel(long price, PriceLevel<LimitOrder> level);
+
+    // Remove the level of the price from the book
+    void removeLevel(long price);
+
+    // Check if the book can hold a level at the price
+    boolean acceptsPrice(long price);
+
+    /*
+     * Return the levels of the book sorted from the best price in a new map. The
+     * levels are the ones of the book, so they can be read only by the thread that
+     * applies the commands, or before the matching engine is started
+     */
+    NavigableMap<Long, PriceLevel<LimitOrder>> toMap();
+}
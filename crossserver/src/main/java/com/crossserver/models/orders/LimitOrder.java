@@ -5,8 +5,13 @@ package com.crossserver.models.Orders;
  */
 public class LimitOrder extends Order {
 
-    public LimitOrder(long orderId, String type, long size, long limitPrice) {
+    public LimitOrder(long orderId, Side type, long size, long limitPrice) {
         super(orderId, type, size, limitPrice);
-        this.orderType = "limit";
+        this.orderType = OrderType.LIMIT;
+    }
+
+    @Override
+    LimitOrder copy() {
+        return copyTo(new LimitOrder(orderId, type, size, price));
     }
 }
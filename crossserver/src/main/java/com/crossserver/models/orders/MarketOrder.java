@@ -5,8 +5,13 @@ package com.crossserver.models.Orders;
  */
 public class MarketOrder extends Order {
 
-    public MarketOrder(long orderId, String type, long size,long price) {
+    public MarketOrder(long orderId, Side type, long size,long price) {
         super(orderId, type, size,price);
-        this.orderType = "market";
+        this.orderType = OrderType.MARKET;
+    }
+
+    @Override
+    MarketOrder copy() {
+        return copyTo(new MarketOrder(orderId, type, size, price));
     }
 }
@@ -0,0 +1,498 @@
+package com.crossserver.models.Orders;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class is the single writer of the order book. In sequenced mode the user
+ * handlers publish their requests in a bounded lock-free ring and one dedicated
+ * thread applies them in order, returning each result through the future of the
+ * request. In direct mode the requests are applied by the calling thread, one at a
+ * time. Every submitting thread owns an execution report that is reused for all
+ * its requests, so the fills of an order do not allocate.
+ * When the journal is enabled every request is written to it before being applied,
+ * and the results are returned only once the records are on disk: the engine thread
+ * commits the journal once per batch of requests (when the ring is drained or the
+ * batch is full), so a single fsync covers all the requests of the batch, and
+ * the notifications and the market data of the batch are published after it.
+ * A batch of requests submitted together is applied as one unit: its requests are
+ * applied consecutively and committed by the same fsync.
+ * If a commit fails the requests of the batch fail with the error, as their records
+ * may not be on disk. A snapshot fails too if the journal can not be rolled over.
+ * After either failure the engine rejects every request: the book holds changes
+ * that the journal can not replay, so it stops changing until the server is
+ * restarted from the snapshot and the journal
+ */
+public class MatchingEngine {
+    private static final int SPIN_CYCLES = 1000; // empty polls before the engine thread parks
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100); // maximum park time when idle
+    private static final int MAX_BATCH_SIZE = 256; // maximum number of requests covered by a journal commit
+
+    private final OrderBook orderBook; // order book updated by the engine
+    private final boolean sequenced; // true if the requests are applied by the engine thread
+    private final CommandRing<EngineCommand> commandRing; // inbound requests
+    private final Thread engineThread; // thread that applies the requests in sequenced mode
+    private final CommandJournal journal; // write-ahead journal of the requests, null if disabled
+    // applies the requests one at a time in direct mode: a virtual thread that waits for it, or that
+    // holds it during the journal fsync, does not pin its carrier thread as a monitor would
+    private final ReentrantLock directLock;
+    private final EngineCommand[] batch; // requests applied and waiting for the journal commit
+    private int batchSize; // number of requests in the batch
+
+    private volatile boolean running; // engine status
+    private volatile boolean idle; // true while the engine thread is parked waiting for requests
+    private volatile UncheckedIOException journalFailure; // error of the failed journal commit, null if none
+
+    private final ThreadLocal<ExecutionReport> reports; // execution report reused by each submitting thread
+
+    private volatile long processedCommands; // number of requests applied to the order book
+    private volatile long busyNanos; // time spent applying requests
+    private volatile long allocatedBytes; // bytes allocated by the engine thread, -1 if not measured
+
+    public MatchingEngine(OrderBook orderBook, boolean sequenced, int ringSize, CommandJournal journal) {
+        this.orderBook = orderBook;
+        this.sequenced = sequenced;
+        this.commandRing = sequenced ? new CommandRing<>(ringSize) : null;
+        this.engineThread = sequenced ? new Thread(this::run, "matching-engine") : null;
+        this.journal = journal;
+        this.directLock = sequenced ? null : new ReentrantLock();
+        this.batch = new EngineCommand[MAX_BATCH_SIZE];
+        this.batchSize = 0;
+        this.reports = ThreadLocal.withInitial(() -> new ExecutionReport(0));
+        this.running = false;
+        this.idle = false;
+        this.allocatedBytes = -1;
+    }
+
+    /*
+     * Replay on the order book the requests of the journal that are not included in
+     * the snapshot with the given sequence number, it must be called before the
+     * engine is started. Return the highest order ID replayed, -1 if there is none
+     */
+    public long recover(long snapshotSequence) throws IOException {
+        if (journal == null)
+            return -1;
+        long[] maxOrderId = { -1 };
+        long replayed = journal.replay(snapshotSequence, command -> {
+            execute(command);
+            maxOrderId[0] = Math.max(maxOrderId[0], command.orderId);
+        });
+        // the replayed requests are already on disk, their changes of the book go to the market data feed
+        orderBook.publishNotifications();
+        System.out.printf("[Journal] %d commands replayed, journal at sequence %d%n", replayed,
+                journal.getSequence());
+        return maxOrderId[0];
+    }
+
+    // Start the engine thread if the engine works in sequenced mode
+    public void start() {
+        running = true;
+        if (sequenced)
+            engineThread.start();
+    }
+
+    /*
+     * Stop the engine: the requests already published are applied before the engine
+     * thread terminates, the ones left in the ring after the timeout are rejected
+     */
+    public void stop(long timeoutMillis) {
+        running = false;
+        if (!sequenced)
+            return;
+
+        LockSupport.unpark(engineThread);
+        try {
+            engineThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!engineThread.isAlive()) {
+            // reject the requests published after the engine thread has terminated
+            EngineCommand command;
+            while ((command = commandRing.poll()) != null) {
+                command.result.completeExceptionally(new IllegalStateException("Matching engine stopped"));
+            }
+        }
+    }
+
+    /*
+     * Insert the limit order matching it against the opposite book and return its
+     * execution report. The report belongs to the calling thread and it is
+     * overwritten by its next request
+     */
+    public ExecutionReport insertLimitOrder(long orderId, Side type, long size, long limitPrice,
+            String userId) {
+        ExecutionReport report = reports.get();
+        submit(EngineCommand.limit(orderId, type, size, limitPrice, userId, report));
+        return report;
+    }
+
+    /*
+     * Execute the market order sweeping the book within the slippage allowed and
+     * return its execution report. The report belongs to the calling thread and it
+     * is overwritten by its next request
+     */
+    public ExecutionReport insertMarketOrder(long orderId, Side type, long size, long maxSlippage,
+            String userId) {
+        ExecutionReport report = reports.get();
+        submit(EngineCommand.market(orderId, type, size, maxSlippage, userId, report));
+        return report;
+    }
+
+    public long insertStopOrder(long orderId, Side type, long size, long stopPrice, String userId) {
+        return submit(EngineCommand.stop(orderId, type, size, stopPrice, userId));
+    }
+
+    /*
+     * Cancel the order of the user, return the order ID or the error code of the
+     * order book
+     */
+    public long cancelOrder(long orderId, String userId) {
+        return submit(EngineCommand.cancel(orderId, userId));
+    }
+
+    /*
+     * Change the size and the price of the resting limit order of the user, return
+     * the order ID or the error code of the order book. The fills of an order moved
+     * across the book are in the execution report of the calling thread
+     */
+    public long modifyOrder(long orderId, long newSize, long newPrice, String userId) {
+        return submit(EngineCommand.modify(orderId, newSize, newPrice, userId, reports.get()));
+    }
+
+    /*
+     * Return the execution report of the calling thread, filled by its last limit,
+     * market or modify request
+     */
+    public ExecutionReport getExecutionReport() {
+        return reports.get();
+    }
+
+    /*
+     * Apply the requests one after the other, with no request of another client in
+     * between, and wait until all of them have been applied. The result of every
+     * request is in its own future, a request that fails does not stop the next ones
+     */
+    public void applyBatch(EngineCommand[] commands) {
+        if (commands.length > 0)
+            submit(EngineCommand.batch(commands));
+    }
+
+    /*
+     * Take a copy of the order book between two requests, so it can be saved while
+     * the engine keeps applying requests. The journal records of the requests applied
+     * before it are committed first, so the snapshot includes exactly the records up
+     * to its sequence number, and rolled over: once the snapshot has been saved they
+     * can be discarded. Before the engine is started, and once it has been stopped,
+     * the snapshot is taken by the calling thread
+     */
+    public BookSnapshot snapshot() {
+        EngineCommand command = EngineCommand.snapshot();
+        if (running) {
+            submit(command);
+        } else {
+            apply(command);
+            command.result.join();
+        }
+        return command.snapshot;
+    }
+
+    /*
+     * Apply the request to the order book and wait for its result
+     */
+    private long submit(EngineCommand command) {
+        if (!running) {
+            throw new IllegalStateException("Matching engine is not running");
+        }
+
+        if (!sequenced) {
+            directLock.lock();
+            try {
+                long start = System.nanoTime();
+                apply(command);
+                commitBatch();
+                busyNanos += System.nanoTime() - start;
+                processedCommands += countOf(command);
+            } finally {
+                directLock.unlock();
+            }
+        } else {
+            commandRing.put(command);
+            // wake up the engine thread if it is waiting for new requests
+            if (idle)
+                LockSupport.unpark(engineThread);
+        }
+        return command.result.join();
+    }
+
+    /*
+     * Engine thread loop: apply the requests in the order they have been published
+     * and park the thread when there is nothing to do
+     */
+    private void run() {
+        com.sun.management.ThreadMXBean threadBean = allocationCounter();
+        long allocatedAtStart = threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : -1;
+        int emptyPolls = 0;
+        while (running || !commandRing.isEmpty()) {
+            EngineCommand command = commandRing.poll();
+            if (command == null) {
+                // the ring is drained: commit the journal and return the results of the batch
+                if (batchSize > 0) {
+                    long start = System.nanoTime();
+                    commitBatch();
+                    busyNanos += System.nanoTime() - start;
+                    continue;
+                }
+                if (emptyPolls++ < SPIN_CYCLES) {
+                    Thread.onSpinWait();
+                } else {
+                    idle = true;
+                    // check again to not miss a request published before the flag was set
+                    if (commandRing.isEmpty() && running)
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    idle = false;
+                }
+                continue;
+            }
+            emptyPolls = 0;
+
+            long start = System.nanoTime();
+            apply(command);
+            if (batchSize == batch.length)
+                commitBatch();
+            busyNanos += System.nanoTime() - start;
+            processedCommands += countOf(command);
+        }
+        commitBatch();
+        if (threadBean != null)
+            allocatedBytes = threadBean.getCurrentThreadAllocatedBytes() - allocatedAtStart;
+    }
+
+    // Return the bean that measures the memory allocated by a thread, null if the JVM does not support it
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()
+                ? threadBean
+                : null;
+    }
+
+    // Return the number of order book requests carried by the request
+    private static int countOf(EngineCommand command) {
+        if (command.kind == EngineCommand.Kind.SNAPSHOT)
+            return 0;
+        return command.items == null ? 1 : command.items.length;
+    }
+
+    /*
+     * Apply the request: write it to the journal and execute it on the order book.
+     * The requests of a batch are written and executed one by one, so the journal
+     * replays them as if they had been submitted separately. Without the journal the
+     * result is returned at once, otherwise the request waits in the batch for the
+     * next commit
+     */
+    private void apply(EngineCommand command) {
+        if (journalFailure != null) {
+            // the journal can not record the request, so it is not applied
+            fail(command, journalFailure);
+            return;
+        }
+        command.timestamp = System.currentTimeMillis() / 1000L;
+        if (command.kind == EngineCommand.Kind.SNAPSHOT) {
+            takeSnapshot(command);
+            return;
+        }
+        if (command.kind == EngineCommand.Kind.BATCH) {
+            for (EngineCommand item : command.items) {
+                item.timestamp = command.timestamp;
+                record(item);
+            }
+            command.outcome = command.items.length;
+        } else {
+            record(command);
+        }
+        if (journal == null) {
+            orderBook.publishNotifications();
+            complete(command);
+        } else
+            batch[batchSize++] = command;
+    }
+
+    /*
+     * Commit the requests waiting in the batch, so their records are on disk before
+     * the snapshot includes them, roll the journal over at the sequence number of the
+     * snapshot, then copy the order book and return the copy
+     */
+    private void takeSnapshot(EngineCommand command) {
+        commitBatch();
+        if (journal != null && journalFailure == null) {
+            try {
+                journal.rollOver();
+            } catch (IOException e) {
+                System.err.println("[Journal] Error rolling over the journal, no more requests are accepted: "
+                        + e.getMessage());
+                journalFailure = new UncheckedIOException("Journal not available", e);
+            }
+        }
+        if (journalFailure != null) {
+            // the book holds requests that are not in the journal, it must not be saved
+            fail(command, journalFailure);
+            return;
+        }
+        try {
+            command.snapshot = orderBook.snapshot(journal == null ? 0 : journal.getSequence());
+            command.outcome = command.snapshot.getJournalSequence();
+        } catch (RuntimeException e) {
+            command.failure = e;
+        }
+        complete(command);
+    }
+
+    // Write the request to the journal, if enabled, and execute it on the order book
+    private void record(EngineCommand command) {
+        if (journal != null)
+            journal.append(command);
+        execute(command);
+    }
+
+    /*
+     * Execute the request on the order book at its timestamp, then execute the stop
+     * orders triggered by its trades. The execution depends only on the request and
+     * on the state of the book, so it is the same when the request is replayed: its
+     * orders are executed at the same time, so a trade stored before a crash is
+     * found in the segment of its day and not stored again. The notifications of the
+     * executions are published by the commit of the request, not here
+     */
+    private void execute(EngineCommand command) {
+        orderBook.setCurrentTime(command.timestamp);
+        try {
+            switch (command.kind) {
+                case LIMIT:
+                    command.outcome = orderBook.insertLimitOrder(command.orderId, command.type, command.size,
+                            command.price, command.userId, command.report);
+                    break;
+                case MARKET:
+                    command.outcome = orderBook.insertMarketOrder(command.orderId, command.type, command.size,
+                            command.maxSlippage, command.userId, command.report);
+                    break;
+                case STOP:
+                    command.outcome = orderBook.insertStopOrder(command.orderId, command.type, command.size,
+                            command.price, command.userId);
+                    break;
+                case CANCEL:
+                    command.outcome = orderBook.cancelOrder(command.orderId, command.userId);
+                    break;
+                case MODIFY:
+                    command.outcome = orderBook.modifyOrder(command.orderId, command.userId, command.size,
+                            command.price, command.report);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown engine command: " + command.kind);
+            }
+        } catch (RuntimeException e) {
+            // the error is forwarded to the thread that submitted the request
+            command.failure = e;
+        }
+
+        try {
+            orderBook.executeTriggeredStopOrders();
+        } catch (RuntimeException e) {
+            System.err.println("[Matching engine] Error executing the triggered stop orders: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Force the records of the batch to the disk with a single fsync, then publish
+     * the notifications and the market data of the batch and return the results of
+     * its requests, so no client hears of an execution that a restart could undo.
+     * If the records can not be written the requests of the batch fail, their
+     * notifications are dropped and the engine rejects the next ones
+     */
+    private void commitBatch() {
+        if (batchSize == 0)
+            return;
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            System.err.println("[Journal] Error writing the journal, no more requests are accepted: "
+                    + e.getMessage());
+            journalFailure = new UncheckedIOException("Journal not available", e);
+        }
+        if (journalFailure != null)
+            orderBook.discardNotifications();
+        else
+            orderBook.publishNotifications();
+        for (int i = 0; i < batchSize; i++) {
+            if (journalFailure != null)
+                fail(batch[i], journalFailure);
+            else
+                complete(batch[i]);
+            batch[i] = null;
+        }
+        batchSize = 0;
+    }
+
+    // Complete the future of the request, and of the requests of a batch, with the error
+    private static void fail(EngineCommand command, RuntimeException failure) {
+        if (command.items != null) {
+            for (EngineCommand item : command.items) {
+                item.failure = failure;
+            }
+        }
+        command.failure = failure;
+        complete(command);
+    }
+
+    // Complete the future of the request, and of the requests of a batch, with its result or its error
+    private static void complete(EngineCommand command) {
+        if (command.items != null) {
+            for (EngineCommand item : command.items) {
+                complete(item);
+            }
+        }
+        if (command.failure != null)
+            command.result.completeExceptionally(command.failure);
+        else
+            command.result.complete(command.outcome);
+    }
+
+    // Return the sequence number of the last request written to the journal, 0 if there is no journal
+    public long getJournalSequence() {
+        return journal == null ? 0 : journal.getSequence();
+    }
+
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    public long getProcessedCommands() {
+        return processedCommands;
+    }
+
+    /*
+     * Return the number of requests applied per second of engine busy time, that is
+     * the throughput of the core running the engine
+     */
+    public double getCommandsPerSecond() {
+        long busy = busyNanos;
+        return busy == 0 ? 0 : processedCommands * 1_000_000_000.0 / busy;
+    }
+
+    /*
+     * Return the bytes allocated by the engine thread per request applied, measured
+     * when the engine thread terminates, -1 if it has not been measured (direct
+     * mode or JVM without allocation counters)
+     */
+    public double getAllocatedBytesPerCommand() {
+        long allocated = allocatedBytes;
+        if (allocated < 0 || processedCommands == 0)
+            return -1;
+        return (double) allocated / processedCommands;
+    }
+}
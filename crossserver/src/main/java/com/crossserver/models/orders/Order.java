@@ -4,21 +4,56 @@ package com.crossserver.models.Orders;
  * This class represents an order in the order book
  */
 public abstract class Order {
-    protected final long orderId; // Order unique ID
-    protected final String type; // Order type: bid or ask
+    protected long orderId; // Order unique ID
+    protected Side type; // Order type: bid or ask
     protected long size; // Order size
-    protected String orderType; // Order type: market,limit or stop
+    protected OrderType orderType; // Order type: market,limit or stop
     protected long timestamp; // Order timestamp: when the order has been closed
-    protected final long price; // Order price: price at which the order has been closed
+    protected long price; // Order price: price at which the order has been closed
     private String userId; // User ID: user who placed the order
 
-    public Order(long orderId, String type, long size, long price) {
+    // Links of the price level that holds the resting order (not persisted)
+    transient PriceLevel<?> priceLevel; // price level of the order, null if the order is not resting
+    transient Order previousInLevel; // order placed before this one at the same price
+    transient Order nextInLevel; // order placed after this one at the same price
+
+    public Order(long orderId, Side type, long size, long price) {
         this.orderId = orderId;
         this.type = type;
         this.size = size;
         this.price = price;
         this.timestamp = 0;
     }
+
+    /*
+     * Reinitialize an order taken from the order pool so that it represents a new
+     * order (the kind of the order does not change)
+     */
+    void reset(long orderId, Side type, long size, long price, String userId) {
+        this.orderId = orderId;
+        this.type = type;
+        this.size = size;
+        this.price = price;
+        this.timestamp = 0;
+        this.userId = userId;
+        this.priceLevel = null;
+        this.previousInLevel = null;
+        this.nextInLevel = null;
+    }
+
+    /*
+     * Return a copy of the order that is not linked to any price level, so it can be
+     * saved by another thread while the book keeps changing the order
+     */
+    abstract Order copy();
+
+    // Copy in the new order the fields that are not set by its constructor
+    protected <T extends Order> T copyTo(T copy) {
+        copy.setTimestamp(timestamp);
+        copy.setUserId(userId);
+        return copy;
+    }
+
     // Check if the order has been executed
     public boolean isExecuted() {
         return timestamp != 0;
@@ -33,7 +68,7 @@ public abstract class Order {
         return orderId;
     }
 
-    public String getType() {
+    public Side getType() {
         return type;
     }
 
@@ -65,7 +100,7 @@ public abstract class Order {
         this.userId = userId;
     }
 
-    public String getOrderType() {
+    public OrderType getOrderType() {
         return orderType;
     }
 
@@ -1,557 +1,687 @@
 package com.crossserver.models.Orders;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.LocalDate;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NavigableMap;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import com.crossserver.models.Notification.MarketDataPublisher;
 import com.crossserver.models.Notification.UDPNotifier;
 
 /*
  * This class is responsible for managing the order book, inserting, executing and canceling orders
  */
 public class OrderBook {
-    private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitAskOrders; // map of limit sell orders
-    private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitBidOrders; // map of limit buy orders
+    // Error codes returned when an order can not be cancelled or modified
+    public static final long ORDER_NOT_FOUND = -1; // the order does not exist
+    public static final long ORDER_OF_ANOTHER_USER = -2; // the order belongs to a different user
+    public static final long ORDER_EXECUTED = -3; // the order has already been executed
+    public static final long ORDER_NOT_MODIFIABLE = -4; // the order is not a resting limit order
+    public static final long PRICE_OUT_OF_RANGE = -5; // the limit book can not hold the new price
 
-    private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopBidOrders; // map of stop buy orders
-    private ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopAskOrders; // map of stop sell orders
+    public static final long NO_SLIPPAGE_LIMIT = -1; // the market order can sweep the whole book
+    private static final long NO_PRICE_LIMIT = -1; // the sweep is not bounded by a limit price
+    private static final int INITIAL_INDEX_SIZE = 1024; // initial number of orders of the ID indexes
+    private static final int ORDER_POOL_CAPACITY = 4096; // free orders kept for every kind of order
+    private static final long SECONDS_PER_DAY = 86_400;
 
-    private ConcurrentLinkedQueue<Order> orderHistory; // list of executed orders
+    private final LimitBook limitAskOrders; // book of limit sell orders
+    private final LimitBook limitBidOrders; // book of limit buy orders
+
+    private final StopTriggerBook stopOrders; // stop buy and sell orders sorted by trigger price
+
+    private final TradeStore orderHistory; // executed orders, stored in day segments
+
+    // Resting limit and stop orders indexed by ID: the order carries its side, its
+    // kind and its price so it locates the book and the price level that hold it
+    private final OrderIndex restingOrders;
+    private final OrderPool orderPool; // orders recycled by the book
+    private final ExecutionReport stopOrderReport; // report reused by the execution of the stop orders
+    private long currentTime; // time of the command being applied in seconds, used as execution time
 
     private final UDPNotifier UdpClientNotifier; // reference to the UDP notifier
+    private final MarketDataPublisher marketData; // feed of the changes of the limit books, null if none
 
-    public OrderBook(UDPNotifier UdpClientNotifier) {
+    public OrderBook(UDPNotifier UdpClientNotifier, TradeStore orderHistory) {
+        this(UdpClientNotifier, orderHistory, new SkipListLimitBook(false), new SkipListLimitBook(true), null);
+    }
+
+    /*
+     * Create the order book on the given limit books, so the structure that holds
+     * the price levels can be chosen according to the price range of the market,
+     * publishing the changes of the books to the market data feed if any
+     */
+    public OrderBook(UDPNotifier UdpClientNotifier, TradeStore orderHistory, LimitBook limitAskOrders,
+            LimitBook limitBidOrders, MarketDataPublisher marketData) {
         this.UdpClientNotifier = UdpClientNotifier;
-        this.limitAskOrders = new ConcurrentSkipListMap<>();
-        this.limitBidOrders = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
-        this.orderHistory = new ConcurrentLinkedQueue<>();
-        this.stopBidOrders = new ConcurrentSkipListMap<>();
-        this.stopAskOrders = new ConcurrentSkipListMap<>();
+        this.marketData = marketData;
+        this.limitAskOrders = limitAskOrders;
+        this.limitBidOrders = limitBidOrders;
+        this.orderHistory = orderHistory;
+        this.stopOrders = new StopTriggerBook();
+        this.restingOrders = new OrderIndex(INITIAL_INDEX_SIZE);
+        this.orderPool = new OrderPool(ORDER_POOL_CAPACITY);
+        this.stopOrderReport = new ExecutionReport(0);
+        this.currentTime = System.currentTimeMillis() / 1000L;
+    }
+
+    /*
+     * Set the time of the command being applied: the orders executed by the command
+     * take this time, so replaying the command from the journal gives the same
+     * history
+     */
+    public void setCurrentTime(long currentTime) {
+        this.currentTime = currentTime;
+    }
+
+    /*
+     * Publish the changes of the commands applied since the last publication, once
+     * they are committed: the notifications of the orders they have executed are
+     * handed to the notifier, one message per user, and the levels they have changed
+     * to the market data feed
+     */
+    public void publishNotifications() {
+        UdpClientNotifier.flush();
+        if (marketData != null)
+            marketData.flush(limitBidOrders, limitAskOrders);
+    }
+
+    // Drop the changes of the commands applied since the last publication, whose commit has failed
+    public void discardNotifications() {
+        UdpClientNotifier.discard();
+        if (marketData != null)
+            marketData.discard();
+    }
+
+    // Note the price level changed by the command being applied for the market data feed
+    private void levelChanged(Side type, long price) {
+        if (marketData != null)
+            marketData.levelChanged(type == Side.BID, price);
     }
 
     /*
      * Insert a stop order in the order book according to its type (bid or ask) and
-     * return the order ID
+     * return the order ID. If the last trade has already reached the stop price the
+     * order is triggered at once and executed with the other triggered orders
      */
-    public long insertStopOrder(StopOrder order) {
-        if (order.getType().equals("bid")) {
-            stopBidOrders.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).offer(order);
-        } else if (order.getType().equals("ask")) {
-            stopAskOrders.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).offer(order);
-        }
+    public long insertStopOrder(long orderId, Side type, long size, long stopPrice, String userId) {
+        StopOrder order = orderPool.acquireStopOrder(orderId, type, size, stopPrice, userId);
+        stopOrders.add(order);
+        restingOrders.put(order.getOrderId(), order);
         return order.getOrderId();
     }
 
     /*
-     * Activate buy stop orders when the price changes in the limit ask book
+     * Execute as market orders the stop orders triggered by the trades of the last
+     * command. The trades of a stop order can trigger other stop orders, which are
+     * queued and executed by the same loop, so the cascade never nests. A stop order
+     * that finds no liquidity is dropped
      */
-    private void activateBuyStopOrders(long currentPrice) {
-        // Activate stop-buy
-        synchronized (stopBidOrders) {
-            stopBidOrders.headMap(currentPrice, true).forEach((price, queue) -> {
-                while (!queue.isEmpty()) {
-                    StopOrder stopOrder = queue.poll();
-
-                    long fulfilledOrderId = matchBidOrder(stopOrder.getOrderId(), stopOrder.getType(),
-                            stopOrder.getSize(), stopOrder.getUserId());
-                    if (fulfilledOrderId != -1) {
-                        // stop order has been executed with no errors
-                        stopOrder.setTimestamp(System.currentTimeMillis() / 1000L);
-
-                        // notify the client that the order has been executed
-                        UdpClientNotifier.notifyClient(stopOrder.getUserId(), stopOrder);
-
-                        orderHistory.offer(stopOrder);
-                    }
-                }
-                stopBidOrders.remove(price); // Remove the stop order
-            });
+    public void executeTriggeredStopOrders() {
+        StopOrder stopOrder;
+        while ((stopOrder = stopOrders.pollTriggered()) != null) {
+            restingOrders.remove(stopOrder.getOrderId());
+
+            // the stop order is executed as a market order
+            ExecutionReport report = stopOrderReport;
+            report.reset(stopOrder.getOrderId());
+            long fulfilledPrice = stopOrder.getType() == Side.BID
+                    ? matchBidOrder(stopOrder.getSize(), NO_SLIPPAGE_LIMIT, report)
+                    : matchAskOrder(stopOrder.getSize(), NO_SLIPPAGE_LIMIT, report);
+            if (fulfilledPrice != -1) {
+                // stop order has been executed with no errors
+                stopOrder.setTimestamp(currentTime);
+
+                // notify the client that the order has been executed
+                UdpClientNotifier.notifyClient(stopOrder.getUserId(), stopOrder);
+
+                addOrderHistory(stopOrder);
+            } else {
+                orderPool.release(stopOrder);
+            }
         }
     }
 
     /*
-     * Activate sell stop orders when the price changes in the limit bid book
+     * Insert a limit order in the order book according to its type (bid or ask).
+     * The order is first matched against the opposite book up to its limit price and
+     * only the remaining size rests in the book, so the book never stays crossed.
+     * The fills are recorded in the execution report, which has no fills if nothing
+     * has been executed on insertion. Return the order ID
      */
-    private void activateSellStopOrders(long currentPrice) {
-
-        synchronized (stopAskOrders) {
-            // Activate stop-sell
-            stopAskOrders.headMap(currentPrice, true).forEach((price, queue) -> {
-                while (!queue.isEmpty()) {
-                    StopOrder stopOrder = queue.poll();
-
-                    long fulfilledOrderId = matchAskOrder(stopOrder.getOrderId(), stopOrder.getType(),
-                            stopOrder.getSize(),
-                            stopOrder.getUserId());
-                    if (fulfilledOrderId != -1) {
-                        // stop order has been executed with no errors
-                        stopOrder.setTimestamp(System.currentTimeMillis() / 1000L);
-
-                        // notify the client that the order has been executed
-                        UdpClientNotifier.notifyClient(stopOrder.getUserId(), stopOrder);
-
-                        orderHistory.offer(stopOrder);
-                    }
-                }
-                stopAskOrders.remove(price); // Remove the stop order
-            });
-        }
+    public long insertLimitOrder(long orderId, Side type, long size, long limitPrice, String userId,
+            ExecutionReport report) {
+        return placeLimitOrder(orderPool.acquireLimitOrder(orderId, type, size, limitPrice, userId), report);
     }
 
     /*
-     * Insert a limit order in the order book according to its type (bid or ask) and
-     * return the order ID
+     * Match the limit order against the opposite book and put its remaining size at
+     * the end of its price level, return the order ID
      */
-    public long insertLimitOrder(LimitOrder order) {
-        if (order.getType().equals("bid"))
+    private long placeLimitOrder(LimitOrder order, ExecutionReport report) {
+        long orderId = order.getOrderId();
+        boolean bid = order.getType() == Side.BID;
+        LimitBook oppositeBook = bid ? limitAskOrders : limitBidOrders;
+        report.reset(orderId);
+
+        // match the order against the opposite levels whose price does not exceed the limit price
+        if (!oppositeBook.isEmpty())
+            sweep(oppositeBook, order.getSize(), order.getPrice(), false, report);
+
+        if (report.getFilledSize() == order.getSize()) {
+            // the limit order has been filled entirely on insertion
+            order.setTimestamp(currentTime);
+
+            // notify the client that the order has been executed
+            UdpClientNotifier.notifyClient(order.getUserId(), order);
+
+            addOrderHistory(order);
+            return orderId;
+        }
+        // only the remaining size of the order rests in the book
+        order.setSize(order.getSize() - report.getFilledSize());
+
+        if (bid)
             // Add a new bid order to the limit order
-            limitBidOrders.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).offer(order);
+            limitBidOrders.getOrCreateLevel(order.getPrice()).offer(order);
         else
             // Add an ask order to the limit order book
-            limitAskOrders.computeIfAbsent(order.getPrice(), k -> new ConcurrentLinkedQueue<>()).offer(order);
+            limitAskOrders.getOrCreateLevel(order.getPrice()).offer(order);
+        levelChanged(order.getType(), order.getPrice());
 
-        return order.getOrderId();
+        restingOrders.put(order.getOrderId(), order);
+        return orderId;
     }
 
     /*
      * Insert a market order in the order book in order to execute it and fulfill
-     * the request, return the order ID or -1 if the order was not executed
+     * the request sweeping as many price levels as needed, within the slippage
+     * allowed from the best price. The fills are recorded in the execution report.
+     * Return the order ID or -1 if the order was not executed
      */
-    public long insertMarketOrder(long orderId, String type, long size, String userId) {
+    public long insertMarketOrder(long orderId, Side type, long size, long maxSlippage, String userId,
+            ExecutionReport report) {
+        report.reset(orderId);
         long price = 0;
-        if (type.equals("bid"))
-            price = matchBidOrder(orderId, type, size, userId);
+        if (type == Side.BID)
+            price = matchBidOrder(size, maxSlippage, report);
         else
-            price = matchAskOrder(orderId, type, size, userId);
+            price = matchAskOrder(size, maxSlippage, report);
 
-        // if the price is -1 it means that the order was not executed and it returns -1
-        // as an error
+        // if the price is -1 it means that the order was not executed
         if (price == -1)
-            return price;
+            return -1;
 
-        // finally create a new market order in order to add it to the order history
-        MarketOrder markerOrder = new MarketOrder(orderId, type, size, price);
-        markerOrder.setUserId(userId);
-        markerOrder.setTimestamp(System.currentTimeMillis() / 1000L);
+        // finally create a new market order in order to add it to the order history, its
+        // price is the average price of the fills
+        MarketOrder markerOrder = orderPool.acquireMarketOrder(orderId, type, size, price, userId);
+        markerOrder.setTimestamp(currentTime);
 
         // notify the client that the order has been executed
         UdpClientNotifier.notifyClient(userId, markerOrder);
 
-        return addOrderHistory(markerOrder); // returns the order ID
-
+        addOrderHistory(markerOrder);
+        return orderId;
     }
 
     /*
-     * Execute a buy market order against the sell limit book at the lowest price
-     * return the
-     * price of order or -1 if the order was not possible to execute
+     * Execute a buy market order against the sell limit book starting from the
+     * lowest price, return the average price of the order or -1 if the order was
+     * not possible to execute
      */
-    public long matchBidOrder(long orderId, String type, long size, String userId) {
+    public long matchBidOrder(long size, long maxSlippage, ExecutionReport report) {
+        long lowestPrice = limitAskOrders.bestPrice();
 
         // the ask limit book is empty, the order can not be executed
-        if (limitAskOrders.entrySet().isEmpty()) {
-            return -1;
-        }
-        // extract the list of limit order with the lowest price in the sell limit book
-        ConcurrentLinkedQueue<LimitOrder> lowestPriceLimitOrders = limitAskOrders.get(limitAskOrders.firstKey());
-
-        // the market order can not be executed if the sell limit book is empty
-        if (lowestPriceLimitOrders == null) {
-            limitAskOrders.pollFirstEntry(); // remove the first entry of the sell limit book
+        if (lowestPrice == LimitBook.NO_PRICE) {
             return -1;
         }
 
-        long totalSize = 0;
+        // the order can not be executed above the lowest price plus the slippage allowed
+        long limitPrice = maxSlippage == NO_SLIPPAGE_LIMIT || maxSlippage > Long.MAX_VALUE - lowestPrice
+                ? NO_PRICE_LIMIT
+                : lowestPrice + maxSlippage;
 
-        synchronized (lowestPriceLimitOrders) {
-            // calculate the total size of the limit orders with the lowest price
-            totalSize = lowestPriceLimitOrders.stream().mapToLong(LimitOrder::getSize).sum();
-        }
-
-        /*
-         * the market order can not be executed at the lowest price
-         * if the total size of the limit orders is less the its size
-         */
-        if (totalSize < size) {
-            return -1;
-        }
-
-        long remainingMarketOrderSize = size;
-
-        // get the price of lowest limit order in the sell limit book
-        long fulfilledLimitOrderPrice = limitAskOrders.firstKey();
-
-        while (remainingMarketOrderSize > 0) {
-
-            // extract the oldest limit order with the lowest price
-            LimitOrder checkMatchLimitOrder = lowestPriceLimitOrders.peek();
-
-            if (checkMatchLimitOrder.getSize() <= remainingMarketOrderSize) {
-
-                remainingMarketOrderSize -= checkMatchLimitOrder.getSize();
-                totalSize -= checkMatchLimitOrder.getSize();
-
-                // remove the fulfilled limit order from the sell limit book
-                lowestPriceLimitOrders.poll();
-
-                // set the timestamp of the executed order to the current time to notify the
-                // order has
-                // been executed
-                checkMatchLimitOrder.setTimestamp(System.currentTimeMillis() / 1000L);
-
-                // notify the owner of the fulfilled limit order that it has been executed
-                UdpClientNotifier.notifyClient(checkMatchLimitOrder.getUserId(), checkMatchLimitOrder);
-
-                // add the limit order that has been fulfilled to the order history
-                addOrderHistory(checkMatchLimitOrder);
-
-                /*
-                 * if the total size of the limit orders with the lowest price is 0 it means
-                 * that the order list has been emptied thanks to the market order
-                 * and now it is necessary to activate the stop orders linked to the new lower
-                 * sell price
-                 */
-                if (totalSize == 0) {
-                    /*
-                     * remove the previous entry linked to the lowest price in the sell limit book
-                     * that now it has been emptied
-                     */
-                    limitAskOrders.pollFirstEntry();
-
-                    try {
-                        /*
-                         * get the next price in the sell limit book to activate the stop orders with
-                         * the
-                         * new lower sell price
-                         */
-                        long nextPrice = limitAskOrders.firstKey();
-
-                        // Activate buy stop orders when the price changes
-                        activateBuyStopOrders(nextPrice);
-
-                    } catch (NoSuchElementException e) {
-                        // if the sell limit book is empty it means that the order has been executed
-                        // and there are no more orders to fulfill
-                    }
-                }
-            } else {
-                checkMatchLimitOrder.setSize(checkMatchLimitOrder.getSize() - remainingMarketOrderSize);
-                remainingMarketOrderSize = 0;
-            }
-        }
-        return fulfilledLimitOrderPrice;
-    }
-
-    // Add an order to the order history and return the order ID
-    public long addOrderHistory(Order order) {
-        orderHistory.offer(order);
-        return order.getOrderId();
+        return sweep(limitAskOrders, size, limitPrice, true, report);
     }
 
     /*
-     * Execute a sell market order against the buy limit book return the price at
-     * which the
-     * market order has been closed (that it is equal to price of the fulfilled
-     * limit order in
-     * the order book) or -1 if the order was not executed
+     * Execute a sell market order against the buy limit book starting from the
+     * highest price, return the average price at which the market order has been
+     * closed or -1 if the order was not executed
      */
-    public long matchAskOrder(long orderId, String type, long size, String userId) {
+    public long matchAskOrder(long size, long maxSlippage, ExecutionReport report) {
+        long highestPrice = limitBidOrders.bestPrice();
 
         // the buy limit book is empty, the order can not be executed
-        if (limitBidOrders.entrySet().isEmpty()) {
-            return -1;
-        }
-
-        // extract the list of limit order with the highest price in the buy limit book
-        ConcurrentLinkedQueue<LimitOrder> highestPriceLimitOrders = limitBidOrders.get(limitBidOrders.firstKey());
-
-        // the market order can not be executed if the buy limit book is empty
-        if (highestPriceLimitOrders == null) {
-            limitBidOrders.pollFirstEntry(); // remove the first entry of the buy limit book
+        if (highestPrice == LimitBook.NO_PRICE) {
             return -1;
         }
 
-        long totalSize = 0;
+        // the order can not be executed below the highest price minus the slippage allowed
+        long limitPrice = maxSlippage == NO_SLIPPAGE_LIMIT ? NO_PRICE_LIMIT
+                : Math.max(highestPrice - maxSlippage, 0);
 
-        synchronized (highestPriceLimitOrders) {
-            // calculate the total size of the limit orders with the highest price
-            totalSize = highestPriceLimitOrders.stream().mapToLong(LimitOrder::getSize).sum();
-        }
+        return sweep(limitBidOrders, size, limitPrice, true, report);
+    }
 
-        /*
-         * the market order can not be executed at the highest price if the total size
-         * of
-         * the limit orders is less the its size
-         */
-        if (totalSize < size) {
-            return -1;
+    /*
+     * Execute the quantity against the limit book moving from the best price level
+     * to the next ones, without going beyond the limit price. An all-or-nothing
+     * order is executed only if the reachable levels hold enough quantity to fill it
+     * entirely, otherwise the quantity available is executed and the report tells
+     * how much has been filled. Return the average execution price or -1 if nothing
+     * was executed
+     */
+    private long sweep(LimitBook book, long size, long limitPrice, boolean allOrNothing,
+            ExecutionReport report) {
+        if (allOrNothing) {
+            /*
+             * the market order can not be executed if the total size of the reachable levels
+             * is less than its size
+             */
+            long availableSize = 0;
+            for (long price = book.bestPrice(); price != LimitBook.NO_PRICE && isReachable(book, price, limitPrice)
+                    && availableSize < size; price = book.nextPrice(price)) {
+                availableSize += book.getLevel(price).getTotalSize();
+            }
+            if (availableSize < size) {
+                return -1;
+            }
         }
 
         long remainingMarketOrderSize = size;
 
-        // get the price of highest limit order in the buy limit book
-        long fulfilledLimitOrderPrice = limitBidOrders.firstKey();
-
         while (remainingMarketOrderSize > 0) {
+            // extract the list of limit orders with the best price, stop if it is beyond the limit price
+            long fulfilledLimitOrderPrice = book.bestPrice();
+            if (fulfilledLimitOrderPrice == LimitBook.NO_PRICE
+                    || !isReachable(book, fulfilledLimitOrderPrice, limitPrice))
+                break;
+            PriceLevel<LimitOrder> bestPriceLimitOrders = book.getLevel(fulfilledLimitOrderPrice);
 
-            // extract the oldest limit order with the highest price
-            LimitOrder checkMatchLimitOrder = highestPriceLimitOrders.peek();
+            while (remainingMarketOrderSize > 0 && !bestPriceLimitOrders.isEmpty()) {
+                // extract the oldest limit order with the best price
+                LimitOrder checkMatchLimitOrder = bestPriceLimitOrders.peek();
 
-            if (checkMatchLimitOrder.getSize() <= remainingMarketOrderSize) {
+                if (checkMatchLimitOrder.getSize() <= remainingMarketOrderSize) {
 
-                remainingMarketOrderSize -= checkMatchLimitOrder.getSize();
-                totalSize -= checkMatchLimitOrder.getSize();
+                    remainingMarketOrderSize -= checkMatchLimitOrder.getSize();
+                    report.addFill(checkMatchLimitOrder.getOrderId(), fulfilledLimitOrderPrice,
+                            checkMatchLimitOrder.getSize());
 
-                // remove the fulfilled limit order from the buy limit book
-                highestPriceLimitOrders.poll();
+                    // remove the fulfilled limit order from the limit book
+                    bestPriceLimitOrders.poll();
+                    restingOrders.remove(checkMatchLimitOrder.getOrderId());
 
-                /*
-                 * set the timestamp of the executed order to the current time to notify the
-                 * order has been executed
-                 */
-                checkMatchLimitOrder.setTimestamp(System.currentTimeMillis() / 1000L);
-
-                // notify the owner of the fulfilled limit order that it has been executed
-                UdpClientNotifier.notifyClient(checkMatchLimitOrder.getUserId(), checkMatchLimitOrder);
+                    /*
+                     * set the timestamp of the executed order to the current time to notify the
+                     * order has been executed
+                     */
+                    checkMatchLimitOrder.setTimestamp(currentTime);
 
-                // add the limit order that has been fulfilled to the order history
-                addOrderHistory(checkMatchLimitOrder);
+                    // notify the owner of the fulfilled limit order that it has been executed
+                    UdpClientNotifier.notifyClient(checkMatchLimitOrder.getUserId(), checkMatchLimitOrder);
 
-                /*
-                 * if the total size of the limit orders with the highest price is 0 it means
-                 * that the order list has been emptied thanks to the market order and now it is
-                 * necessary to activate the stop orders linked to the new higher buy price
-                 */
-                if (totalSize == 0) {
+                    // add the limit order that has been fulfilled to the order history
+                    addOrderHistory(checkMatchLimitOrder);
+                } else {
+                    report.addFill(checkMatchLimitOrder.getOrderId(), fulfilledLimitOrderPrice,
+                            remainingMarketOrderSize);
 
-                    /*
-                     * remove the previous entry linked to the highest price in the buy limit book
-                     * that now it has been emptied
-                     */
-                    limitBidOrders.pollFirstEntry();
-
-                    try {
-                        /*
-                         * get the next price in the buy limit book to activate the stop orders with the
-                         * new higher buy price
-                         */
-                        long nextPrice = limitBidOrders.firstKey();
-
-                        // Activate sell stop orders when the price changes
-                        activateSellStopOrders(nextPrice);
-
-                    } catch (NoSuchElementException e) {
-                        // if the buy limit book is empty it means that the order has been executed
-                        // and there are no more orders to fulfill
-                    }
+                    // partial execution of the limit order: it keeps its time priority
+                    bestPriceLimitOrders.reduceSize(checkMatchLimitOrder, remainingMarketOrderSize);
+                    remainingMarketOrderSize = 0;
                 }
-            } else {
-                checkMatchLimitOrder.setSize(checkMatchLimitOrder.getSize() - remainingMarketOrderSize);
-                remainingMarketOrderSize = 0;
             }
+
+            // remove the entry of the price level that has been emptied by the market order
+            if (bestPriceLimitOrders.isEmpty())
+                book.removeLevel(fulfilledLimitOrderPrice);
+            levelChanged(book.isBid() ? Side.BID : Side.ASK, fulfilledLimitOrderPrice);
+
+            // every trade of the level is printed at its price: check the stop triggers once per level
+            stopOrders.onTrade(fulfilledLimitOrderPrice);
         }
+        return report.getAveragePrice();
+    }
 
-        return fulfilledLimitOrderPrice;
+    /*
+     * Check if the price of the book can be reached without going beyond the limit
+     * price: the levels are sorted from the best price, so they are reachable up to
+     * the limit price for the sell book and down to it for the buy book
+     */
+    private static boolean isReachable(LimitBook book, long price, long limitPrice) {
+        if (limitPrice == NO_PRICE_LIMIT)
+            return true;
+        return book.isBid() ? price >= limitPrice : price <= limitPrice;
     }
 
     /*
-     * Cancel an order from the order book given its ID, return the order ID if the
-     * order is present in one of the data structures, -1 otherwise
+     * Check if the limit book of the type (bid or ask) can hold a limit order at the
+     * price
      */
-    public long cancelOrder(long orderId) {
-        if (cancelOrderFromBook(limitAskOrders, orderId))
-            return orderId;
-        if (cancelOrderFromBook(limitBidOrders, orderId))
-            return orderId;
-        if (cancelOrderFromBook(stopAskOrders, orderId))
-            return orderId;
-        if (cancelOrderFromBook(stopBidOrders, orderId))
-            return orderId;
-        return -1; // Return -1 if the order was not found in any book
+    public boolean acceptsLimitPrice(Side type, long price) {
+        return (type == Side.BID ? limitBidOrders : limitAskOrders).acceptsPrice(price);
     }
 
     /*
-     * Search for the order specified by its ID in the data structure passed as
-     * parameter, if found then it is removed and return true, false otherwise
+     * Add the executed order to the order history and return the order ID. The
+     * order is copied into the trade store, so it is given back to the order pool
      */
-    private boolean cancelOrderFromBook(
-            ConcurrentSkipListMap<Long, ? extends ConcurrentLinkedQueue<? extends Order>> book, long orderId) {
-        AtomicBoolean removed = new AtomicBoolean(false);
-
-        synchronized (book) {
-            book.entrySet().forEach(entry -> {
-                ConcurrentLinkedQueue<? extends Order> queue = entry.getValue();
-                if (queue.removeIf(order -> order.getOrderId() == orderId)) {
-                    removed.set(true);
-                    // if removing the oerder from the queue makes it empty, remove the entry from
-                    // the book
-                    if (queue.isEmpty()) {
-                        book.remove(entry.getKey());
-                    }
-                }
-            });
+    public long addOrderHistory(Order order) {
+        long orderId = order.getOrderId();
+        try {
+            orderHistory.append(order);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error storing the executed order " + orderId, e);
+        } finally {
+            orderPool.release(order);
         }
-
-        return removed.get();
+        return orderId;
     }
 
     /*
-     * Search the order in the order book from its ID and return it if found, null
-     * otherwise
+     * Cancel an order from the order book given its ID, return the order ID if the
+     * order is present in one of the data structures, -1 otherwise. The cancelled
+     * order is given back to the order pool
      */
-    public Order getOrder(long orderId) {
-
-        Order order = findOrderInBook(limitAskOrders, orderId);
-        if (order != null)
-            return order;
-
-        order = findOrderInBook(limitBidOrders, orderId);
-        if (order != null)
-            return order;
-
-        order = findOrderInBook(stopAskOrders, orderId);
-        if (order != null)
-            return order;
+    public long cancelOrder(long orderId) {
+        Order order = restingOrders.remove(orderId);
+        if (order == null)
+            return -1; // Return -1 if the order was not found in any book
+
+        if (order instanceof StopOrder) {
+            stopOrders.remove((StopOrder) order);
+        } else {
+            // the order is linked to its price level: unlink it in constant time
+            PriceLevel<?> level = order.priceLevel;
+            if (level != null) {
+                level.remove(order);
+                // if removing the order from the price level makes it empty, remove the entry
+                // from the book
+                if (level.isEmpty())
+                    limitBookOf(order).removeLevel(order.getPrice());
+                levelChanged(order.getType(), order.getPrice());
+            }
+        }
+        orderPool.release(order);
+        return orderId;
+    }
 
-        order = findOrderInBook(stopBidOrders, orderId);
-        if (order != null)
-            return order;
+    /*
+     * Cancel the order of the user given its ID, return the order ID if the order
+     * has been removed from the order book or an error code if the order does not
+     * exist, belongs to another user or has already been executed. Only the orders
+     * executed in the hot trade segments are found: an older one is not found, the
+     * caller looks it up with findExecutedOrder outside the thread of the engine
+     */
+    public long cancelOrder(long orderId, String userId) {
+        Order order = getOrder(orderId);
+        if (order != null) {
+            // check if the order belongs to the user
+            if (order.getUserId() == null || !order.getUserId().equals(userId))
+                return ORDER_OF_ANOTHER_USER;
+            return cancelOrder(orderId);
+        }
 
-        /*
-         * create a copy of the order history instead of directly accessing it to avoid
-         * costful synchronization
-         */
-        ConcurrentLinkedQueue<Order> copyOrderHistory = new ConcurrentLinkedQueue<>();
+        // the order is not resting: search it among the recent executed orders, in memory
+        return executedOrderError(orderHistory.getHotOwner(orderId), userId);
+    }
 
-        synchronized (orderHistory) {
-            copyOrderHistory.addAll(orderHistory);
+    /*
+     * Return the error of a cancellation or a modification of an order executed in a
+     * cold trade segment: ORDER_NOT_FOUND if it is not stored. It reads the disk, so
+     * it is called by the thread of the request once the engine has not found the
+     * order, never by the engine
+     */
+    public long findExecutedOrder(long orderId, String userId) {
+        try {
+            return executedOrderError(orderHistory.getColdOwner(orderId), userId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading the executed orders", e);
         }
+    }
+
+    // Return the error of a request on an executed order given its owner (null if the order is not stored)
+    private static long executedOrderError(String owner, String userId) {
+        // check if the order exists
+        if (owner == null)
+            return ORDER_NOT_FOUND;
+        // check if the order belongs to the user
+        if (!owner.equals(userId))
+            return ORDER_OF_ANOTHER_USER;
+        return ORDER_EXECUTED;
+    }
 
-        // search for the order in the copy of the order history
-        for (Order orderInHistory : copyOrderHistory) {
-            if (orderInHistory.getOrderId() == orderId) {
-                return orderInHistory;
+    /*
+     * Change the size and the price of the resting limit order of the user in a
+     * single step, so the order is never absent from the book. A size reduction at
+     * the same price keeps the time priority of the order in its level; a larger
+     * size or a new price puts the order at the end of the level of its price, and
+     * at a new price the order is first matched against the opposite book like a new
+     * order, with its fills recorded in the report. Return the order ID or an error
+     * code
+     */
+    public long modifyOrder(long orderId, String userId, long newSize, long newPrice, ExecutionReport report) {
+        report.reset(orderId);
+        Order resting = getOrder(orderId);
+        // the order is not resting: the error is the one of its cancellation
+        if (resting == null)
+            return cancelOrder(orderId, userId);
+        // check if the order belongs to the user
+        if (resting.getUserId() == null || !resting.getUserId().equals(userId))
+            return ORDER_OF_ANOTHER_USER;
+        if (!(resting instanceof LimitOrder) || resting.priceLevel == null)
+            return ORDER_NOT_MODIFIABLE;
+        LimitOrder order = (LimitOrder) resting;
+        LimitBook book = limitBookOf(order);
+        PriceLevel<?> level = order.priceLevel;
+
+        if (newPrice == order.getPrice()) {
+            if (newSize <= order.getSize()) {
+                // the order keeps its place in the level
+                level.reduceSize(order, order.getSize() - newSize);
+            } else {
+                // the order is queued again at the end of its level with the larger size
+                level.remove(order);
+                order.setSize(newSize);
+                book.getOrCreateLevel(order.getPrice()).offer(order);
             }
+            levelChanged(order.getType(), order.getPrice());
+            return orderId;
         }
-        return null;
+
+        if (!book.acceptsPrice(newPrice))
+            return PRICE_OUT_OF_RANGE;
+        // the order leaves its level and is placed again at the new price
+        level.remove(order);
+        if (level.isEmpty())
+            book.removeLevel(order.getPrice());
+        levelChanged(order.getType(), order.getPrice());
+        restingOrders.remove(orderId);
+        order.reset(orderId, order.getType(), newSize, newPrice, userId);
+        return placeLimitOrder(order, report);
     }
 
-    // Find an order in the specified data structure given its ID , return the order
-    // if found, null otherwise
-    private Order findOrderInBook(ConcurrentSkipListMap<Long, ? extends ConcurrentLinkedQueue<? extends Order>> book,
-            long orderId) {
+    // Return the limit book that holds the resting limit order according to its type (bid or ask)
+    private LimitBook limitBookOf(Order order) {
+        return order.getType() == Side.BID ? limitBidOrders : limitAskOrders;
+    }
 
-        synchronized (book) {
-            for (ConcurrentLinkedQueue<? extends Order> queue : book.values()) {
-                for (Order order : queue) {
-                    if (order.getOrderId() == orderId) {
-                        return order;
-                    }
-                }
+    /*
+     * Search the order from its ID among the resting orders and return it if found,
+     * null otherwise
+     */
+    public Order getOrder(long orderId) {
+        return restingOrders.get(orderId);
+    }
+
+    // Add the orders of the book to the index of the resting orders
+    private void indexRestingOrders(Map<Long, ? extends PriceLevel<? extends Order>> book) {
+        for (PriceLevel<? extends Order> level : book.values()) {
+            for (Order order : level) {
+                restingOrders.put(order.getOrderId(), order);
             }
         }
-
-        return null;
     }
 
     /*
      * Return the order history of the month specified by the start and end of the
-     * month in a map that associate
-     * the day of the month with the trade history of that day
+     * month in a map that associate the day of the month with the trade history of
+     * that day. The summary of every day is the candle kept up to date by the trade
+     * store; at most tradesPerDay orders of every day are added to it (none if it is
+     * 0), so the size of the response does not depend on the number of trades, and a
+     * day whose orders do not fit tells the cursor of the first order left out. The
+     * days are read while the matching keeps appending to the segment of the
+     * current day
      */
-    public ConcurrentSkipListMap<String, TradeHistory> getOrderHistory(long startOfMonth, long endOfMonth) {
-        List<Order> orderHistoryByMonth;
-        Map<Long, List<Order>> ordersPerDay;
-        synchronized (orderHistory) {
-            /*
-             * Filter the order history by the month specified by the start and end of the
-             * month timestamps then sort and group the orders by timestamp
-             */
-            orderHistoryByMonth = orderHistory.stream().filter(order -> {
-                long orderDateTimestamp = order.getTimestamp();
-                return orderDateTimestamp >= startOfMonth && orderDateTimestamp <= endOfMonth;
-            }).sorted(Comparator.comparing(ord -> ord.getTimestamp())).collect(Collectors.toList());
-            ordersPerDay = orderHistoryByMonth.stream().collect(Collectors.groupingBy(Order::getTimestamp));
-        }
-
-        // Create the map of orders per day sorted by number of day
-        SortedMap<Long, List<Order>> ordersPerDaySorted = new TreeMap<>(ordersPerDay);
-
+    public ConcurrentSkipListMap<String, TradeHistory> getOrderHistory(long startOfMonth, long endOfMonth,
+            int tradesPerDay) {
         ConcurrentSkipListMap<String, TradeHistory> response = new ConcurrentSkipListMap<>();
 
-        // Iterate over the orders per day sorted by day
-        for (Map.Entry<Long, List<Order>> order : ordersPerDaySorted.entrySet()) {
+        // Iterate over the days of the month, every day has its own segment
+        long firstDay = Math.floorDiv(startOfMonth, SECONDS_PER_DAY);
+        long lastDay = Math.floorDiv(endOfMonth, SECONDS_PER_DAY);
+        for (long day = firstDay; day <= lastDay; day++) {
+            TradeHistory tradeHistory = getDayTrades(day, 0, tradesPerDay);
+            if (tradeHistory != null)
+                response.put(Integer.toString(tradeHistory.getNumberOfDay()), tradeHistory);
+        }
 
-            // Sort the orders by timestamp
-            List<Order> orders = order.getValue().stream().sorted(Comparator.comparing(Order::getTimestamp))
-                    .collect(Collectors.toList());
+        return response;
+    }
 
-            // Extract the opening, closing and search for the high and low price of the day
-            long openingPrice = orders.get(0).getPrice();
-            long closingPrice = orders.get(orders.size() - 1).getPrice();
-            long highPrice = orders.stream().mapToLong(Order::getPrice).max().getAsLong();
-            long lowPrice = orders.stream().mapToLong(Order::getPrice).min().getAsLong();
+    /*
+     * Return the trade history of the day (epoch day) with at most maxTrades orders
+     * starting from the cursor (the position of an order in the day), or only its
+     * summary if maxTrades is 0. Return null if no order has been executed in the
+     * day or if it can not be read
+     */
+    public TradeHistory getDayTrades(long day, int cursor, int maxTrades) {
+        Candle candle;
+        List<Order> orders = null;
+        try {
+            candle = orderHistory.getCandle(day);
+            if (candle.isEmpty())
+                return null;
+            if (maxTrades > 0)
+                orders = orderHistory.getTrades(day, cursor, maxTrades);
+        } catch (IOException e) {
+            System.err.println("[Order history] Error reading the trades of " + LocalDate.ofEpochDay(day) + ": "
+                    + e.getMessage());
+            return null;
+        }
 
-            // Compute the day of the month
-            int dayOfMonth = LocalDate.ofEpochDay(order.getKey()).getDayOfMonth();
+        // Compute the day of the month
+        int dayOfMonth = LocalDate.ofEpochDay(day).getDayOfMonth();
 
-            TradeHistory tradeHistory = new TradeHistory(dayOfMonth, openingPrice, closingPrice, highPrice,
-                    lowPrice, orders);
-            response.put(Integer.toString(dayOfMonth), tradeHistory);
-        }
+        TradeHistory tradeHistory = new TradeHistory(dayOfMonth, candle, orders);
+        // the candle has been read first, so the orders of the page are all included in its count
+        if (orders != null && cursor + orders.size() < candle.getNumberOfTrades())
+            tradeHistory.setNextCursor((long) cursor + orders.size());
+        return tradeHistory;
+    }
 
-        return response;
+    /*
+     * The setters below load the databases before the matching engine is started,
+     * so they are never called concurrently with the matching and take no lock
+     */
+    public void setLimitAskOrders(
+            ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> limitAskOrders) {
+        loadLimitBook(this.limitAskOrders, limitAskOrders);
+    }
 
+    public void setLimitBidOrders(
+            ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> limitBidOrders) {
+        loadLimitBook(this.limitBidOrders, limitBidOrders);
     }
 
-    public synchronized void setLimitAskOrders(
-            ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitAskOrders) {
-        this.limitAskOrders = new ConcurrentSkipListMap<>(limitAskOrders);
+    /*
+     * Put the levels loaded from the database in the limit book and index their
+     * orders, a level whose price the book can not hold is rejected
+     */
+    private void loadLimitBook(LimitBook book, Map<Long, PriceLevel<LimitOrder>> levels) {
+        for (Map.Entry<Long, PriceLevel<LimitOrder>> entry : levels.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                book.putLevel(entry.getKey(), entry.getValue());
+        }
+        indexRestingOrders(levels);
     }
 
-    public synchronized void setLimitBidOrders(
-            ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> limitBidOrders) {
-        this.limitBidOrders = new ConcurrentSkipListMap<>(limitBidOrders);
+    public void setStopBidOrders(
+            ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> stopBidOrders) {
+        stopOrders.setBuyStops(stopBidOrders);
+        indexRestingOrders(stopBidOrders);
     }
 
-    public synchronized void setStopBidOrders(
-            ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopBidOrders) {
-        this.stopBidOrders = new ConcurrentSkipListMap<>(stopBidOrders);
+    public void setStopAskOrders(
+            ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> stopAskOrders) {
+        stopOrders.setSellStops(stopAskOrders);
+        indexRestingOrders(stopAskOrders);
     }
 
-    public synchronized void setStopAskOrders(
-            ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> stopAskOrders) {
-        this.stopAskOrders = new ConcurrentSkipListMap<>(stopAskOrders);
+    /*
+     * Add the orders of an order history saved in JSON format by an older version
+     * to the trade store, the orders already stored are skipped
+     */
+    public void importOrderHistory(Iterable<Order> orders) throws IOException {
+        for (Order order : orders) {
+            orderHistory.append(order);
+        }
     }
 
-    public synchronized void setOrderHistory(ConcurrentLinkedQueue<Order> orderHistory) {
-        this.orderHistory = new ConcurrentLinkedQueue<>(orderHistory);
+    /*
+     * Return the levels of the limit sell book sorted from the best price. The levels
+     * are the ones of the book, so it is called only before the engine is started
+     */
+    public NavigableMap<Long, PriceLevel<LimitOrder>> getLimitAskOrders() {
+        return limitAskOrders.toMap();
     }
 
-    public ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> getLimitAskOrders() {
-        return limitAskOrders;
+    /*
+     * Return the levels of the limit buy book sorted from the best price. The levels
+     * are the ones of the book, so it is called only before the engine is started
+     */
+    public NavigableMap<Long, PriceLevel<LimitOrder>> getLimitBidOrders() {
+        return limitBidOrders.toMap();
     }
 
-    public ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<LimitOrder>> getLimitBidOrders() {
-        return limitBidOrders;
+    /*
+     * Copy the resting orders and the price of the last trade into a snapshot that
+     * includes the journal records up to the given sequence number. It is called by
+     * the thread that applies the commands, the snapshot can then be saved by any
+     * thread
+     */
+    public BookSnapshot snapshot(long journalSequence) {
+        return new BookSnapshot(copyLevels(limitAskOrders.toMap()), copyLevels(limitBidOrders.toMap()),
+                copyLevels(stopOrders.getSellStops()), copyLevels(stopOrders.getBuyStops()),
+                stopOrders.getLastTradePrice(), journalSequence);
     }
 
-    public ConcurrentLinkedQueue<Order> getOrderHistory() {
-        return orderHistory;
+    // Return copies of the levels that hold orders, in a map sorted as the given one
+    private static <T extends Order> ConcurrentSkipListMap<Long, PriceLevel<T>> copyLevels(
+            NavigableMap<Long, PriceLevel<T>> levels) {
+        ConcurrentSkipListMap<Long, PriceLevel<T>> copy = new ConcurrentSkipListMap<>(levels.comparator());
+        for (Map.Entry<Long, PriceLevel<T>> entry : levels.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
     }
 
-    public ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> getStopBidOrders() {
-        return stopBidOrders;
+    /*
+     * Return the price of the last trade, which decides whether a new stop order is
+     * triggered at once, so it is saved with the stop orders
+     */
+    public long getLastTradePrice() {
+        return stopOrders.getLastTradePrice();
     }
 
-    public ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<StopOrder>> getStopAskOrders() {
-        return stopAskOrders;
+    public void setLastTradePrice(long lastTradePrice) {
+        stopOrders.setLastTradePrice(lastTradePrice);
     }
 
 }
\ No newline at end of file
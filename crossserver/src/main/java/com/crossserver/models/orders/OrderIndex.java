@@ -0,0 +1,111 @@
+package com.crossserver.models.Orders;
+
+import java.util.Arrays;
+
+/*
+ * This class is a map from order ID to order with open addressing on primitive
+ * keys: looking up, adding and removing an order neither boxes the ID nor allocates
+ * an entry. It is not thread safe, it is used only by the thread that applies the
+ * commands to the order book
+ */
+class OrderIndex {
+    private static final int MIN_CAPACITY = 16; // minimum number of slots
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L; // spreads consecutive IDs over the slots
+
+    private long[] keys; // order ID of every slot
+    private Order[] values; // order of every slot, null if the slot is free
+    private int mask; // number of slots minus one (the number of slots is a power of two)
+    private int size; // number of orders in the index
+
+    OrderIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    // Return the order with the given ID, null if the index does not contain it
+    Order get(long orderId) {
+        for (int slot = slotOf(orderId); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId)
+                return values[slot];
+        }
+        return null;
+    }
+
+    // Add the order to the index, replacing the order with the same ID
+    void put(long orderId, Order order) {
+        int slot = slotOf(orderId);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId) {
+                values[slot] = order;
+                return;
+            }
+        }
+        keys[slot] = orderId;
+        values[slot] = order;
+        // keep the load factor at most one half so the probe sequences stay short
+        if (++size * 2 > values.length)
+            resize(values.length * 2);
+    }
+
+    // Remove and return the order with the given ID, null if the index does not contain it
+    Order remove(long orderId) {
+        int slot = slotOf(orderId);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == orderId)
+                break;
+        }
+        Order removed = values[slot];
+        if (removed == null)
+            return null;
+
+        /*
+         * shift back the following orders of the probe sequence so that no free slot
+         * is left between an order and its home slot
+         */
+        int free = slot;
+        for (int next = (free + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+            int home = slotOf(keys[next]);
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+        }
+        values[free] = null;
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slotOf(long orderId) {
+        long hash = orderId * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Order[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Order[] oldValues = values;
+        allocate(capacity);
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null)
+                put(oldKeys[slot], oldValues[slot]);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.crossserver.models.Orders;
+
+import java.util.ArrayDeque;
+
+/*
+ * This class keeps the order objects that are no longer referenced by the order
+ * book (cancelled orders, or executed orders once they have been persisted) so that
+ * new orders reuse them instead of being allocated. It is not thread safe, it is
+ * used only by the thread that applies the commands to the order book
+ */
+public class OrderPool {
+    private final int capacity; // maximum number of free orders kept for every kind
+    private final ArrayDeque<LimitOrder> limitOrders; // free limit orders
+    private final ArrayDeque<MarketOrder> marketOrders; // free market orders
+    private final ArrayDeque<StopOrder> stopOrders; // free stop orders
+
+    public OrderPool(int capacity) {
+        this.capacity = capacity;
+        this.limitOrders = new ArrayDeque<>(capacity);
+        this.marketOrders = new ArrayDeque<>(capacity);
+        this.stopOrders = new ArrayDeque<>(capacity);
+    }
+
+    public LimitOrder acquireLimitOrder(long orderId, Side type, long size, long price, String userId) {
+        LimitOrder order = limitOrders.poll();
+        if (order == null)
+            order = new LimitOrder(orderId, type, size, price);
+        order.reset(orderId, type, size, price, userId);
+        return order;
+    }
+
+    public MarketOrder acquireMarketOrder(long orderId, Side type, long size, long price, String userId) {
+        MarketOrder order = marketOrders.poll();
+        if (order == null)
+            order = new MarketOrder(orderId, type, size, price);
+        order.reset(orderId, type, size, price, userId);
+        return order;
+    }
+
+    public StopOrder acquireStopOrder(long orderId, Side type, long size, long price, String userId) {
+        StopOrder order = stopOrders.poll();
+        if (order == null)
+            order = new StopOrder(orderId, type, size, price);
+        order.reset(orderId, type, size, price, userId);
+        return order;
+    }
+
+    /*
+     * Give back an order that nothing references anymore, the order is dropped if
+     * the pool of its kind is full
+     */
+    public void release(Order order) {
+        // drop the references held by the order so they can be collected
+        order.reset(0, null, 0, 0, null);
+        if (order instanceof LimitOrder) {
+            if (limitOrders.size() < capacity)
+                limitOrders.push((LimitOrder) order);
+        } else if (order instanceof MarketOrder) {
+            if (marketOrders.size() < capacity)
+                marketOrders.push((MarketOrder) order);
+        } else if (order instanceof StopOrder) {
+            if (stopOrders.size() < capacity)
+                stopOrders.push((StopOrder) order);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.crossserver.models.Orders;
+
+import com.google.gson.annotations.SerializedName;
+
+/*
+ * Kind of an order: market, limit or stop. The enum keeps the names used in the
+ * JSON messages and in the databases
+ */
+public enum OrderType {
+    @SerializedName("market")
+    MARKET("market"),
+    @SerializedName("limit")
+    LIMIT("limit"),
+    @SerializedName("stop")
+    STOP("stop");
+
+    private final String name; // name of the kind in the JSON messages
+
+    OrderType(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,191 @@
+package com.crossserver.models.Orders;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * This class represents the orders resting at the same price in the order book.
+ * The orders are kept in time priority in an intrusive doubly-linked list (the links
+ * are fields of the orders themselves) so that any order can be unlinked in constant
+ * time, while the total quantity and the number of orders of the level are cached and
+ * updated on every change. The level is not locked: it is only read and changed by
+ * the matching engine, one request at a time, or before the engine is started. The
+ * other threads read the copies of the levels that the engine takes for them
+ */
+@JsonAdapter(PriceLevel.JsonAdapterFactory.class)
+public class PriceLevel<T extends Order> implements Iterable<T> {
+    private Order head; // oldest order of the level
+    private Order tail; // newest order of the level
+    private long totalSize; // sum of the sizes of the orders of the level
+    private int orderCount; // number of orders of the level
+
+    public PriceLevel() {
+        this.head = null;
+        this.tail = null;
+        this.totalSize = 0;
+        this.orderCount = 0;
+    }
+
+    // Append the order to the level: it has the lowest time priority
+    public void offer(T order) {
+        order.priceLevel = this;
+        order.previousInLevel = tail;
+        order.nextInLevel = null;
+        if (tail == null)
+            head = order;
+        else
+            tail.nextInLevel = order;
+        tail = order;
+        totalSize += order.getSize();
+        orderCount++;
+    }
+
+    // Return the oldest order of the level without removing it, null if the level is empty
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        return (T) head;
+    }
+
+    // Remove and return the oldest order of the level, null if the level is empty
+    public T poll() {
+        T order = peek();
+        if (order != null)
+            unlink(order);
+        return order;
+    }
+
+    /*
+     * Remove the order from the level in constant time, return false if the order
+     * does not belong to the level
+     */
+    public boolean remove(Order order) {
+        if (order.priceLevel != this)
+            return false;
+        unlink(order);
+        return true;
+    }
+
+    /*
+     * Reduce the size of an order of the level (partial execution) keeping its time
+     * priority
+     */
+    public void reduceSize(Order order, long quantity) {
+        order.setSize(order.getSize() - quantity);
+        totalSize -= quantity;
+    }
+
+    private void unlink(Order order) {
+        Order previous = order.previousInLevel;
+        Order next = order.nextInLevel;
+        if (previous == null)
+            head = next;
+        else
+            previous.nextInLevel = next;
+        if (next == null)
+            tail = previous;
+        else
+            next.previousInLevel = previous;
+
+        order.previousInLevel = null;
+        order.nextInLevel = null;
+        order.priceLevel = null;
+        totalSize -= order.getSize();
+        orderCount--;
+    }
+
+    public boolean isEmpty() {
+        return head == null;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public int getOrderCount() {
+        return orderCount;
+    }
+
+    // Return a copy of the orders of the level in time priority
+    @SuppressWarnings("unchecked")
+    public List<T> toList() {
+        List<T> orders = new ArrayList<>(orderCount);
+        for (Order order = head; order != null; order = order.nextInLevel) {
+            orders.add((T) order);
+        }
+        return orders;
+    }
+
+    /*
+     * Return a new level holding copies of the orders of the level, in the same time
+     * priority, that other threads can read while the level keeps changing
+     */
+    @SuppressWarnings("unchecked")
+    PriceLevel<T> copy() {
+        PriceLevel<T> copy = new PriceLevel<>();
+        for (Order order = head; order != null; order = order.nextInLevel) {
+            copy.offer((T) order.copy());
+        }
+        return copy;
+    }
+
+    /*
+     * Iterate over a copy of the orders of the level, so the level can be changed
+     * while it is being iterated
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return toList().iterator();
+    }
+
+    /*
+     * Serialize the level as the JSON array of its orders, which is the format of
+     * the database files
+     */
+    public static class JsonAdapterFactory implements TypeAdapterFactory {
+        @Override
+        public <A> TypeAdapter<A> create(Gson gson, TypeToken<A> type) {
+            Type elementType = Order.class;
+            if (type.getType() instanceof ParameterizedType) {
+                elementType = ((ParameterizedType) type.getType()).getActualTypeArguments()[0];
+            }
+            @SuppressWarnings("unchecked")
+            TypeAdapter<Order> elementAdapter = (TypeAdapter<Order>) gson.getAdapter(TypeToken.get(elementType));
+
+            TypeAdapter<PriceLevel<Order>> adapter = new TypeAdapter<PriceLevel<Order>>() {
+                @Override
+                public void write(JsonWriter out, PriceLevel<Order> level) throws IOException {
+                    out.beginArray();
+                    for (Order order : level) {
+                        elementAdapter.write(out, order);
+                    }
+                    out.endArray();
+                }
+
+                @Override
+                public PriceLevel<Order> read(JsonReader in) throws IOException {
+                    PriceLevel<Order> level = new PriceLevel<>();
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        level.offer(elementAdapter.read(in));
+                    }
+                    in.endArray();
+                    return level;
+                }
+            };
+            @SuppressWarnings("unchecked")
+            TypeAdapter<A> typedAdapter = (TypeAdapter<A>) adapter;
+            return typedAdapter;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.crossserver.models.Orders;
+
+import com.google.gson.annotations.SerializedName;
+
+/*
+ * Side of an order: bid (buy) or ask (sell). The enum keeps the names used in the
+ * JSON messages and in the databases
+ */
+public enum Side {
+    @SerializedName("bid")
+    BID("bid"),
+    @SerializedName("ask")
+    ASK("ask");
+
+    private final String name; // name of the side in the JSON messages
+
+    Side(String name) {
+        this.name = name;
+    }
+
+    // Return the side with the given name, null if the name is not valid
+    public static Side fromString(String name) {
+        if (BID.name.equals(name))
+            return BID;
+        if (ASK.name.equals(name))
+            return ASK;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
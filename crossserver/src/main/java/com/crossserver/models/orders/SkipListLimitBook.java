@@ -0,0 +1,72 @@
+package com.crossserver.models.Orders;
+
+import java.util.Comparator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * Side of the limit order book backed by a skip list map of price levels: it holds
+ * any price, at the cost of a boxed key and a node traversal per level
+ */
+public class SkipListLimitBook implements LimitBook {
+    private final boolean bid; // true for the buy side
+    private final ConcurrentSkipListMap<Long, PriceLevel<LimitOrder>> levels; // levels sorted from the best price
+
+    public SkipListLimitBook(boolean bid) {
+        this.bid = bid;
+        this.levels = bid ? new ConcurrentSkipListMap<>(Comparator.reverseOrder()) : new ConcurrentSkipListMap<>();
+    }
+
+    @Override
+    public boolean isBid() {
+        return bid;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return levels.isEmpty();
+    }
+
+    @Override
+    public long bestPrice() {
+        // the levels are changed only by the thread that applies the commands, so the
+        // book can not be emptied between the two calls
+        return levels.isEmpty() ? NO_PRICE : levels.firstKey();
+    }
+
+    @Override
+    public long nextPrice(long price) {
+        Long next = levels.higherKey(price); // the map is sorted from the best price
+        return next == null ? NO_PRICE : next;
+    }
+
+    @Override
+    public PriceLevel<LimitOrder> getLevel(long price) {
+        return levels.get(price);
+    }
+
+    @Override
+    public PriceLevel<LimitOrder> getOrCreateLevel(long price) {
+        return levels.computeIfAbsent(price, k -> new PriceLevel<>());
+    }
+
+    @Override
+    public void putLevel(long price, PriceLevel<LimitOrder> level) {
+        levels.put(price, level);
+    }
+
+    @Override
+    public void removeLevel(long price) {
+        levels.remove(price);
+    }
+
+    @Override
+    public boolean acceptsPrice(long price) {
+        return price > 0;
+    }
+
+    @Override
+    public NavigableMap<Long, PriceLevel<LimitOrder>> toMap() {
+        return new ConcurrentSkipListMap<>(levels);
+    }
+}
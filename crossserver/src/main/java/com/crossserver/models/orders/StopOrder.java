@@ -5,9 +5,13 @@ package com.crossserver.models.Orders;
  */
 public class StopOrder extends Order {
 
-    public StopOrder(long orderId, String type, long size, long stopPrice) {
+    public StopOrder(long orderId, Side type, long size, long stopPrice) {
         super(orderId, type, size, stopPrice);
-        this.orderType = "stop";
+        this.orderType = OrderType.STOP;
     }
 
+    @Override
+    StopOrder copy() {
+        return copyTo(new StopOrder(orderId, type, size, price));
+    }
 }
@@ -0,0 +1,120 @@
+package com.crossserver.models.Orders;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * This class holds the resting stop orders sorted by trigger price and fires them
+ * on the trades printed by the order book: a buy stop is triggered when a trade is
+ * printed at or above its price, a sell stop when a trade is printed at or below
+ * its price. The triggered orders are not executed here, they are queued and the
+ * thread that applies the commands executes them once the current command is done,
+ * so the matching is never re-entered while a sweep is in progress. It is used only
+ * by the thread that applies the commands to the order book
+ */
+public class StopTriggerBook {
+    public static final long NO_TRADE = -1; // no trade has been printed yet
+
+    private ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> buyStops; // buy stops sorted by trigger price
+    private ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> sellStops; // sell stops sorted by trigger price
+    private final ArrayDeque<StopOrder> triggeredOrders; // stop orders waiting to be executed
+    private long lastTradePrice; // price of the last trade printed
+
+    public StopTriggerBook() {
+        this.buyStops = new ConcurrentSkipListMap<>();
+        this.sellStops = new ConcurrentSkipListMap<>();
+        this.triggeredOrders = new ArrayDeque<>();
+        this.lastTradePrice = NO_TRADE;
+    }
+
+    /*
+     * Add the stop order to the triggers of its side. The order is triggered at once
+     * if the last trade has already reached its price
+     */
+    public void add(StopOrder order) {
+        if (isTriggeredBy(order.getType(), order.getPrice(), lastTradePrice)) {
+            triggeredOrders.offer(order);
+            return;
+        }
+        stopsOf(order.getType()).computeIfAbsent(order.getPrice(), k -> new PriceLevel<>()).offer(order);
+    }
+
+    // Remove the resting stop order (cancellation), return false if it is not waiting for its trigger
+    public boolean remove(StopOrder order) {
+        @SuppressWarnings("unchecked")
+        PriceLevel<StopOrder> level = (PriceLevel<StopOrder>) order.priceLevel;
+        if (level == null || !level.remove(order))
+            return false;
+        if (level.isEmpty())
+            stopsOf(order.getType()).remove(order.getPrice(), level);
+        return true;
+    }
+
+    /*
+     * Record a trade printed at the price and queue the stop orders that it
+     * triggers: the buy stops with a price up to the trade price and the sell stops
+     * with a price down to it, the nearest to the previous price first
+     */
+    public void onTrade(long price) {
+        lastTradePrice = price;
+        // the first key of each map is the first stop to be reached, so most trades stop here
+        if (!buyStops.isEmpty() && buyStops.firstKey() <= price)
+            trigger(buyStops.headMap(price, true));
+        if (!sellStops.isEmpty() && sellStops.lastKey() >= price)
+            trigger(sellStops.tailMap(price, true).descendingMap());
+    }
+
+    // Move all the orders of the levels to the queue of the triggered orders, in time priority
+    private void trigger(NavigableMap<Long, PriceLevel<StopOrder>> levels) {
+        Map.Entry<Long, PriceLevel<StopOrder>> entry;
+        while ((entry = levels.pollFirstEntry()) != null) {
+            PriceLevel<StopOrder> level = entry.getValue();
+            StopOrder order;
+            while ((order = level.poll()) != null) {
+                triggeredOrders.offer(order);
+            }
+        }
+    }
+
+    // Return the next triggered stop order to execute, null if there is none
+    public StopOrder pollTriggered() {
+        return triggeredOrders.poll();
+    }
+
+    // Check if a trade at the price triggers a stop order of the side with the given stop price
+    private static boolean isTriggeredBy(Side type, long stopPrice, long tradePrice) {
+        if (tradePrice == NO_TRADE)
+            return false;
+        return type == Side.BID ? tradePrice >= stopPrice : tradePrice <= stopPrice;
+    }
+
+    private ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> stopsOf(Side type) {
+        return type == Side.BID ? buyStops : sellStops;
+    }
+
+    public long getLastTradePrice() {
+        return lastTradePrice;
+    }
+
+    public void setLastTradePrice(long lastTradePrice) {
+        this.lastTradePrice = lastTradePrice;
+    }
+
+    public ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> getBuyStops() {
+        return buyStops;
+    }
+
+    public void setBuyStops(ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> buyStops) {
+        this.buyStops = new ConcurrentSkipListMap<>(buyStops);
+    }
+
+    public ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> getSellStops() {
+        return sellStops;
+    }
+
+    public void setSellStops(ConcurrentSkipListMap<Long, PriceLevel<StopOrder>> sellStops) {
+        this.sellStops = new ConcurrentSkipListMap<>(sellStops);
+    }
+}
@@ -13,7 +13,10 @@ public class TradeHistory {
     private long closingPrice; // Closing price of the day
     private long highestPrice; // Highest price of the day
     private long lowestPrice; // Lowest price of the day
-    private final ArrayList<Order> fulfilledOrders; // Fulfilled orders of the day
+    private long volume; // Total size of the orders executed in the day
+    private long numberOfTrades; // Number of orders executed in the day
+    private final ArrayList<Order> fulfilledOrders; // Fulfilled orders of the day, null for a summary
+    private Long nextCursor; // Position of the first order not included, null if no order is left out
 
     public TradeHistory(int numberOfDay, long openingPrice, long closingPrice, long highestPrice, long lowestPrice,
             List<Order> orders) {
@@ -22,8 +25,10 @@ public class TradeHistory {
         this.closingPrice = closingPrice;
         this.highestPrice = highestPrice;
         this.lowestPrice = lowestPrice;
-        this.fulfilledOrders = new ArrayList<>();
-        this.fulfilledOrders.addAll(orders);
+        this.volume = 0;
+        this.numberOfTrades = orders == null ? 0 : orders.size();
+        this.fulfilledOrders = orders == null ? null : new ArrayList<>(orders);
+        this.nextCursor = null;
     }
 
     public int getNumberOfDay() {
@@ -62,8 +67,39 @@ public class TradeHistory {
         this.lowestPrice = lowestPrice;
     }
 
+    /*
+     * Create the trade history of the day from the candle of the day, with a page of
+     * the fulfilled orders or, if orders is null, only the summary of the day
+     */
+    public TradeHistory(int numberOfDay, Candle candle, List<Order> orders) {
+        this(numberOfDay, candle.getOpeningPrice(), candle.getClosingPrice(), candle.getHighestPrice(),
+                candle.getLowestPrice(), orders);
+        this.volume = candle.getVolume();
+        this.numberOfTrades = candle.getNumberOfTrades();
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public void setVolume(long volume) {
+        this.volume = volume;
+    }
+
+    public long getNumberOfTrades() {
+        return numberOfTrades;
+    }
+
     public ArrayList<Order> getFulfilledOrders() {
         return fulfilledOrders;
     }
 
+    public Long getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(Long nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
 }
@@ -0,0 +1,665 @@
+package com.crossserver.models.Orders;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class stores the executed orders in fixed-width binary records, in one
+ * memory-mapped segment file per day (UTC). The segments of the most recent days
+ * are kept mapped and their order IDs indexed ("hot"), the older ones are mapped
+ * only while a query reads them, so the memory used and the startup time do not
+ * grow with the number of trades ever executed. The records are appended only by
+ * the thread that applies the commands, the queries read them straight from the
+ * mapped buffers on any thread without stopping the matching.
+ *
+ * The queries do not take the lock of the hot segments either: every time the
+ * writer maps or unmaps a hot segment (once a day in steady state) it publishes an
+ * immutable copy of the hot segments, and a query reads the copy it finds, like a
+ * snapshot of the store. The writer keeps the segment of its last append, so
+ * appending a trade takes no lock at all.
+ *
+ * The lowest and the highest order ID of every cold segment are kept in memory, so
+ * looking up an executed order opens only the cold segments whose range holds it.
+ *
+ * Every segment keeps in its header the candle of the day, updated as each record
+ * is appended, so the summary of a day is read in constant time whatever the
+ * number of trades of the day.
+ *
+ * Segment layout: a header of HEADER_SIZE bytes (magic, version, epoch day, number
+ * of records, lowest and highest order ID, then the candle: opening, closing,
+ * highest and lowest price, volume, time of the opening and of the closing order,
+ * the rest is reserved) followed by the records. Record layout: order ID (long), timestamp in seconds (long), size
+ * (long), price (long), user index (int), side (byte: 1 bid, 2 ask), order kind
+ * (byte: 0 market, 1 limit, 2 stop), 2 bytes of padding. The user index refers to
+ * the table of the user IDs, an append-only file of length-prefixed UTF-8 strings
+ */
+public class TradeStore {
+    public static final int RECORD_SIZE = 40; // size of a record in bytes
+    public static final int HEADER_SIZE = 128; // size of the header of a segment in bytes
+
+    private static final int MAGIC = 0x54524431; // "TRD1", marks a segment file
+    private static final int VERSION = 2; // version of the segment layout
+    private static final int VERSION_WITHOUT_CANDLE = 1; // version whose header has no candle
+    // offsets of the header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DAY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int MIN_ORDER_ID_OFFSET = 24;
+    private static final int MAX_ORDER_ID_OFFSET = 32;
+    private static final int OPEN_OFFSET = 40;
+    private static final int CLOSE_OFFSET = 48;
+    private static final int HIGH_OFFSET = 56;
+    private static final int LOW_OFFSET = 64;
+    private static final int VOLUME_OFFSET = 72;
+    private static final int OPEN_TIME_OFFSET = 80;
+    private static final int CLOSE_TIME_OFFSET = 88;
+    // offsets of the record fields
+    private static final int ORDER_ID_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int PRICE_OFFSET = 24;
+    private static final int USER_OFFSET = 32;
+    private static final int SIDE_OFFSET = 36;
+    private static final int KIND_OFFSET = 37;
+
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final int INITIAL_SEGMENT_RECORDS = 16 * 1024; // records of a new segment before it grows
+    private static final String SEGMENT_PREFIX = "trades-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    private static final String USERS_FILE = "users.idx";
+    private static final Candle EMPTY_CANDLE = new Candle(0, 0, 0, 0, 0, 0); // candle of a day with no trades
+
+    private final File directory; // directory of the segment files
+    private final int maxHotSegments; // number of segments kept mapped for writing
+    private final TreeMap<Long, Segment> hotSegments; // hot segments by epoch day, guarded by segmentsLock
+    private volatile Map<Long, Segment> hotView; // immutable copy of the hot segments read by the queries
+    private Segment appendSegment; // segment of the last append, used only by the writer
+    // guards the hot segments: it is not a monitor, so a virtual thread reading the history while a
+    // segment is mapped does not pin its carrier thread
+    private final ReentrantLock segmentsLock;
+    private final ConcurrentHashMap<Long, Candle> coldCandles; // candles of the cold segments already read
+    private final ExecutedOrderIndex executedOrders; // IDs of the orders of the hot segments
+    // lowest and highest order ID of the cold segments with records, by epoch day
+    private final ConcurrentSkipListMap<Long, long[]> coldOrderIds;
+    private final CopyOnWriteArrayList<String> users; // user IDs by user index
+    private final HashMap<String, Integer> userIndexes; // user index by user ID
+    private final FileChannel usersChannel; // channel used to append the user IDs
+    private long maxOrderId; // highest order ID stored, -1 if the store is empty
+
+    public TradeStore(File directory, int maxHotSegments) throws IOException {
+        if (maxHotSegments <= 0) {
+            throw new IllegalArgumentException("At least one trade segment must be kept hot");
+        }
+        if (!directory.exists())
+            directory.mkdirs();
+        this.directory = directory;
+        this.maxHotSegments = maxHotSegments;
+        this.hotSegments = new TreeMap<>();
+        this.hotView = Map.of();
+        this.segmentsLock = new ReentrantLock();
+        this.coldCandles = new ConcurrentHashMap<>();
+        this.executedOrders = new ExecutedOrderIndex();
+        this.coldOrderIds = new ConcurrentSkipListMap<>();
+        this.users = new CopyOnWriteArrayList<>();
+        this.userIndexes = new HashMap<>();
+        this.usersChannel = FileChannel.open(new File(directory, USERS_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.maxOrderId = -1;
+        loadUsers();
+
+        // only the headers of the old segments are read, the records of the recent ones are indexed
+        List<Long> days = segmentDays();
+        for (long day : days) {
+            Segment segment = Segment.open(segmentFile(day), false);
+            if (segment.count > 0) {
+                maxOrderId = Math.max(maxOrderId, segment.maxOrderId());
+                coldOrderIds.put(day, new long[] { segment.minOrderId(), segment.maxOrderId() });
+            }
+        }
+        for (int i = Math.max(0, days.size() - maxHotSegments); i < days.size(); i++) {
+            hotSegment(days.get(i));
+        }
+    }
+
+    /*
+     * Append the executed order to the segment of its day. An order already stored
+     * is skipped, so replaying the journal over trades that reached the segments
+     * before a crash does not duplicate them: a replayed order has the time of its
+     * first execution, and the segment of its day is made hot, so its orders are
+     * indexed, before the order is looked up, even if that day had become cold.
+     * Return false if the order was skipped
+     */
+    public boolean append(Order order) throws IOException {
+        long day = Math.floorDiv(order.getTimestamp(), SECONDS_PER_DAY);
+        Segment segment = appendSegment;
+        boolean newSegment = false;
+        if (segment == null || segment.epochDay != day) {
+            // the order belongs to another day than the previous one
+            newSegment = !hotView.containsKey(day);
+            segment = hotSegment(day);
+            appendSegment = segment;
+        }
+        boolean stored = !executedOrders.contains(order.getOrderId());
+        if (stored) {
+            int userIndex = userIndexOf(order.getUserId());
+            segment.append(order, userIndex);
+            executedOrders.put(order.getOrderId(), userIndex);
+            maxOrderId = Math.max(maxOrderId, order.getOrderId());
+        }
+        // a cold day made hot by a replayed order goes back to the cold segments
+        if (newSegment)
+            evictColdSegments();
+        return stored;
+    }
+
+    /*
+     * Return the ID of the user who placed the executed order of a hot segment, null
+     * if the order is not in the hot segments. It reads only the index in memory, so
+     * the thread that applies the commands can call it without touching the disk
+     */
+    public String getHotOwner(long orderId) {
+        int userIndex = executedOrders.get(orderId);
+        return userIndex == ExecutedOrderIndex.NOT_FOUND ? null : userOf(userIndex);
+    }
+
+    /*
+     * Return the ID of the user who placed the executed order of a cold segment, null
+     * if no cold segment stores it. Only the segments whose ID range contains the
+     * order are mapped and scanned, from the newest. It can be called by any thread,
+     * but not by the one that applies the commands, as it may read the disk
+     */
+    public String getColdOwner(long orderId) throws IOException {
+        for (Map.Entry<Long, long[]> range : coldOrderIds.descendingMap().entrySet()) {
+            long[] orderIds = range.getValue();
+            if (orderId < orderIds[0] || orderId > orderIds[1])
+                continue;
+            File file = segmentFile(range.getKey());
+            if (!file.exists())
+                continue;
+            Segment segment = Segment.open(file, false);
+            ByteBuffer records = segment.buffer;
+            for (int record = 0; record < segment.count; record++) {
+                int offset = HEADER_SIZE + record * RECORD_SIZE;
+                if (records.getLong(offset + ORDER_ID_OFFSET) == orderId)
+                    return userOf(records.getInt(offset + USER_OFFSET));
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Return at most maxTrades orders executed in the day (epoch day) starting from
+     * the record at position fromTrade, in execution order. The records are never
+     * moved, so the position of the next record is a stable cursor for the next
+     * page. It can be called by any thread: the records appended after the call are
+     * not returned
+     */
+    public List<Order> getTrades(long day, int fromTrade, int maxTrades) throws IOException {
+        Segment segment = hotView.get(day);
+        if (segment == null) {
+            File file = segmentFile(day);
+            if (!file.exists())
+                return new ArrayList<>();
+            segment = Segment.open(file, false);
+        }
+
+        // the number of records is read before the buffer, which is replaced before the count grows past it
+        int count = segment.count;
+        ByteBuffer records = segment.buffer;
+        int end = (int) Math.min(count, (long) fromTrade + maxTrades);
+        List<Order> trades = new ArrayList<>(Math.max(end - fromTrade, 0));
+        for (int record = fromTrade; record < end; record++) {
+            trades.add(read(records, HEADER_SIZE + record * RECORD_SIZE));
+        }
+        return trades;
+    }
+
+    /*
+     * Return the candle of the day (epoch day). It can be called by any thread and
+     * never waits for the matching: the candle of a hot segment is read from its
+     * header, the one of a cold segment is read once and then kept in memory
+     */
+    public Candle getCandle(long day) throws IOException {
+        Segment segment = hotView.get(day);
+        if (segment != null)
+            return segment.candle();
+
+        Candle candle = coldCandles.get(day);
+        if (candle != null)
+            return candle;
+        File file = segmentFile(day);
+        if (!file.exists())
+            return EMPTY_CANDLE;
+        candle = Segment.open(file, false).candle();
+        coldCandles.put(day, candle);
+        return candle;
+    }
+
+    // Force the hot segments and the user table to the disk
+    public void force() throws IOException {
+        segmentsLock.lock();
+        try {
+            for (Segment segment : hotSegments.values()) {
+                segment.buffer.force();
+            }
+            usersChannel.force(false);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        segmentsLock.lock();
+        try {
+            force();
+            for (Segment segment : hotSegments.values()) {
+                segment.close();
+            }
+            hotSegments.clear();
+            hotView = Map.of();
+            appendSegment = null;
+            usersChannel.close();
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    // Return the highest order ID stored, -1 if no order has been stored
+    public long getMaxOrderId() {
+        return maxOrderId;
+    }
+
+    /*
+     * Return the hot segment of the day, mapping it for writing and indexing its
+     * orders if it is not hot yet (the segment file is created if it does not exist)
+     */
+    private Segment hotSegment(long day) throws IOException {
+        segmentsLock.lock();
+        try {
+            Segment segment = hotSegments.get(day);
+            if (segment != null)
+                return segment;
+
+            segment = Segment.open(segmentFile(day), true);
+            if (segment.count == 0 && segment.day() != day)
+                segment.initialize(day);
+            else if (segment.version() == VERSION_WITHOUT_CANDLE)
+                segment.upgrade();
+            segment.epochDay = day;
+            coldCandles.remove(day);
+            coldOrderIds.remove(day);
+            for (int record = 0; record < segment.count; record++) {
+                int offset = HEADER_SIZE + record * RECORD_SIZE;
+                executedOrders.put(segment.buffer.getLong(offset + ORDER_ID_OFFSET),
+                        segment.buffer.getInt(offset + USER_OFFSET));
+            }
+            hotSegments.put(day, segment);
+            hotView = Map.copyOf(hotSegments);
+            return segment;
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    /*
+     * Unmap the oldest hot segments beyond the number of hot segments allowed and
+     * remove their orders from the index. A query that has found one of them in the
+     * previous copy of the hot segments keeps reading its mapping, which stays valid
+     */
+    private void evictColdSegments() throws IOException {
+        segmentsLock.lock();
+        try {
+            if (hotSegments.size() <= maxHotSegments)
+                return;
+            while (hotSegments.size() > maxHotSegments) {
+                Map.Entry<Long, Segment> entry = hotSegments.pollFirstEntry();
+                Segment segment = entry.getValue();
+                if (segment == appendSegment) // an old day imported after the recent ones
+                    appendSegment = null;
+                coldCandles.remove(entry.getKey());
+                segment.buffer.force();
+                // the range is known before the orders leave the index, so a lookup always finds them
+                if (segment.count > 0)
+                    coldOrderIds.put(entry.getKey(), new long[] { segment.minOrderId(), segment.maxOrderId() });
+                for (int record = 0; record < segment.count; record++) {
+                    executedOrders.remove(segment.buffer.getLong(HEADER_SIZE + record * RECORD_SIZE + ORDER_ID_OFFSET));
+                }
+                segment.close();
+            }
+            hotView = Map.copyOf(hotSegments);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+
+    private boolean isHot(long day) {
+        return hotView.containsKey(day);
+    }
+
+    // Decode the order of the record at the offset
+    private Order read(ByteBuffer records, int offset) {
+        long orderId = records.getLong(offset + ORDER_ID_OFFSET);
+        long size = records.getLong(offset + SIZE_OFFSET);
+        long price = records.getLong(offset + PRICE_OFFSET);
+        Side type = records.get(offset + SIDE_OFFSET) == 1 ? Side.BID : Side.ASK;
+        Order order;
+        switch (records.get(offset + KIND_OFFSET)) {
+            case 0:
+                order = new MarketOrder(orderId, type, size, price);
+                break;
+            case 2:
+                order = new StopOrder(orderId, type, size, price);
+                break;
+            default:
+                order = new LimitOrder(orderId, type, size, price);
+        }
+        order.setTimestamp(records.getLong(offset + TIMESTAMP_OFFSET));
+        order.setUserId(userOf(records.getInt(offset + USER_OFFSET)));
+        return order;
+    }
+
+    // Return the index of the user, adding the user to the table the first time
+    private int userIndexOf(String userId) throws IOException {
+        String key = userId == null ? "" : userId;
+        Integer index = userIndexes.get(key);
+        if (index != null)
+            return index;
+
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(Short.BYTES + bytes.length);
+        entry.putShort((short) bytes.length).put(bytes).flip();
+        while (entry.hasRemaining()) {
+            usersChannel.write(entry);
+        }
+        users.add(key);
+        userIndexes.put(key, users.size() - 1);
+        return users.size() - 1;
+    }
+
+    private String userOf(int userIndex) {
+        if (userIndex < 0 || userIndex >= users.size())
+            return null;
+        String userId = users.get(userIndex);
+        return userId.isEmpty() ? null : userId;
+    }
+
+    // Load the table of the user IDs, an entry torn by a crash is cut off
+    private void loadUsers() throws IOException {
+        long size = usersChannel.size();
+        long validLength = 0;
+        if (size > 0) {
+            MappedByteBuffer entries = usersChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (entries.remaining() >= Short.BYTES) {
+                int length = entries.getShort();
+                if (length < 0 || length > entries.remaining())
+                    break;
+                byte[] bytes = new byte[length];
+                entries.get(bytes);
+                String userId = new String(bytes, StandardCharsets.UTF_8);
+                users.add(userId);
+                userIndexes.put(userId, users.size() - 1);
+                validLength = entries.position();
+            }
+        }
+        if (validLength < size)
+            usersChannel.truncate(validLength);
+        usersChannel.position(validLength);
+    }
+
+    // Return the days of the segment files in the directory, from the oldest
+    private List<Long> segmentDays() {
+        List<Long> days = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null)
+            return days;
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                String date = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                days.add(LocalDate.parse(date).toEpochDay());
+            } catch (Exception e) {
+                System.err.println("[TradeStore] Ignoring unexpected file " + name);
+            }
+        }
+        days.sort(null);
+        return days;
+    }
+
+    private File segmentFile(long day) {
+        return new File(directory, SEGMENT_PREFIX + LocalDate.ofEpochDay(day) + SEGMENT_SUFFIX);
+    }
+
+    /*
+     * Segment file of a day. The records are written only by the thread that
+     * applies the commands: the record is written before the count is increased,
+     * and a larger mapping replaces the buffer before the count goes beyond the
+     * capacity of the previous one, so a reader that reads the count first and
+     * then the buffer always sees complete records. The candle in the header is
+     * guarded by a sequence lock: the writer makes the version odd while it updates
+     * the candle, and a reader retries if the version was odd or has changed while
+     * it was reading, so the matching never waits for the readers
+     */
+    private static class Segment {
+        private final FileChannel channel; // channel of the file, null if the segment is read only
+        private volatile MappedByteBuffer buffer; // mapping of the header and of the records
+        private volatile int count; // number of records
+        private int capacity; // number of records of the mapping
+        private volatile int candleVersion; // version of the candle, odd while it is being updated
+        private long epochDay; // day of the records, set when the segment becomes hot
+
+        private Segment(FileChannel channel, MappedByteBuffer buffer, int count, int capacity) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.count = count;
+            this.capacity = capacity;
+        }
+
+        /*
+         * Map the segment file, for writing or only for reading. A segment opened for
+         * writing is created with room for INITIAL_SEGMENT_RECORDS if it is new
+         */
+        static Segment open(File file, boolean writable) throws IOException {
+            FileChannel channel = writable
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (writable && size < HEADER_SIZE)
+                    size = HEADER_SIZE + (long) INITIAL_SEGMENT_RECORDS * RECORD_SIZE;
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Trade segment " + file.getName() + " is truncated");
+                }
+                MappedByteBuffer buffer = channel.map(
+                        writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+                int capacity = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+                int count = 0;
+                if (buffer.getInt(MAGIC_OFFSET) == MAGIC) {
+                    int version = buffer.getInt(VERSION_OFFSET);
+                    if (version != VERSION && version != VERSION_WITHOUT_CANDLE) {
+                        throw new IOException("Unsupported version of trade segment " + file.getName());
+                    }
+                    count = Math.min(buffer.getInt(COUNT_OFFSET), capacity);
+                } else if (!writable) {
+                    throw new IOException("Invalid trade segment " + file.getName());
+                }
+                // the mapping stays valid once the channel of a read only segment is closed
+                if (!writable)
+                    channel.close();
+                return new Segment(writable ? channel : null, buffer, count, capacity);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Write the header of a new segment
+        void initialize(long day) {
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putLong(DAY_OFFSET, day);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putLong(MIN_ORDER_ID_OFFSET, Long.MAX_VALUE);
+            buffer.putLong(MAX_ORDER_ID_OFFSET, Long.MIN_VALUE);
+            buffer.putLong(OPEN_TIME_OFFSET, Long.MAX_VALUE);
+            buffer.putLong(CLOSE_TIME_OFFSET, Long.MIN_VALUE);
+        }
+
+        // Write the candle of a segment written by the version without candle
+        void upgrade() {
+            buffer.putLong(OPEN_TIME_OFFSET, Long.MAX_VALUE);
+            buffer.putLong(CLOSE_TIME_OFFSET, Long.MIN_VALUE);
+            for (int record = 0; record < count; record++) {
+                int offset = HEADER_SIZE + record * RECORD_SIZE;
+                updateCandle(buffer, buffer.getLong(offset + TIMESTAMP_OFFSET), buffer.getLong(offset + PRICE_OFFSET),
+                        buffer.getLong(offset + SIZE_OFFSET), record == 0);
+            }
+            buffer.putInt(VERSION_OFFSET, VERSION);
+        }
+
+        void append(Order order, int userIndex) throws IOException {
+            if (count == capacity)
+                grow();
+            MappedByteBuffer records = buffer;
+            int offset = HEADER_SIZE + count * RECORD_SIZE;
+            records.putLong(offset + ORDER_ID_OFFSET, order.getOrderId());
+            records.putLong(offset + TIMESTAMP_OFFSET, order.getTimestamp());
+            records.putLong(offset + SIZE_OFFSET, order.getSize());
+            records.putLong(offset + PRICE_OFFSET, order.getPrice());
+            records.putInt(offset + USER_OFFSET, userIndex);
+            records.put(offset + SIDE_OFFSET, (byte) (order.getType() == Side.BID ? 1 : 2));
+            records.put(offset + KIND_OFFSET, (byte) order.getOrderType().ordinal());
+            records.putLong(MIN_ORDER_ID_OFFSET, Math.min(records.getLong(MIN_ORDER_ID_OFFSET), order.getOrderId()));
+            records.putLong(MAX_ORDER_ID_OFFSET, Math.max(records.getLong(MAX_ORDER_ID_OFFSET), order.getOrderId()));
+
+            candleVersion++;
+            VarHandle.storeStoreFence(); // the odd version is visible before the candle changes
+            updateCandle(records, order.getTimestamp(), order.getPrice(), order.getSize(), count == 0);
+            records.putInt(COUNT_OFFSET, count + 1);
+            candleVersion++;
+            // the count is published last, so the readers never see a partial record
+            count++;
+        }
+
+        /*
+         * Add the executed order to the candle of the header. The orders are appended
+         * in execution order, except the ones of an old history imported later, so
+         * the opening and the closing price are chosen by time
+         */
+        private static void updateCandle(ByteBuffer header, long timestamp, long price, long size, boolean first) {
+            if (first) {
+                header.putLong(HIGH_OFFSET, price);
+                header.putLong(LOW_OFFSET, price);
+                header.putLong(VOLUME_OFFSET, 0);
+            } else {
+                header.putLong(HIGH_OFFSET, Math.max(header.getLong(HIGH_OFFSET), price));
+                header.putLong(LOW_OFFSET, Math.min(header.getLong(LOW_OFFSET), price));
+            }
+            header.putLong(VOLUME_OFFSET, header.getLong(VOLUME_OFFSET) + size);
+            if (timestamp < header.getLong(OPEN_TIME_OFFSET)) {
+                header.putLong(OPEN_TIME_OFFSET, timestamp);
+                header.putLong(OPEN_OFFSET, price);
+            }
+            if (timestamp >= header.getLong(CLOSE_TIME_OFFSET)) {
+                header.putLong(CLOSE_TIME_OFFSET, timestamp);
+                header.putLong(CLOSE_OFFSET, price);
+            }
+        }
+
+        // Read the candle of the header, retrying while the writer is updating it
+        Candle candle() {
+            if (version() == VERSION_WITHOUT_CANDLE)
+                return summarize();
+            while (true) {
+                int version = candleVersion;
+                if ((version & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                ByteBuffer header = buffer;
+                int numberOfTrades = header.getInt(COUNT_OFFSET);
+                long open = header.getLong(OPEN_OFFSET);
+                long close = header.getLong(CLOSE_OFFSET);
+                long high = header.getLong(HIGH_OFFSET);
+                long low = header.getLong(LOW_OFFSET);
+                long volume = header.getLong(VOLUME_OFFSET);
+                VarHandle.loadLoadFence(); // the candle is read before the version is checked again
+                if (version == candleVersion)
+                    return numberOfTrades == 0 ? EMPTY_CANDLE
+                            : new Candle(open, close, high, low, volume, numberOfTrades);
+            }
+        }
+
+        // Compute the candle from the records of a segment written by the version without candle
+        private Candle summarize() {
+            if (count == 0)
+                return EMPTY_CANDLE;
+            ByteBuffer records = buffer;
+            long open = 0, close = 0, high = Long.MIN_VALUE, low = Long.MAX_VALUE, volume = 0;
+            long openTime = Long.MAX_VALUE, closeTime = Long.MIN_VALUE;
+            for (int record = 0; record < count; record++) {
+                int offset = HEADER_SIZE + record * RECORD_SIZE;
+                long timestamp = records.getLong(offset + TIMESTAMP_OFFSET);
+                long price = records.getLong(offset + PRICE_OFFSET);
+                high = Math.max(high, price);
+                low = Math.min(low, price);
+                volume += records.getLong(offset + SIZE_OFFSET);
+                if (timestamp < openTime) {
+                    openTime = timestamp;
+                    open = price;
+                }
+                if (timestamp >= closeTime) {
+                    closeTime = timestamp;
+                    close = price;
+                }
+            }
+            return new Candle(open, close, high, low, volume, count);
+        }
+
+        // Map the file again with twice the room for the records
+        private void grow() throws IOException {
+            int newCapacity = capacity * 2;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+            capacity = newCapacity;
+        }
+
+        int version() {
+            return buffer.getInt(VERSION_OFFSET);
+        }
+
+        long day() {
+            return buffer.getInt(MAGIC_OFFSET) == MAGIC ? buffer.getLong(DAY_OFFSET) : Long.MIN_VALUE;
+        }
+
+        long minOrderId() {
+            return buffer.getLong(MIN_ORDER_ID_OFFSET);
+        }
+
+        long maxOrderId() {
+            return buffer.getLong(MAX_ORDER_ID_OFFSET);
+        }
+
+        void close() throws IOException {
+            if (channel != null)
+                channel.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.crossserver;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Benchmark of the number of connections the server keeps open at the same time:
+ * it opens the connections one after the other and keeps all of them open, then it
+ * sends a login request on every connection and waits for all the responses. It is
+ * a main class and not a test, as it needs a running server:
+ *
+ * java -cp target/test-classes com.crossserver.ConnectionCountBenchmark [host] [port] [connections]
+ *
+ * The number of threads of the server process can be read while the connections
+ * are open, e.g. with "ps -o nlwp <pid>". With serverMode = blocking only the
+ * connections of the pooled threads are answered, the others time out
+ */
+public class ConnectionCountBenchmark {
+    private static final long RESPONSE_TIMEOUT = 10_000; // maximum wait for all the responses in milliseconds
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12000;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        List<BufferedReader> readers = new ArrayList<>(connections);
+        try {
+            // open all the connections before sending any request
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                readers.add(new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            }
+            System.out.printf("%d connections opened in %.2f s%n", connections,
+                    (System.nanoTime() - start) / 1e9);
+
+            // a login request on every open connection, the user does not exist so the database is not changed
+            start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                String request = "{\"operation\":\"login\",\"values\":{\"username\":\"benchmark" + i
+                        + "\",\"password\":\"Benchmark1!\"}}\n";
+                OutputStream output = sockets.get(i).getOutputStream();
+                output.write(request.getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            }
+            long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+            int answered = 0;
+            for (int i = 0; i < connections; i++) {
+                try {
+                    sockets.get(i).setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    if (readers.get(i).readLine() != null)
+                        answered++;
+                } catch (SocketTimeoutException e) {
+                    // the connection is open but not served
+                }
+            }
+            System.out.printf("%d of %d connections answered in %.2f s%n", answered, connections,
+                    (System.nanoTime() - start) / 1e9);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
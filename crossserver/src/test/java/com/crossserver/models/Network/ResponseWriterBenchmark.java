@@ -0,0 +1,103 @@
+package com.crossserver.models.Network;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import com.crossserver.models.Orders.ExecutionReport;
+import com.crossserver.models.Orders.LimitOrder;
+import com.crossserver.models.Orders.Order;
+import com.crossserver.models.Orders.Side;
+import com.crossserver.models.Orders.TradeHistory;
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+/*
+ * Benchmark of the serialization of the responses: the maps serialized by Gson,
+ * as the responses were built before the response writer, against the writer, for
+ * an error response, the acknowledgement of an order with two fills and a page of
+ * twenty trades of a day. Every case prints the time and the bytes allocated per
+ * response. It is a main class and not a test, as its numbers depend on the machine:
+ *
+ * java -cp target/classes:target/test-classes:<gson jar> com.crossserver.models.Network.ResponseWriterBenchmark [iterations]
+ */
+public class ResponseWriterBenchmark {
+    private static final int WARM_UP_ITERATIONS = 200_000; // responses written before the measure
+    private static final int ITERATIONS = 1_000_000; // responses measured, unless given as argument
+    private static final long USER_SESSION = 1_800_000_000_000L; // session expiry written in the responses
+
+    private static long sink; // length of the responses, so the JIT can not drop them
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS;
+        Gson gson = new Gson();
+
+        ExecutionReport report = new ExecutionReport(42);
+        report.addFill(7, 1500, 3);
+        report.addFill(8, 1501, 2);
+
+        List<Order> orders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Order order = new LimitOrder(1000 + i, i % 2 == 0 ? Side.BID : Side.ASK, 1 + i, 1490 + i);
+            order.setTimestamp(1_742_200_000L + i);
+            order.setUserId("user" + i);
+            orders.add(order);
+        }
+        TradeHistory history = new TradeHistory(17, 1500, 1510, 1520, 1490, orders);
+
+        compare("error response", iterations,
+                () -> gson.toJson(Map.of("response", 103, "errorMessage", "Missing parameters")),
+                () -> ResponseWriter.response(103, "Missing parameters"));
+        compare("order ack with 2 fills", iterations,
+                () -> gson.toJson(Map.of("orderId", report.getOrderId(), "newUserSession", USER_SESSION, "fills",
+                        fillsOf(report))),
+                () -> ResponseWriter.start().field("orderId", report.getOrderId())
+                        .field("newUserSession", USER_SESSION).fills(report).end());
+        compare("day trades, 20 orders", iterations,
+                () -> gson.toJson(Map.of("newUserSession", USER_SESSION, "day", "17032025", "tradeHistory", history)),
+                () -> ResponseWriter.start().field("newUserSession", USER_SESSION).field("day", "17032025")
+                        .name("tradeHistory").tradeHistory(history).end());
+        if (sink == 0)
+            System.out.println("No response written");
+    }
+
+    /*
+     * Check that both encoders write the same JSON (the fields of a map have no
+     * order), then measure each of them
+     */
+    private static void compare(String response, int iterations, Supplier<String> gsonMap,
+            Supplier<String> writer) {
+        if (!JsonParser.parseString(gsonMap.get()).equals(JsonParser.parseString(writer.get())))
+            throw new IllegalStateException("The encoders write different responses for the " + response);
+        measure(response, "Gson map", iterations, gsonMap);
+        measure(response, "ResponseWriter", iterations, writer);
+    }
+
+    // Write the response and print the time and the bytes allocated per response
+    private static void measure(String response, String encoder, int iterations, Supplier<String> encode) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            sink += encode.get().length();
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += encode.get().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        System.out.printf("%-24s %-16s %8.0f ns %8d B%n", response, encoder, (double) elapsed / iterations,
+                allocated / iterations);
+    }
+
+    // The fills as the list of maps that Gson serialized before the response writer
+    private static List<Map<String, Long>> fillsOf(ExecutionReport report) {
+        List<Map<String, Long>> fills = new ArrayList<>(report.getFillCount());
+        for (int i = 0; i < report.getFillCount(); i++) {
+            fills.add(Map.of("price", report.getFillPrice(i), "size", report.getFillSize(i)));
+        }
+        return fills;
+    }
+}
@@ -0,0 +1,105 @@
+package com.crossserver.models.Session;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Check that the timing wheel hands every session to the caller exactly at the
+ * tick it is scheduled at, whatever the level it is placed in and the buckets of
+ * the upper levels it is moved down from, and that a tick beyond the range of the
+ * wheel is clamped to its end
+ */
+class TimingWheelTest {
+    private static final long LEVEL_1_SPAN = 64; // ticks of a bucket of the second level
+    private static final long LEVEL_2_SPAN = 64 * 64; // ticks of a bucket of the third level
+    private static final long MAX_DISTANCE = 64L * 64 * 64 * 64 - 1; // farthest tick from the current one
+
+    @Test
+    void everySessionComesDueAtItsTick() {
+        // the start is just before a boundary of the third level, so the wheel crosses both kinds of boundary
+        long start = 3 * LEVEL_2_SPAN - 70;
+        TimingWheel wheel = new TimingWheel(start);
+        long[] distances = { 1, 2, 63, 64, 65, 69, 70, 71, 127, 128, 134, 4095, 4096, 4097, 4166, 8192, 8261,
+                64 * 64 * 64 - 1, 64 * 64 * 64, 64 * 64 * 64 + 70, 300_000 };
+        Map<Session, Long> ticks = new HashMap<>();
+        for (long distance : distances) {
+            Session session = session();
+            ticks.put(session, start + distance);
+            wheel.schedule(session, start + distance);
+        }
+        assertEquals(distances.length, wheel.size());
+
+        List<Session> due = new ArrayList<>();
+        // uneven steps, so the boundaries fall inside and at the end of a step
+        long[] steps = { 1, 5, 63, 64, 1, 1000, 3000, 4096, 100_000, 200_000 };
+        for (long step : steps) {
+            wheel.advanceTo(wheel.getCurrentTick() + step, session -> {
+                assertEquals(ticks.get(session), wheel.getCurrentTick());
+                due.add(session);
+            });
+        }
+        assertTrue(wheel.getCurrentTick() >= start + 300_000);
+        assertEquals(distances.length, due.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void sessionMovedDownAtALevelBoundaryIsNotLost() {
+        TimingWheel wheel = new TimingWheel(0);
+        // due at the very tick its bucket of the upper level is moved down
+        Session atBoundary = session();
+        wheel.schedule(atBoundary, LEVEL_2_SPAN);
+        // moved down twice, into the second level and then into the first one
+        Session afterBoundary = session();
+        wheel.schedule(afterBoundary, LEVEL_2_SPAN + LEVEL_1_SPAN + 1);
+
+        List<Long> dueTicks = new ArrayList<>();
+        wheel.advanceTo(LEVEL_2_SPAN - 1, session -> dueTicks.add(wheel.getCurrentTick()));
+        assertTrue(dueTicks.isEmpty());
+
+        // the session found at the boundary is scheduled again one span of the second level later
+        wheel.advanceTo(LEVEL_2_SPAN, session -> {
+            dueTicks.add(wheel.getCurrentTick());
+            wheel.schedule(session, wheel.getCurrentTick() + LEVEL_1_SPAN);
+        });
+        assertEquals(List.of(LEVEL_2_SPAN), dueTicks);
+        assertEquals(2, wheel.size());
+
+        wheel.advanceTo(2 * LEVEL_2_SPAN, session -> dueTicks.add(wheel.getCurrentTick()));
+        assertEquals(List.of(LEVEL_2_SPAN, LEVEL_2_SPAN + LEVEL_1_SPAN, LEVEL_2_SPAN + LEVEL_1_SPAN + 1),
+                dueTicks);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void tickBeyondTheWheelIsClampedToItsEnd() {
+        long start = 1_000;
+        TimingWheel wheel = new TimingWheel(start);
+        Session far = session();
+        wheel.schedule(far, start + MAX_DISTANCE + 1_000_000);
+        // a tick already past is due at the next tick
+        Session late = session();
+        wheel.schedule(late, start - 10);
+
+        List<Long> dueTicks = new ArrayList<>();
+        wheel.advanceTo(start + MAX_DISTANCE - 1, session -> dueTicks.add(wheel.getCurrentTick()));
+        assertEquals(List.of(start + 1), dueTicks);
+
+        wheel.advanceTo(start + MAX_DISTANCE, session -> {
+            assertEquals(far, session);
+            dueTicks.add(wheel.getCurrentTick());
+        });
+        assertEquals(List.of(start + 1, start + MAX_DISTANCE), dueTicks);
+        assertEquals(0, wheel.size());
+    }
+
+    private static Session session() {
+        return new Session("user", 0, null);
+    }
+}
@@ -0,0 +1,122 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that the matching engine does not acknowledge nor notify the requests
+ * whose journal records could not be written, and that the journal rolled over by
+ * a snapshot replays the requests applied after it
+ */
+class MatchingEngineJournalTest {
+
+    @TempDir
+    File directory;
+
+    @Test
+    void failedCommitFailsTheRequestsAndStopsTheEngine() throws IOException {
+        TradeStore tradeStore = new TradeStore(new File(directory, "trades"), 1);
+        CommandJournal journal = new CommandJournal(new File(directory, "journal.bin"));
+        try {
+            OrderBook orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+            MatchingEngine engine = new MatchingEngine(orderBook, false, 16, journal);
+            engine.start();
+
+            engine.insertLimitOrder(0, Side.ASK, 10, 100, "maker");
+            assertEquals(1, engine.getJournalSequence());
+
+            // the records of the next request can not reach the file
+            journal.close();
+            assertThrows(CompletionException.class, () -> engine.insertLimitOrder(1, Side.ASK, 10, 101, "maker"));
+
+            // the engine rejects the next requests, and the snapshots of a book that the journal can not replay
+            assertThrows(CompletionException.class, () -> engine.cancelOrder(0, "maker"));
+            assertThrows(CompletionException.class, engine::snapshot);
+            assertEquals(2, engine.getJournalSequence());
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    @Test
+    void failedCommitDropsTheNotifications() throws IOException {
+        TradeStore tradeStore = new TradeStore(new File(directory, "trades"), 1);
+        CommandJournal journal = new CommandJournal(new File(directory, "journal.bin"));
+        try {
+            // the dispatcher is not started and its queue holds one message, so the next ones are counted as dropped
+            UDPNotifier notifier = new UDPNotifier(1, 16);
+            notifier.registerUdpClient("maker", InetAddress.getLoopbackAddress(), 9);
+            notifier.registerUdpClient("taker", InetAddress.getLoopbackAddress(), 9);
+            MatchingEngine engine = new MatchingEngine(new OrderBook(notifier, tradeStore), false, 16, journal);
+            engine.start();
+
+            engine.insertLimitOrder(0, Side.ASK, 10, 100, "maker");
+            engine.insertLimitOrder(1, Side.BID, 10, 100, "taker");
+            assertEquals(1, notifier.getDroppedMessages());
+
+            // the trade of a request that is not on disk is not notified
+            engine.insertLimitOrder(2, Side.ASK, 10, 100, "maker");
+            journal.close();
+            assertThrows(CompletionException.class, () -> engine.insertLimitOrder(3, Side.BID, 10, 100, "taker"));
+            assertEquals(1, notifier.getDroppedMessages());
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    @Test
+    void snapshotRollsTheJournalOver() throws IOException {
+        File journalFile = new File(directory, "journal.bin");
+        File previousFile = new File(directory, "journal.bin.prev");
+        TradeStore tradeStore = new TradeStore(new File(directory, "trades"), 1);
+        try {
+            CommandJournal journal = new CommandJournal(journalFile);
+            MatchingEngine engine = new MatchingEngine(new OrderBook(new UDPNotifier(16, 16), tradeStore), false,
+                    16, journal);
+            engine.start();
+            engine.insertLimitOrder(0, Side.ASK, 10, 100, "maker");
+            assertEquals(1, engine.snapshot().getJournalSequence());
+            engine.insertLimitOrder(1, Side.ASK, 10, 101, "maker");
+            journal.close();
+
+            // the snapshot has not been saved: its records are still replayed from the previous file
+            assertTrue(previousFile.exists());
+            assertEquals(List.of(0L, 1L), replayedOrders(journalFile, 0));
+            assertEquals(List.of(1L), replayedOrders(journalFile, 1));
+
+            // once it has been saved only the requests applied after it are left
+            journal = new CommandJournal(journalFile);
+            journal.discardRolledOver();
+            journal.close();
+            assertFalse(previousFile.exists());
+            assertEquals(List.of(1L), replayedOrders(journalFile, 1));
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    // Return the IDs of the orders replayed on top of the snapshot with the given sequence number
+    private static List<Long> replayedOrders(File journalFile, long snapshotSequence) throws IOException {
+        CommandJournal journal = new CommandJournal(journalFile);
+        List<Long> orderIds = new ArrayList<>();
+        try {
+            journal.replay(snapshotSequence, command -> orderIds.add(command.orderId));
+            assertEquals(2, journal.getSequence());
+        } finally {
+            journal.close();
+        }
+        return orderIds;
+    }
+}
@@ -0,0 +1,107 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that the matching path of the order book does not allocate per fill once
+ * it is warm: the orders come from the pool, the executed orders are copied into
+ * the trade store and the notifications are written into reused buffers. The book
+ * is the array book, whose price levels stay in their array when they are emptied
+ */
+class OrderBookAllocationTest {
+    private static final int WARM_UP_ROUNDS = 50_000; // rounds that fill the pools, the buffers and the JIT
+    private static final int MEASURED_ROUNDS = 10_000; // rounds of every measured window
+    private static final int WINDOWS = 10; // measured windows
+    private static final int FILLS_PER_ROUND = 3; // a crossing limit order and a market order sweeping two orders
+    // less than the smallest object: any garbage created by every fill goes over it
+    private static final double MAX_BYTES_PER_FILL = 8;
+
+    @TempDir
+    File tradeDirectory;
+
+    @Test
+    void fillsDoNotAllocateOnceWarm() throws IOException {
+        com.sun.management.ThreadMXBean threadBean = allocationCounter();
+        assumeTrue(threadBean != null, "The JVM does not measure the memory allocated by a thread");
+
+        // the notifier is not started: every message is dropped into the log of its user, the
+        // path that allocated the most as it copied the message on the engine thread
+        UDPNotifier notifier = new UDPNotifier(64, 16);
+        notifier.registerUdpClient("maker", InetAddress.getLoopbackAddress(), 9);
+        notifier.registerUdpClient("taker", InetAddress.getLoopbackAddress(), 9);
+        TradeStore tradeStore = new TradeStore(tradeDirectory, 1);
+        try {
+            OrderBook orderBook = new OrderBook(notifier, tradeStore, new ArrayLimitBook(false, 1, 1024, 1),
+                    new ArrayLimitBook(true, 1, 1024, 1), null);
+            orderBook.setCurrentTime(System.currentTimeMillis() / 1000L);
+            ExecutionReport report = new ExecutionReport(0);
+
+            long orderId = 0;
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                orderId = matchRound(orderBook, report, orderId, i);
+            }
+
+            /*
+             * The cheapest window is the steady state: the index of the executed orders
+             * doubles its arrays from time to time, which is retained history and not
+             * garbage of the fills
+             */
+            double bestBytesPerFill = Double.MAX_VALUE;
+            for (int window = 0; window < WINDOWS; window++) {
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                    orderId = matchRound(orderBook, report, orderId, i);
+                }
+                long allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                bestBytesPerFill = Math.min(bestBytesPerFill,
+                        (double) allocated / (MEASURED_ROUNDS * FILLS_PER_ROUND));
+            }
+
+            assertTrue(bestBytesPerFill <= MAX_BYTES_PER_FILL,
+                    "Matching allocated " + bestBytesPerFill + " bytes per fill");
+            assertTrue(notifier.getDroppedMessages() > 0);
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    /*
+     * Rest two sell orders, cross the first one with a buy limit order and sweep the
+     * rest with a market order, so the book is empty again at the end of the round.
+     * Return the next order ID
+     */
+    private static long matchRound(OrderBook orderBook, ExecutionReport report, long orderId, int round) {
+        long price = 100 + (round & 7);
+        orderBook.insertLimitOrder(orderId++, Side.ASK, 10, price, "maker", report);
+        orderBook.insertLimitOrder(orderId++, Side.ASK, 10, price + 1, "maker", report);
+        orderBook.insertLimitOrder(orderId++, Side.BID, 5, price, "taker", report);
+        orderBook.publishNotifications();
+        assertEquals(1, report.getFillCount());
+
+        orderBook.insertMarketOrder(orderId++, Side.BID, 15, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        orderBook.publishNotifications();
+        assertEquals(2, report.getFillCount());
+        return orderId;
+    }
+
+    // Return the bean that measures the memory allocated by a thread, null if the JVM does not support it
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        return threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()
+                ? threadBean
+                : null;
+    }
+}
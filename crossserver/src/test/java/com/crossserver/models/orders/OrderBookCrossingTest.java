@@ -0,0 +1,109 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that a limit order is matched against the opposite book when it is
+ * inserted: it trades at the prices of the resting orders up to its limit price,
+ * best price and oldest order first, and only its remaining size rests in the book
+ */
+class OrderBookCrossingTest {
+
+    @TempDir
+    File tradeDirectory;
+
+    private TradeStore tradeStore;
+    private OrderBook orderBook;
+    private final ExecutionReport report = new ExecutionReport(0);
+
+    @BeforeEach
+    void createBook() throws IOException {
+        tradeStore = new TradeStore(tradeDirectory, 1);
+        orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+        orderBook.setCurrentTime(1_742_200_000L);
+    }
+
+    @AfterEach
+    void closeStore() throws IOException {
+        tradeStore.close();
+    }
+
+    @Test
+    void crossingBuyOrderSweepsUpToItsLimitAndRestsTheRemainder() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 5, 101, "maker", report);
+        orderBook.insertLimitOrder(2, Side.ASK, 5, 103, "maker", report);
+
+        assertEquals(3, orderBook.insertLimitOrder(3, Side.BID, 12, 101, "taker", report));
+        assertEquals(2, report.getFillCount());
+        assertFill(0, 0, 100, 5);
+        assertFill(1, 1, 101, 5);
+        assertEquals(10, report.getFilledSize());
+
+        // the level beyond the limit price is not reached, the remainder rests at the limit price
+        assertEquals(2, orderBook.getOrder(3).getSize());
+        assertEquals(101, orderBook.getLimitBidOrders().firstKey());
+        assertEquals(103, orderBook.getLimitAskOrders().firstKey());
+        assertEquals(5, orderBook.getOrder(2).getSize());
+    }
+
+    @Test
+    void crossingSellOrderTradesAtThePricesOfTheBids() {
+        orderBook.insertLimitOrder(0, Side.BID, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.BID, 5, 98, "maker", report);
+
+        orderBook.insertLimitOrder(2, Side.ASK, 8, 95, "taker", report);
+        assertEquals(2, report.getFillCount());
+        assertFill(0, 0, 100, 5);
+        assertFill(1, 1, 98, 3);
+
+        // the sell order is filled entirely and does not rest, the second bid keeps its remainder
+        assertNull(orderBook.getOrder(2));
+        assertTrue(orderBook.getLimitAskOrders().isEmpty());
+        assertEquals(2, orderBook.getOrder(1).getSize());
+        assertEquals(OrderBook.ORDER_EXECUTED, orderBook.cancelOrder(2, "taker"));
+    }
+
+    @Test
+    void oldestOrderOfTheLevelIsFilledFirst() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "first", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 5, 100, "second", report);
+
+        orderBook.insertLimitOrder(2, Side.BID, 3, 100, "taker", report);
+        assertEquals(1, report.getFillCount());
+        assertFill(0, 0, 100, 3);
+
+        // the partially filled order keeps its place at the head of the level
+        assertEquals(2, orderBook.getOrder(0).getSize());
+        assertEquals(0, orderBook.getLimitAskOrders().get(100L).peek().getOrderId());
+        assertEquals(7, orderBook.getLimitAskOrders().get(100L).getTotalSize());
+    }
+
+    @Test
+    void orderThatDoesNotCrossRestsWithoutFills() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+
+        orderBook.insertLimitOrder(1, Side.BID, 5, 99, "taker", report);
+        assertFalse(report.isExecuted());
+        assertEquals(99, orderBook.getLimitBidOrders().firstKey());
+        assertEquals(100, orderBook.getLimitAskOrders().firstKey());
+    }
+
+    // Check the fill of the report at the index
+    private void assertFill(int index, long restingOrderId, long price, long size) {
+        assertEquals(restingOrderId, report.getFillOrderId(index));
+        assertEquals(price, report.getFillPrice(index));
+        assertEquals(size, report.getFillSize(index));
+    }
+}
@@ -0,0 +1,110 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that a market order sweeps the opposite book from the best price across
+ * as many levels as it needs, partially filling the last order it reaches, and
+ * that it is all-or-nothing within its slippage: if the levels it may reach do not
+ * hold its whole size nothing is executed
+ */
+class OrderBookMarketOrderTest {
+
+    @TempDir
+    File tradeDirectory;
+
+    private TradeStore tradeStore;
+    private OrderBook orderBook;
+    private final ExecutionReport report = new ExecutionReport(0);
+
+    @BeforeEach
+    void createBook() throws IOException {
+        tradeStore = new TradeStore(tradeDirectory, 1);
+        orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+        orderBook.setCurrentTime(1_742_200_000L);
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 5, 101, "maker", report);
+        orderBook.insertLimitOrder(2, Side.ASK, 5, 102, "maker", report);
+    }
+
+    @AfterEach
+    void closeStore() throws IOException {
+        tradeStore.close();
+    }
+
+    @Test
+    void marketOrderSweepsTheLevelsFromTheBestPrice() {
+        assertEquals(3, orderBook.insertMarketOrder(3, Side.BID, 12, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report));
+        assertEquals(3, report.getFillCount());
+        assertFill(0, 0, 100, 5);
+        assertFill(1, 1, 101, 5);
+        assertFill(2, 2, 102, 2);
+        // (5 * 100 + 5 * 101 + 2 * 102) / 12 rounded
+        assertEquals(101, report.getAveragePrice());
+
+        // the emptied levels leave the book, the last order keeps its remainder
+        assertNull(orderBook.getOrder(0));
+        assertNull(orderBook.getOrder(1));
+        assertEquals(3, orderBook.getOrder(2).getSize());
+        assertEquals(102, orderBook.getLimitAskOrders().firstKey());
+    }
+
+    @Test
+    void marketOrderStopsAtTheSlippageAllowed() {
+        // one tick of slippage reaches 100 and 101, which hold the whole order
+        assertEquals(3, orderBook.insertMarketOrder(3, Side.BID, 8, 1, "taker", report));
+        assertEquals(2, report.getFillCount());
+        assertFill(1, 1, 101, 3);
+        assertEquals(2, orderBook.getOrder(1).getSize());
+        assertEquals(5, orderBook.getOrder(2).getSize());
+    }
+
+    @Test
+    void marketOrderLargerThanTheReachableLevelsIsNotExecuted() {
+        assertEquals(-1, orderBook.insertMarketOrder(3, Side.BID, 11, 1, "taker", report));
+        assertFalse(report.isExecuted());
+        assertEquals(-1, orderBook.insertMarketOrder(4, Side.BID, 16, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report));
+        assertFalse(report.isExecuted());
+
+        // the book is left as it was
+        assertEquals(3, orderBook.getLimitAskOrders().size());
+        assertEquals(5, orderBook.getOrder(0).getSize());
+        assertEquals(5, orderBook.getOrder(2).getSize());
+    }
+
+    @Test
+    void sellMarketOrderSweepsTheBidsDownward() {
+        orderBook.insertLimitOrder(3, Side.BID, 4, 99, "maker", report);
+        orderBook.insertLimitOrder(4, Side.BID, 4, 97, "maker", report);
+
+        // two ticks of slippage below 99 reach 97
+        assertEquals(5, orderBook.insertMarketOrder(5, Side.ASK, 6, 2, "taker", report));
+        assertEquals(2, report.getFillCount());
+        assertFill(0, 3, 99, 4);
+        assertFill(1, 4, 97, 2);
+        assertEquals(2, orderBook.getOrder(4).getSize());
+    }
+
+    @Test
+    void marketOrderOnAnEmptySideIsNotExecuted() {
+        assertEquals(-1, orderBook.insertMarketOrder(3, Side.ASK, 1, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report));
+        assertFalse(report.isExecuted());
+    }
+
+    // Check the fill of the report at the index
+    private void assertFill(int index, long restingOrderId, long price, long size) {
+        assertEquals(restingOrderId, report.getFillOrderId(index));
+        assertEquals(price, report.getFillPrice(index));
+        assertEquals(size, report.getFillSize(index));
+    }
+}
@@ -0,0 +1,98 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that modifying a resting limit order keeps its time priority only when
+ * its size is reduced at the same price: a larger size queues it again at the end
+ * of its level, and a new price places it again like a new order, crossing the
+ * book if it can
+ */
+class OrderBookModifyTest {
+
+    @TempDir
+    File tradeDirectory;
+
+    private TradeStore tradeStore;
+    private OrderBook orderBook;
+    private final ExecutionReport report = new ExecutionReport(0);
+
+    @BeforeEach
+    void createBook() throws IOException {
+        tradeStore = new TradeStore(tradeDirectory, 1);
+        orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+        orderBook.setCurrentTime(1_742_200_000L);
+        orderBook.insertLimitOrder(0, Side.ASK, 10, 100, "first", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 10, 100, "second", report);
+    }
+
+    @AfterEach
+    void closeStore() throws IOException {
+        tradeStore.close();
+    }
+
+    @Test
+    void sizeReductionKeepsTheTimePriority() {
+        assertEquals(0, orderBook.modifyOrder(0, "first", 4, 100, report));
+        assertFalse(report.isExecuted());
+        assertEquals(14, orderBook.getLimitAskOrders().get(100L).getTotalSize());
+
+        orderBook.insertMarketOrder(2, Side.BID, 4, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        assertEquals(1, report.getFillCount());
+        assertEquals(0, report.getFillOrderId(0));
+        assertNull(orderBook.getOrder(0));
+    }
+
+    @Test
+    void sizeIncreaseLosesTheTimePriority() {
+        assertEquals(0, orderBook.modifyOrder(0, "first", 12, 100, report));
+        assertEquals(22, orderBook.getLimitAskOrders().get(100L).getTotalSize());
+
+        orderBook.insertMarketOrder(2, Side.BID, 5, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        assertEquals(1, report.getFillCount());
+        assertEquals(1, report.getFillOrderId(0));
+        assertEquals(12, orderBook.getOrder(0).getSize());
+    }
+
+    @Test
+    void newPriceLosesTheTimePriorityAndCrossesTheBook() {
+        orderBook.insertLimitOrder(2, Side.BID, 4, 98, "buyer", report);
+
+        // the order moves below the bid, trades with it and rests with the remainder at the new price
+        assertEquals(0, orderBook.modifyOrder(0, "first", 10, 98, report));
+        assertEquals(1, report.getFillCount());
+        assertEquals(2, report.getFillOrderId(0));
+        assertEquals(98, report.getFillPrice(0));
+        assertEquals(6, orderBook.getOrder(0).getSize());
+        assertEquals(98, orderBook.getLimitAskOrders().firstKey());
+        assertEquals(10, orderBook.getLimitAskOrders().get(100L).getTotalSize());
+
+        // back at the old price it is queued after the order that was behind it
+        assertEquals(0, orderBook.modifyOrder(0, "first", 6, 100, report));
+        orderBook.insertMarketOrder(3, Side.BID, 5, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        assertEquals(1, report.getFillOrderId(0));
+    }
+
+    @Test
+    void modificationIsRejectedForOrdersThatCanNotBeChanged() {
+        assertEquals(OrderBook.ORDER_OF_ANOTHER_USER, orderBook.modifyOrder(0, "second", 5, 100, report));
+        assertEquals(OrderBook.ORDER_NOT_FOUND, orderBook.modifyOrder(42, "first", 5, 100, report));
+
+        orderBook.insertStopOrder(2, Side.BID, 5, 110, "first");
+        assertEquals(OrderBook.ORDER_NOT_MODIFIABLE, orderBook.modifyOrder(2, "first", 5, 120, report));
+
+        orderBook.insertMarketOrder(3, Side.BID, 10, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        assertEquals(OrderBook.ORDER_EXECUTED, orderBook.modifyOrder(0, "first", 5, 100, report));
+        assertEquals(10, orderBook.getOrder(1).getSize());
+    }
+}
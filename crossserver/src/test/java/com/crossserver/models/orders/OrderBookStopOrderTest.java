@@ -0,0 +1,120 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that the stop orders are triggered by the price of the last trade: a buy
+ * stop when a trade prints at or above its price, a sell stop at or below it. A
+ * triggered stop is executed as a market order once the command is done, as the
+ * matching engine does after every command
+ */
+class OrderBookStopOrderTest {
+
+    @TempDir
+    File tradeDirectory;
+
+    private TradeStore tradeStore;
+    private OrderBook orderBook;
+    private final ExecutionReport report = new ExecutionReport(0);
+
+    @BeforeEach
+    void createBook() throws IOException {
+        tradeStore = new TradeStore(tradeDirectory, 1);
+        orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+        orderBook.setCurrentTime(1_742_200_000L);
+    }
+
+    @AfterEach
+    void closeStore() throws IOException {
+        tradeStore.close();
+    }
+
+    @Test
+    void buyStopIsTriggeredByATradeAtOrAboveItsPrice() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 5, 105, "maker", report);
+        orderBook.insertStopOrder(2, Side.BID, 3, 105, "stopper");
+
+        marketOrder(3, Side.BID, 5);
+        assertEquals(100, orderBook.getLastTradePrice());
+        assertNotNull(orderBook.getOrder(2));
+
+        // the trade at the stop price triggers it, and it buys at the next ask
+        marketOrder(4, Side.BID, 1);
+        assertEquals(105, orderBook.getLastTradePrice());
+        assertNull(orderBook.getOrder(2));
+        assertEquals(1, orderBook.getOrder(1).getSize());
+        assertEquals(OrderBook.ORDER_EXECUTED, orderBook.cancelOrder(2, "stopper"));
+    }
+
+    @Test
+    void sellStopIsTriggeredByATradeAtOrBelowItsPrice() {
+        orderBook.insertLimitOrder(0, Side.BID, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.BID, 5, 95, "maker", report);
+        orderBook.insertStopOrder(2, Side.ASK, 2, 99, "stopper");
+
+        marketOrder(3, Side.ASK, 5);
+        assertNotNull(orderBook.getOrder(2));
+
+        marketOrder(4, Side.ASK, 1);
+        assertEquals(95, orderBook.getLastTradePrice());
+        assertNull(orderBook.getOrder(2));
+        assertEquals(2, orderBook.getOrder(1).getSize());
+    }
+
+    @Test
+    void stopAlreadyReachedByTheLastTradeIsTriggeredOnInsertion() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 5, 101, "maker", report);
+        marketOrder(2, Side.BID, 1);
+
+        orderBook.insertStopOrder(3, Side.BID, 4, 99, "stopper");
+        orderBook.executeTriggeredStopOrders();
+        assertNull(orderBook.getOrder(3));
+        assertNull(orderBook.getOrder(0));
+        assertEquals(5, orderBook.getOrder(1).getSize());
+    }
+
+    @Test
+    void triggeredStopCanTriggerTheNextOne() {
+        orderBook.insertLimitOrder(0, Side.ASK, 1, 100, "maker", report);
+        orderBook.insertLimitOrder(1, Side.ASK, 1, 102, "maker", report);
+        orderBook.insertLimitOrder(2, Side.ASK, 1, 104, "maker", report);
+        orderBook.insertStopOrder(3, Side.BID, 1, 100, "stopper");
+        orderBook.insertStopOrder(4, Side.BID, 1, 102, "stopper");
+
+        // the trade at 100 triggers the first stop, whose trade at 102 triggers the second
+        marketOrder(5, Side.BID, 1);
+        assertNull(orderBook.getOrder(3));
+        assertNull(orderBook.getOrder(4));
+        assertEquals(104, orderBook.getLastTradePrice());
+        assertTrue(orderBook.getLimitAskOrders().isEmpty());
+    }
+
+    @Test
+    void triggeredStopWithoutLiquidityIsDropped() {
+        orderBook.insertLimitOrder(0, Side.ASK, 5, 100, "maker", report);
+        orderBook.insertStopOrder(1, Side.BID, 3, 100, "stopper");
+
+        marketOrder(2, Side.BID, 5);
+        assertNull(orderBook.getOrder(1));
+        assertEquals(OrderBook.ORDER_NOT_FOUND, orderBook.cancelOrder(1, "stopper"));
+    }
+
+    // Execute the market order and the stop orders triggered by its trades
+    private void marketOrder(long orderId, Side type, long size) {
+        orderBook.insertMarketOrder(orderId, type, size, OrderBook.NO_SLIPPAGE_LIMIT, "taker", report);
+        orderBook.executeTriggeredStopOrders();
+    }
+}
@@ -0,0 +1,88 @@
+package com.crossserver.models.Orders;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.crossserver.models.Notification.UDPNotifier;
+
+/*
+ * Check that the owner of an executed order is found in memory while its segment
+ * is hot, and through the ID ranges of the cold segments once it is not, so the
+ * matching engine never reads the disk to answer a cancellation, and that a trade
+ * replayed from the journal is not stored twice
+ */
+class TradeStoreTest {
+    private static final long SECONDS_PER_DAY = 86_400;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void executedOrdersOfColdSegmentsAreFoundOffTheEngine() throws IOException {
+        TradeStore tradeStore = new TradeStore(directory, 1);
+        try {
+            tradeStore.append(executed(1, "alice", 10));
+            tradeStore.append(executed(2, "bob", 10));
+            assertEquals("alice", tradeStore.getHotOwner(1));
+
+            // the trades of a new day make the segment of the first day cold
+            tradeStore.append(executed(3, "carol", 11));
+            assertNull(tradeStore.getHotOwner(1));
+            assertEquals("carol", tradeStore.getHotOwner(3));
+            assertEquals("alice", tradeStore.getColdOwner(1));
+            assertEquals("bob", tradeStore.getColdOwner(2));
+            assertNull(tradeStore.getColdOwner(3));
+            assertNull(tradeStore.getColdOwner(1_000));
+
+            // the engine does not find the old order, the thread of the request does
+            OrderBook orderBook = new OrderBook(new UDPNotifier(16, 16), tradeStore);
+            assertEquals(OrderBook.ORDER_NOT_FOUND, orderBook.cancelOrder(1, "alice"));
+            assertEquals(OrderBook.ORDER_EXECUTED, orderBook.findExecutedOrder(1, "alice"));
+            assertEquals(OrderBook.ORDER_OF_ANOTHER_USER, orderBook.findExecutedOrder(2, "alice"));
+            assertEquals(OrderBook.ORDER_NOT_FOUND, orderBook.findExecutedOrder(1_000, "alice"));
+            assertEquals(OrderBook.ORDER_EXECUTED, orderBook.cancelOrder(3, "carol"));
+        } finally {
+            tradeStore.close();
+        }
+
+        // the ranges of the cold segments are loaded when the store is opened
+        tradeStore = new TradeStore(directory, 1);
+        try {
+            assertEquals("alice", tradeStore.getColdOwner(1));
+            assertEquals("carol", tradeStore.getHotOwner(3));
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    @Test
+    void replayedTradesOfColdSegmentsAreNotStoredAgain() throws IOException {
+        TradeStore tradeStore = new TradeStore(directory, 1);
+        try {
+            tradeStore.append(executed(1, "alice", 10));
+            tradeStore.append(executed(3, "carol", 11));
+
+            // the replayed trade has the time of its first execution, in a day that is cold now
+            assertFalse(tradeStore.append(executed(1, "alice", 10)));
+            assertEquals(1, tradeStore.getTrades(10, 0, 10).size());
+            assertNull(tradeStore.getHotOwner(1));
+            assertEquals("carol", tradeStore.getHotOwner(3));
+            assertEquals("alice", tradeStore.getColdOwner(1));
+        } finally {
+            tradeStore.close();
+        }
+    }
+
+    // Return the executed limit order of the user, executed in the given epoch day
+    private static Order executed(long orderId, String userId, long day) {
+        Order order = new LimitOrder(orderId, Side.BID, 1, 100);
+        order.setUserId(userId);
+        order.setTimestamp(day * SECONDS_PER_DAY + 60);
+        return order;
+    }
+}